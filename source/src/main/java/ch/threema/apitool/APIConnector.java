@@ -26,15 +26,39 @@ package ch.threema.apitool;
 
 import ch.threema.apitool.results.CapabilityResult;
 import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.SendResult;
 import ch.threema.apitool.results.UploadResult;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.IOUtils;
 
-import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.SecureRandom;
-import java.util.HashMap;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Facilitates HTTPS communication with the Threema Message API.
@@ -42,6 +66,31 @@ import java.util.Map;
 public class APIConnector {
 	private static final int BUFFER_SIZE = 16384;
 
+	/** Default number of retries of a request rejected with HTTP 429 or 503 */
+	public static final int DEFAULT_THROTTLE_RETRIES = 3;
+	/* longer Retry-After delays are not waited for */
+	private static final long MAX_RETRY_AFTER_MILLIS = 60 * 1000;
+
+	/** Default minimum size of each range in a parallel download (8 MiB) */
+	public static final long DEFAULT_PARALLEL_DOWNLOAD_MIN_PART_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Default number of messages per bulk send request.
+	 */
+	public static final int DEFAULT_BULK_BATCH_SIZE = 500;
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	private static final byte[] JSON_TO = ascii("{\"to\":\"");
+	private static final byte[] JSON_NEXT_TO = ascii(",{\"to\":\"");
+	private static final byte[] JSON_NONCE = ascii("\",\"nonce\":\"");
+	private static final byte[] JSON_BOX = ascii("\",\"box\":\"");
+	private static final byte[] JSON_END = ascii("\"}");
+
+	/* request body buffer of this thread; fits a send_e2e request with a full-size box */
+	private static final ThreadLocal<UrlEncodedForm> formBuffer = ThreadLocal.withInitial(
+			() -> new UrlEncodedForm(2 * CryptTool.MAX_BOX_LENGTH + 256));
+
 	public interface ProgressListener {
 
 		/**
@@ -62,20 +111,195 @@ public class APIConnector {
 		}
 	}
 
-	private final String apiUrl;
+	/**
+	 * An API endpoint with its URL prefix and the credential query string precomputed.
+	 */
+	private static final class Endpoint {
+		private final String prefix;
+		private final String query;
+		private final URL url;
+		private final RequestThrottle throttle = new RequestThrottle();
+
+		Endpoint(String apiUrl, String path, String query) {
+			this.prefix = apiUrl + path;
+			this.query = query;
+			try {
+				this.url = new URL(this.prefix + query);
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("Invalid API URL " + apiUrl, e);
+			}
+		}
+
+		URL url() {
+			return this.url;
+		}
+
+		URL url(String pathParam) throws MalformedURLException {
+			return new URL(new StringBuilder(this.prefix.length() + pathParam.length() + this.query.length())
+					.append(this.prefix).append(pathParam).append(this.query).toString());
+		}
+
+		URL url(byte[] hexPathParam) throws MalformedURLException {
+			StringBuilder sb = new StringBuilder(this.prefix.length() + 2 * hexPathParam.length + this.query.length());
+			sb.append(this.prefix);
+			DataUtils.appendHex(sb, hexPathParam, 0, hexPathParam.length);
+			return new URL(sb.append(this.query).toString());
+		}
+	}
+
+	private interface RequestBody {
+		void writeTo(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * Configures a connection and sends the request (before the response code is read).
+	 */
+	private interface Sender {
+		void send(HttpURLConnection connection) throws IOException;
+	}
+
+	/**
+	 * Reads the response of a request.
+	 */
+	private interface Receiver<T> {
+		T receive(HttpURLConnection connection, int code) throws IOException;
+	}
+
+	private static final class Response {
+		final int code;
+		final String body;
+
+		Response(int code, String body) {
+			this.code = code;
+			this.body = body;
+		}
+	}
+
 	private final PublicKeyStore publicKeyStore;
-	private final String apiIdentity;
-	private final String secret;
+
+	/* URL-encoded "from" and "secret" parameters, shared by all requests */
+	private final byte[] credentials;
+
+	private final Endpoint sendSimpleEndpoint;
+	private final Endpoint sendE2EEndpoint;
+	private final Endpoint sendE2EBulkEndpoint;
+	private final Endpoint lookupPhoneEndpoint;
+	private final Endpoint lookupEmailEndpoint;
+	private final Endpoint pubkeysEndpoint;
+	private final Endpoint capabilitiesEndpoint;
+	private final Endpoint creditsEndpoint;
+	private final Endpoint uploadBlobEndpoint;
+	private final Endpoint blobsEndpoint;
+	/* all endpoints by name, for per-endpoint throttling settings */
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+	private volatile int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+	private volatile boolean bulkSendEnabled = true;
+
+	private volatile int downloadRetries = 5;
+	private volatile long downloadBackoffMillis = 1000;
+	private volatile int parallelDownloads = 1;
+	private volatile long parallelDownloadMinPartSize = DEFAULT_PARALLEL_DOWNLOAD_MIN_PART_SIZE;
+	private volatile int throttleRetries = DEFAULT_THROTTLE_RETRIES;
 
 	public APIConnector(String apiIdentity, String secret, PublicKeyStore publicKeyStore) {
 		this(apiIdentity, secret, "https://msgapi.threema.ch/", publicKeyStore);
 	}
 
 	public APIConnector(String apiIdentity, String secret, String apiUrl, PublicKeyStore publicKeyStore) {
-		this.apiIdentity = apiIdentity;
-		this.secret = secret;
-		this.apiUrl = apiUrl;
 		this.publicKeyStore = publicKeyStore;
+
+		UrlEncodedForm credentialForm = new UrlEncodedForm(64).add("from", apiIdentity).add("secret", secret);
+		this.credentials = Arrays.copyOf(credentialForm.getBuffer(), credentialForm.getLength());
+		String query = "?" + credentialForm;
+
+		this.sendSimpleEndpoint = new Endpoint(apiUrl, "send_simple", "");
+		this.sendE2EEndpoint = new Endpoint(apiUrl, "send_e2e", "");
+		this.sendE2EBulkEndpoint = new Endpoint(apiUrl, "send_e2e_bulk", query);
+		this.lookupPhoneEndpoint = new Endpoint(apiUrl, "lookup/phone_hash/", query);
+		this.lookupEmailEndpoint = new Endpoint(apiUrl, "lookup/email_hash/", query);
+		this.pubkeysEndpoint = new Endpoint(apiUrl, "pubkeys/", query);
+		this.capabilitiesEndpoint = new Endpoint(apiUrl, "capabilities/", query);
+		this.creditsEndpoint = new Endpoint(apiUrl, "credits", query);
+		this.uploadBlobEndpoint = new Endpoint(apiUrl, "upload_blob", query);
+		this.blobsEndpoint = new Endpoint(apiUrl, "blobs/", query);
+
+		this.endpoints.put("send_simple", this.sendSimpleEndpoint);
+		this.endpoints.put("send_e2e", this.sendE2EEndpoint);
+		this.endpoints.put("send_e2e_bulk", this.sendE2EBulkEndpoint);
+		this.endpoints.put("lookup/phone_hash", this.lookupPhoneEndpoint);
+		this.endpoints.put("lookup/email_hash", this.lookupEmailEndpoint);
+		this.endpoints.put("pubkeys", this.pubkeysEndpoint);
+		this.endpoints.put("capabilities", this.capabilitiesEndpoint);
+		this.endpoints.put("credits", this.creditsEndpoint);
+		this.endpoints.put("upload_blob", this.uploadBlobEndpoint);
+		this.endpoints.put("blobs", this.blobsEndpoint);
+	}
+
+	/**
+	 * Limit the request rate with a token bucket.
+	 *
+	 * @param endpoint endpoint name (e.g. "send_e2e", "pubkeys" or "blobs"), or null for all endpoints
+	 * @param requestsPerSecond sustained request rate; 0 for no limit
+	 * @param burst number of requests that may be sent at once after an idle period
+	 */
+	public void setRateLimit(String endpoint, double requestsPerSecond, int burst) {
+		if (requestsPerSecond < 0 || burst < 1) {
+			throw new IllegalArgumentException("Invalid rate limit");
+		}
+		for (Endpoint e : this.selectEndpoints(endpoint)) {
+			e.throttle.setRateLimit(requestsPerSecond, burst);
+		}
+	}
+
+	/**
+	 * Set the maximum number of concurrent requests. Within this maximum, the limit adapts to
+	 * the server: it grows while requests succeed and is halved when the server responds with
+	 * HTTP 429 or 5xx or a request fails without a response.
+	 *
+	 * @param endpoint endpoint name (e.g. "send_e2e", "pubkeys" or "blobs"), or null for all endpoints
+	 * @param maxConcurrency maximum number of concurrent requests
+	 */
+	public void setMaxConcurrency(String endpoint, int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("Invalid concurrency");
+		}
+		for (Endpoint e : this.selectEndpoints(endpoint)) {
+			e.throttle.setMaxConcurrency(maxConcurrency);
+		}
+	}
+
+	/**
+	 * @param endpoint endpoint name
+	 * @return the current adaptive concurrency limit of the endpoint
+	 */
+	public int getConcurrencyLimit(String endpoint) {
+		return this.selectEndpoints(endpoint).get(0).throttle.getConcurrencyLimit();
+	}
+
+	/**
+	 * Set how often a request rejected with HTTP 429 or 503 is retried. The retry waits for the
+	 * delay given by the server's Retry-After header (at most one minute), or an exponentially
+	 * growing delay if there is none. Other requests to the endpoint wait as well.
+	 *
+	 * @param retries number of retries; 0 disables retrying
+	 */
+	public void setThrottleRetries(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("Invalid retry count");
+		}
+		this.throttleRetries = retries;
+	}
+
+	private List<Endpoint> selectEndpoints(String name) {
+		if (name == null) {
+			return new ArrayList<>(this.endpoints.values());
+		}
+		Endpoint endpoint = this.endpoints.get(name);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("Unknown endpoint " + name);
+		}
+		return Collections.singletonList(endpoint);
 	}
 
 	/**
@@ -88,11 +312,11 @@ public class APIConnector {
 	 */
 	public String sendTextMessageSimple(String to, String text) throws IOException {
 
-		Map<String,String> postParams = makeRequestParams();
-		postParams.put("to", to);
-		postParams.put("text", text);
+		UrlEncodedForm form = this.newForm()
+				.add("to", to)
+				.add("text", text);
 
-		return doPost(new URL(this.apiUrl + "send_simple"), postParams);
+		return doPost(this.sendSimpleEndpoint, form);
 	}
 
 	/**
@@ -105,13 +329,182 @@ public class APIConnector {
 	 * @throws IOException if a communication or server error occurs
 	 */
 	public String sendE2EMessage(String to, byte[] nonce, byte[] box) throws IOException {
+		return this.sendE2EMessage(to, nonce, box, box.length);
+	}
+
+	/**
+	 * Send an end-to-end encrypted message whose box occupies the start of a (reusable) buffer.
+	 *
+	 * @param to recipient ID
+	 * @param nonce nonce used for encryption (24 bytes)
+	 * @param box buffer containing the encrypted message data
+	 * @param boxLength length of the encrypted message data (max. 4000 bytes)
+	 * @return message ID
+	 * @throws IOException if a communication or server error occurs
+	 */
+	public String sendE2EMessage(String to, byte[] nonce, byte[] box, int boxLength) throws IOException {
+
+		UrlEncodedForm form = this.newForm()
+				.add("to", to)
+				.addHex("nonce", nonce, 0, nonce.length)
+				.addHex("box", box, 0, boxLength);
+
+		return doPost(this.sendE2EEndpoint, form);
+	}
+
+	/**
+	 * Send many end-to-end encrypted messages. Up to {@link #setBulkBatchSize(int)} messages
+	 * are packed into one request to the bulk send endpoint. If the server does not offer
+	 * bulk sending (or it has been disabled), the messages are sent one by one instead.
+	 *
+	 * Errors are reported per message rather than thrown, so that the results of messages
+	 * that have already been sent are not lost.
+	 *
+	 * @param messages the messages to send
+	 * @return one result per message, in the same order
+	 */
+	public List<SendResult> sendE2EMessages(List<OutgoingMessage> messages) {
+		List<SendResult> results = new ArrayList<>(messages.size());
+		int batchSize = this.bulkBatchSize;
+
+		for (int i = 0; i < messages.size(); i += batchSize) {
+			List<OutgoingMessage> batch = messages.subList(i, Math.min(messages.size(), i + batchSize));
+			if (batch.size() > 1 && this.bulkSendEnabled && this.sendE2EBulk(batch, results)) {
+				continue;
+			}
+
+			for (OutgoingMessage message : batch) {
+				results.add(this.sendE2EMessageResult(message));
+			}
+		}
+		return results;
+	}
 
-		Map<String,String> postParams = makeRequestParams();
-		postParams.put("to", to);
-		postParams.put("nonce", DataUtils.byteArrayToHexString(nonce));
-		postParams.put("box", DataUtils.byteArrayToHexString(box));
+	/**
+	 * Set the maximum number of messages per bulk send request.
+	 *
+	 * @param bulkBatchSize number of messages (at least 1)
+	 */
+	public void setBulkBatchSize(int bulkBatchSize) {
+		if (bulkBatchSize < 1) {
+			throw new IllegalArgumentException("Invalid bulk batch size");
+		}
+		this.bulkBatchSize = bulkBatchSize;
+	}
 
-		return doPost(new URL(this.apiUrl + "send_e2e"), postParams);
+	/**
+	 * Enable or disable the bulk send endpoint. Bulk sending is disabled automatically
+	 * when the server does not offer it.
+	 */
+	public void setBulkSendEnabled(boolean bulkSendEnabled) {
+		this.bulkSendEnabled = bulkSendEnabled;
+	}
+
+	/**
+	 * Send a batch through the bulk endpoint and append the results.
+	 *
+	 * @return false if the bulk endpoint is not available and nothing was sent
+	 */
+	private boolean sendE2EBulk(List<OutgoingMessage> batch, List<SendResult> results) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(batch.size() * 256);
+		try {
+			body.write('[');
+			for (int i = 0; i < batch.size(); i++) {
+				OutgoingMessage message = batch.get(i);
+				body.write(i == 0 ? JSON_TO : JSON_NEXT_TO);
+				writeJsonString(body, message.getTo());
+				body.write(JSON_NONCE);
+				writeBase64(body, message.getNonce());
+				body.write(JSON_BOX);
+				writeBase64(body, message.getBox());
+				body.write(JSON_END);
+			}
+			body.write(']');
+		} catch (IOException e) {
+			/* cannot happen when writing to memory */
+			throw new IllegalStateException(e);
+		}
+
+		Response response;
+		try {
+			response = this.post(this.sendE2EBulkEndpoint, "application/json", body.size(), body::writeTo);
+		} catch (IOException e) {
+			addFailed(batch, SendResult.NO_RESPONSE, results);
+			return true;
+		}
+
+		if (response.code == 404 || response.code == 405) {
+			/* no bulk support on this server */
+			this.bulkSendEnabled = false;
+			return false;
+		} else if (response.code != 200) {
+			addFailed(batch, response.code, results);
+			return true;
+		}
+
+		try {
+			JsonArray items = JsonParser.parseString(response.body).getAsJsonArray();
+			if (items.size() != batch.size()) {
+				throw new IllegalStateException("Unexpected number of results");
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				JsonObject item = items.get(i).getAsJsonObject();
+				JsonElement messageId = item.get("messageId");
+				JsonElement errorCode = item.get("errorCode");
+				if (messageId != null && !messageId.isJsonNull()) {
+					results.add(new SendResult(batch.get(i).getTo(), 200, messageId.getAsString()));
+				} else {
+					results.add(new SendResult(batch.get(i).getTo(),
+							errorCode != null && !errorCode.isJsonNull() ? errorCode.getAsInt() : SendResult.OUTCOME_UNKNOWN, null));
+				}
+			}
+		} catch (RuntimeException e) {
+			/* unparseable response; the messages may or may not have been sent */
+			addFailed(batch, SendResult.OUTCOME_UNKNOWN, results);
+		}
+		return true;
+	}
+
+	private SendResult sendE2EMessageResult(OutgoingMessage message) {
+		UrlEncodedForm form = this.newForm()
+				.add("to", message.getTo())
+				.addHex("nonce", message.getNonce(), 0, message.getNonce().length)
+				.addHex("box", message.getBox(), 0, message.getBox().length);
+
+		try {
+			Response response = this.post(this.sendE2EEndpoint, FORM_CONTENT_TYPE, form.getLength(), form::writeTo);
+			return new SendResult(message.getTo(), response.code, response.code == 200 ? firstLine(response.body) : null);
+		} catch (IOException e) {
+			return new SendResult(message.getTo(), SendResult.NO_RESPONSE, null);
+		}
+	}
+
+	private static void addFailed(List<OutgoingMessage> batch, int responseCode, List<SendResult> results) {
+		for (OutgoingMessage message : batch) {
+			results.add(new SendResult(message.getTo(), responseCode, null));
+		}
+	}
+
+	private static void writeJsonString(ByteArrayOutputStream os, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\' || c < 0x20 || c > 0x7E) {
+				os.write('\\');
+				os.write('u');
+				for (int shift = 12; shift >= 0; shift -= 4) {
+					os.write(Character.forDigit((c >> shift) & 0x0F, 16));
+				}
+			} else {
+				os.write(c);
+			}
+		}
+	}
+
+	private static void writeBase64(ByteArrayOutputStream os, byte[] data) throws IOException {
+		/* closing the wrapper only flushes the final block; closing the target is a no-op */
+		try (OutputStream base64 = Base64.getEncoder().wrap(os)) {
+			base64.write(data);
+		}
 	}
 
 	/**
@@ -125,11 +518,9 @@ public class APIConnector {
 	public String lookupPhone(String phoneNumber) throws IOException {
 
 		try {
-			Map<String,String> getParams = makeRequestParams();
-
 			byte[] phoneHash = CryptTool.hashPhoneNo(phoneNumber);
 
-			return doGet(new URL(this.apiUrl + "lookup/phone_hash/" + DataUtils.byteArrayToHexString(phoneHash)), getParams);
+			return doGet(this.lookupPhoneEndpoint, this.lookupPhoneEndpoint.url(phoneHash));
 		} catch (FileNotFoundException e) {
 			return null;
 		}
@@ -146,11 +537,9 @@ public class APIConnector {
 	public String lookupEmail(String email) throws IOException {
 
 		try {
-			Map<String,String> getParams = makeRequestParams();
-
 			byte[] emailHash = CryptTool.hashEmail(email);
 
-			return doGet(new URL(this.apiUrl + "lookup/email_hash/" + DataUtils.byteArrayToHexString(emailHash)), getParams);
+			return doGet(this.lookupEmailEndpoint, this.lookupEmailEndpoint.url(emailHash));
 		} catch (FileNotFoundException e) {
 			return null;
 		}
@@ -166,21 +555,38 @@ public class APIConnector {
 	public byte[] lookupKey(String id) throws IOException {
 		byte[] key = this.publicKeyStore.getPublicKey(id);
 		if(key == null) {
-			try {
-				Map<String, String> getParams = makeRequestParams();
-				String pubkeyHex = doGet(new URL(this.apiUrl + "pubkeys/" + id), getParams);
-				key = DataUtils.hexStringToByteArray(pubkeyHex);
+			key = this.fetchPublicKey(id);
 
-				if(key != null) {
-					this.publicKeyStore.save(id, key);
-				}
-			} catch (FileNotFoundException e) {
-				return null;
+			if(key != null) {
+				this.publicKeyStore.setPublicKey(id, key);
 			}
 		}
 		return key;
 	}
 
+	/**
+	 * Fetch a public key by ID from the server, bypassing the public key store.
+	 *
+	 * @param id the ID whose public key is desired
+	 * @return the corresponding public key, or null if not found
+	 * @throws IOException if a communication or server error occurs
+	 */
+	public byte[] fetchPublicKey(String id) throws IOException {
+		try {
+			String pubkeyHex = doGet(this.pubkeysEndpoint, this.pubkeysEndpoint.url(id));
+			return DataUtils.hexStringToByteArray(pubkeyHex);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the public key store used by this connector
+	 */
+	public PublicKeyStore getPublicKeyStore() {
+		return this.publicKeyStore;
+	}
+
 	/**
 	 * Lookup the capabilities of a ID
 	 *
@@ -189,8 +595,7 @@ public class APIConnector {
 	 * @throws IOException
 	 */
 	public CapabilityResult lookupKeyCapability(String threemaId) throws IOException {
-		String res = doGet(new URL(this.apiUrl + "capabilities/" + threemaId),
-				makeRequestParams());
+		String res = doGet(this.capabilitiesEndpoint, this.capabilitiesEndpoint.url(threemaId));
 		if(res != null) {
 			return new CapabilityResult(threemaId, res.split(","));
 		}
@@ -198,8 +603,7 @@ public class APIConnector {
 	}
 
 	public Integer lookupCredits() throws IOException {
-		String res = doGet(new URL(this.apiUrl + "credits"),
-				makeRequestParams());
+		String res = doGet(this.creditsEndpoint, this.creditsEndpoint.url());
 		if(res != null) {
 			return Integer.valueOf(res);
 		}
@@ -213,56 +617,49 @@ public class APIConnector {
 	 * @throws IOException
 	 */
 	public UploadResult uploadFile(EncryptResult fileEncryptionResult) throws  IOException{
+		byte[] data = fileEncryptionResult.getResult();
+		return this.uploadBlob(data.length, os -> os.write(data));
+	}
+
+	/**
+	 * Upload an encrypted file from disk. The file is streamed to the server, so it does
+	 * not need to fit into memory.
+	 *
+	 * @param encryptedFile file containing the encrypted data, e.g. from
+	 *                      {@link CryptTool#encryptFileData(java.nio.file.Path, java.nio.file.Path)}
+	 * @return an upload result
+	 * @throws IOException if a communication or server error occurs
+	 */
+	public UploadResult uploadFile(File encryptedFile) throws IOException {
+		return this.uploadBlob(encryptedFile.length(), os -> Files.copy(encryptedFile.toPath(), os));
+	}
 
-		String attachmentName = "blob";
-		String attachmentFileName = "blob.file";
+	private UploadResult uploadBlob(long length, RequestBody content) throws IOException {
 		String crlf = "\r\n";
 		String twoHyphens = "--";
 
 		char[] chars = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
-		String boundary = "";
+		StringBuilder boundary = new StringBuilder();
 		SecureRandom rand = new SecureRandom();
 		int count = rand.nextInt(11) + 30;
 		for (int i = 0; i < count; i++) {
-			boundary += chars[rand.nextInt(chars.length)];
+			boundary.append(chars[rand.nextInt(chars.length)]);
 		}
 
+		byte[] header = ascii(twoHyphens + boundary + crlf
+				+ "Content-Disposition: form-data; name=\"blob\";filename=\"blob.file\"" + crlf
+				+ crlf);
+		byte[] footer = ascii(crlf + twoHyphens + boundary + twoHyphens + crlf);
 
-		String queryString = makeUrlEncoded(makeRequestParams());
-		URL url = new URL(this.apiUrl + "upload_blob?" + queryString);
+		Response response = this.post(this.uploadBlobEndpoint, "multipart/form-data;boundary=" + boundary,
+				header.length + length + footer.length, os -> {
+					os.write(header);
+					content.writeTo(os);
+					os.write(footer);
+				});
 
-		HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setUseCaches(false);
-
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Connection", "Keep-Alive");
-		connection.setRequestProperty("Cache-Control", "no-cache");
-		connection.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
-
-		DataOutputStream request = new DataOutputStream(connection.getOutputStream());
-
-		request.writeBytes(twoHyphens + boundary + crlf);
-		request.writeBytes("Content-Disposition: form-data; name=\"" + attachmentName + "\";filename=\"" + attachmentFileName + "\"" + crlf);
-		request.writeBytes(crlf);
-		request.write(fileEncryptionResult.getResult());
-		request.writeBytes(crlf);
-		request.writeBytes(twoHyphens + boundary + twoHyphens + crlf);
-
-		String response = null;
-		int responseCode = connection.getResponseCode();
-
-		if(responseCode == 200) {
-			InputStream is = connection.getInputStream();
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
-			response = br.readLine();
-			br.close();
-		}
-
-		connection.disconnect();
-
-		return new UploadResult(responseCode, response != null ? DataUtils.hexStringToByteArray(response) : null);
+		String blobId = response.code == 200 ? firstLine(response.body) : null;
+		return new UploadResult(response.code, blobId != null ? DataUtils.hexStringToByteArray(blobId) : null);
 	}
 
 	/**
@@ -285,16 +682,10 @@ public class APIConnector {
 	 * @throws IOException
 	 */
 	public byte[] downloadFile(byte[] blobId, ProgressListener progressListener) throws IOException {
-		String queryString = makeUrlEncoded(makeRequestParams());
-		URL blobUrl = new URL(String.format(this.apiUrl + "blobs/%s?%s",
-				DataUtils.byteArrayToHexString(blobId),
-				queryString));
-
-		HttpsURLConnection connection = (HttpsURLConnection)blobUrl.openConnection();
-		connection.setConnectTimeout(20*1000);
-		connection.setReadTimeout(20*1000);
-		connection.setDoOutput(false);
+		return this.getBlob(blobId, null, (connection, code) -> readBlob(connection, progressListener));
+	}
 
+	private byte[] readBlob(HttpURLConnection connection, ProgressListener progressListener) throws IOException {
 		InputStream inputStream = connection.getInputStream();
 		int contentLength = connection.getContentLength();
 		InputStreamLength isl = new InputStreamLength(inputStream, contentLength);
@@ -338,83 +729,544 @@ public class APIConnector {
 		return blob;
 	}
 
-	private Map<String,String> makeRequestParams() {
-		Map<String,String> postParams = new HashMap<String,String>();
+	/**
+	 * Download a file given its blob ID into a local file, resuming interrupted transfers.
+	 * Data is written to a partial file next to the target (target name + ".part"), which is
+	 * renamed to the target once complete. After a failure the download continues from the
+	 * end of the partial file with an HTTP Range request, after an exponentially growing
+	 * delay (see {@link #setDownloadRetryPolicy(int, long)}). A partial file left by an earlier
+	 * call is resumed as well. If the server does not support ranges, the download restarts
+	 * from the beginning. If the blob does not exist, the partial file is deleted; after any
+	 * other failure it is kept for a later call, and callers that give up must delete it.
+	 * <p>
+	 * With parallel downloads enabled (see {@link #setParallelDownload(int, long)}), large blobs
+	 * are split into byte ranges that are fetched over separate connections. Each range is
+	 * retried on its own; a parallel download that fails as a whole is not resumed.
+	 *
+	 * @param blobId The blob ID of the file
+	 * @param target The file to store the encrypted file data in
+	 * @param progressListener An object that will receive progress information, or null
+	 * @throws IOException if the download still fails after all retries
+	 */
+	public void downloadFile(byte[] blobId, File target, ProgressListener progressListener) throws IOException {
+		File partFile = new File(target.getPath() + ".part");
+
+		/* a partial file from an earlier sequential download is resumed instead */
+		if (this.parallelDownloads < 2 || partFile.exists()
+				|| !this.downloadParallel(blobId, target, progressListener)) {
+			Transfer transfer = new Transfer() {
+				@Override
+				public void resume() throws IOException {
+					downloadRange(blobId, partFile, partFile.length(), progressListener);
+				}
+
+				@Override
+				public long position() {
+					return partFile.length();
+				}
+			};
+			try {
+				this.transferWithRetries(transfer);
+			} catch (FileNotFoundException e) {
+				/* nothing left to resume */
+				Files.deleteIfExists(partFile.toPath());
+				throw e;
+			}
+
+			Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
 
-		postParams.put("from", apiIdentity);
-		postParams.put("secret", secret);
-		return postParams;
+		if (progressListener != null) {
+			progressListener.updateProgress(100);
+		}
 	}
 
-	private String doGet(URL url, Map<String,String> getParams) throws IOException {
+	/**
+	 * Configure retries of {@link #downloadFile(byte[], File, ProgressListener)}.
+	 *
+	 * @param retries number of retries after a failure without progress
+	 * @param initialBackoffMillis delay before the first retry; doubled for each further retry (max. 60 s)
+	 */
+	public void setDownloadRetryPolicy(int retries, long initialBackoffMillis) {
+		if (retries < 0 || initialBackoffMillis < 0) {
+			throw new IllegalArgumentException("Invalid retry policy");
+		}
+		this.downloadRetries = retries;
+		this.downloadBackoffMillis = initialBackoffMillis;
+	}
 
-		if (getParams != null) {
-			String queryString = makeUrlEncoded(getParams);
+	/**
+	 * Enable or disable parallel downloads in {@link #downloadFile(byte[], File, ProgressListener)}.
+	 * A blob is only split if each range is at least minPartSize bytes long, so small blobs
+	 * are still downloaded over a single connection.
+	 *
+	 * @param connections maximum number of concurrent connections per download; 1 disables parallel downloads
+	 * @param minPartSize minimum number of bytes per range
+	 */
+	public void setParallelDownload(int connections, long minPartSize) {
+		if (connections < 1 || minPartSize < 1) {
+			throw new IllegalArgumentException("Invalid parallel download settings");
+		}
+		this.parallelDownloads = connections;
+		this.parallelDownloadMinPartSize = minPartSize;
+	}
 
-			url = new URL(url.toString() + "?" + queryString);
+	/**
+	 * A download that can be continued after a failure.
+	 */
+	private interface Transfer {
+		/**
+		 * Continue the transfer from the current position until it is complete.
+		 */
+		void resume() throws IOException;
+
+		/**
+		 * @return number of bytes transferred so far
+		 */
+		long position();
+	}
+
+	/**
+	 * Run a transfer, resuming it with exponential backoff after failures. The retry
+	 * count is reset whenever an attempt made progress.
+	 */
+	private void transferWithRetries(Transfer transfer) throws IOException {
+		int retries = 0;
+		long backoff = this.downloadBackoffMillis;
+
+		while (true) {
+			long startPosition = transfer.position();
+			try {
+				transfer.resume();
+				return;
+			} catch (FileNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				if (transfer.position() > startPosition) {
+					/* the connection made progress, so start counting again */
+					retries = 0;
+					backoff = this.downloadBackoffMillis;
+				}
+				if (++retries > this.downloadRetries) {
+					throw e;
+				}
+
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("download interrupted");
+				}
+				backoff = Math.min(2 * backoff, 60 * 1000);
+			}
 		}
+	}
 
-		HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
-		connection.setDoOutput(false);
-		connection.setDoInput(true);
-		connection.setInstanceFollowRedirects(false);
-		connection.setRequestMethod("GET");
-		connection.setUseCaches(false);
+	/**
+	 * Download a blob in parallel ranges into "target.parts", which is preallocated to the
+	 * blob size and renamed to the target once all ranges are complete. The first range that
+	 * fails for good stops the others.
+	 *
+	 * @return false if the blob is too small or the server does not support ranges
+	 */
+	private boolean downloadParallel(byte[] blobId, File target, ProgressListener progressListener) throws IOException {
+		long total = this.probeLength(blobId);
+		long minPartSize = this.parallelDownloadMinPartSize;
+		if (total < 2 * minPartSize) {
+			return false;
+		}
 
-		InputStream is = connection.getInputStream();
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-		String response = br.readLine();
-		br.close();
+		int parts = (int) Math.min(this.parallelDownloads, total / minPartSize);
+		long partSize = (total + parts - 1) / parts;
+		File partsFile = new File(target.getPath() + ".parts");
+		AtomicLong received = new AtomicLong();
+		ExecutorService pool = Executors.newFixedThreadPool(parts);
+		boolean complete = false;
+
+		try (RandomAccessFile file = new RandomAccessFile(partsFile, "rw")) {
+			file.setLength(total);
+			FileChannel channel = file.getChannel();
+
+			RangeTransfer[] ranges = new RangeTransfer[parts];
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[parts];
+			CompletableFuture<Void> failure = new CompletableFuture<>();
+			for (int i = 0; i < parts; i++) {
+				RangeTransfer range = new RangeTransfer(blobId, channel, i * partSize,
+						Math.min(total, (i + 1) * partSize), total, received, progressListener);
+				ranges[i] = range;
+				futures[i] = CompletableFuture.runAsync(() -> {
+					try {
+						this.transferWithRetries(range);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}, pool).whenComplete((result, e) -> {
+					if (e != null) {
+						failure.completeExceptionally(e);
+					}
+				});
+			}
 
-		connection.disconnect();
+			try {
+				/* whichever range fails first ends the wait */
+				CompletableFuture.anyOf(CompletableFuture.allOf(futures), failure).join();
+			} catch (CompletionException e) {
+				/*
+				 * Stop the other ranges without waiting for them: they give up at their next read
+				 * (a stalled read ends with the read timeout) and do not retry once interrupted.
+				 * Writes after the file is closed below fail and are ignored.
+				 */
+				for (RangeTransfer range : ranges) {
+					range.abort();
+				}
+				pool.shutdownNow();
 
-		return response;
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw e;
+			}
+			complete = true;
+		} finally {
+			pool.shutdownNow();
+			if (!complete) {
+				Files.deleteIfExists(partsFile.toPath());
+			}
+		}
+
+		Files.move(partsFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return true;
 	}
 
-	private String doPost(URL url, Map<String,String> postParams) throws IOException {
+	/**
+	 * Determine the size of a blob with a single-byte range request.
+	 *
+	 * @return the blob size, or -1 if the server does not support ranges
+	 */
+	private long probeLength(byte[] blobId) throws IOException {
+		return this.getBlob(blobId, "bytes=0-0", (connection, code) -> {
+			if (code == 404) {
+				throw new FileNotFoundException("blob not found");
+			}
+			long[] range = code == 206 ? parseContentRange(connection.getHeaderField("Content-Range")) : null;
+			return range != null ? range[1] : -1L;
+		});
+	}
 
-		byte[] postData = makeUrlEncoded(postParams).getBytes("UTF-8");
+	/**
+	 * One range of a parallel download, written at its offset into the shared channel.
+	 */
+	private class RangeTransfer implements Transfer {
+		private final byte[] blobId;
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final long total;
+		private final AtomicLong received;
+		private final ProgressListener progressListener;
+		private volatile long position;
+		private volatile boolean aborted;
+
+		RangeTransfer(byte[] blobId, FileChannel channel, long start, long end, long total,
+					  AtomicLong received, ProgressListener progressListener) {
+			this.blobId = blobId;
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.total = total;
+			this.received = received;
+			this.progressListener = progressListener;
+		}
+
+		@Override
+		public void resume() throws IOException {
+			if (this.aborted) {
+				throw new InterruptedIOException("download aborted");
+			}
+			long first = this.start + this.position;
+			getBlob(this.blobId, "bytes=" + first + "-" + (this.end - 1), (connection, code) -> {
+				long offset = first;
+				if (code == 404) {
+					throw new FileNotFoundException("blob not found");
+				}
+				long[] range = code == 206 ? parseContentRange(connection.getHeaderField("Content-Range")) : null;
+				if (range == null || range[0] != offset || range[1] != this.total) {
+					throw new IOException("Unexpected response to range request: " + code);
+				}
+
+				try (InputStream is = connection.getInputStream()) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while (offset < this.end && (read = is.read(buffer, 0,
+							(int) Math.min(buffer.length, this.end - offset))) != -1) {
+						if (this.aborted) {
+							throw new InterruptedIOException("download aborted");
+						}
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+						while (data.hasRemaining()) {
+							offset += this.channel.write(data, offset);
+						}
+						this.position = offset - this.start;
+						this.reportProgress(read);
+					}
+				}
+
+				if (offset != this.end) {
+					throw new IOException("Unexpected end of range at " + offset + ", expected: " + this.end);
+				}
+				return null;
+			});
+		}
+
+		@Override
+		public long position() {
+			return this.position;
+		}
+
+		/**
+		 * Stop the transfer from another thread. It ends at its next read.
+		 */
+		void abort() {
+			this.aborted = true;
+		}
 
-		HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setInstanceFollowRedirects(false);
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-		connection.setRequestProperty("Charset", "utf-8");
-		connection.setRequestProperty("Content-Length", Integer.toString(postData.length));
-		connection.setUseCaches(false);
+		private void reportProgress(int read) {
+			long count = this.received.addAndGet(read);
+			if (this.progressListener != null) {
+				synchronized (this.progressListener) {
+					this.progressListener.updateProgress((int) (100 * count / this.total));
+				}
+			}
+		}
+	}
+
+	private <T> T getBlob(byte[] blobId, String range, Receiver<T> receiver) throws IOException {
+		return this.request(this.blobsEndpoint, this.blobsEndpoint.url(blobId), connection -> {
+			connection.setConnectTimeout(20*1000);
+			connection.setReadTimeout(20*1000);
+			connection.setDoOutput(false);
+			if (range != null) {
+				connection.setRequestProperty("Range", range);
+			}
+		}, receiver);
+	}
+
+	/**
+	 * Download a blob from the given offset to its end and append it to the partial file.
+	 *
+	 * @return the final length of the partial file
+	 */
+	private long downloadRange(byte[] blobId, File partFile, long startOffset, ProgressListener progressListener)
+			throws IOException {
+		String requestRange = startOffset > 0 ? "bytes=" + startOffset + "-" : null;
+		return this.getBlob(blobId, requestRange, (connection, code) -> {
+			long offset = startOffset;
+			long total;
+			if (code == 206) {
+				long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+				if (range == null || range[0] != offset) {
+					throw new IOException("Unexpected content range " + connection.getHeaderField("Content-Range"));
+				}
+				total = range[1];
+			} else if (code == 200) {
+				/* no range support, start over */
+				offset = 0;
+				total = connection.getContentLengthLong();
+			} else if (code == 416) {
+				long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+				if (range != null && range[1] == offset) {
+					/* the partial file is already complete */
+					return offset;
+				}
+				/* the partial file does not match the blob, start over */
+				Files.deleteIfExists(partFile.toPath());
+				throw new IOException("Invalid partial download");
+			} else if (code == 404) {
+				throw new FileNotFoundException("blob not found");
+			} else {
+				throw new IOException("Server returned HTTP response code: " + code);
+			}
+
+			try (InputStream is = connection.getInputStream();
+				 OutputStream os = new FileOutputStream(partFile, offset > 0)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
+					offset += read;
+
+					if (progressListener != null && total > 0) {
+						progressListener.updateProgress((int) (100 * offset / total));
+					}
+				}
+			}
+
+			if (total >= 0 && offset != total) {
+				throw new IOException("Unexpected read size. current: " + offset + ", expected: " + total);
+			}
+			return offset;
+		});
+	}
+
+	/**
+	 * Parse a Content-Range header of the form "bytes first-last/total", where the range may be "*".
+	 *
+	 * @return the first byte position (-1 if unsatisfied) and the total length, or null
+	 */
+	private static long[] parseContentRange(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return null;
+		}
+		int slash = contentRange.indexOf('/');
+		int dash = contentRange.indexOf('-');
+		try {
+			long total = Long.parseLong(contentRange.substring(slash + 1).trim());
+			long first = dash > 0 && dash < slash ? Long.parseLong(contentRange.substring(6, dash).trim()) : -1;
+			return new long[] {first, total};
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
 
-		OutputStream os = connection.getOutputStream();
-		os.write(postData);
-		os.flush();
-		os.close();
+	/**
+	 * @return the reusable form buffer of this thread, reset and prefilled with the credentials
+	 */
+	private UrlEncodedForm newForm() {
+		return formBuffer.get().reset().addEncoded(this.credentials);
+	}
 
-		InputStream is = connection.getInputStream();
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-		String response = br.readLine();
-		br.close();
+	private String doGet(Endpoint endpoint, URL url) throws IOException {
+		return this.request(endpoint, url, connection -> {
+			connection.setDoOutput(false);
+			connection.setDoInput(true);
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod("GET");
+			connection.setUseCaches(false);
+		}, (connection, code) -> {
+			InputStream is = connection.getInputStream();
+			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			String response = br.readLine();
+			br.close();
+			return response;
+		});
+	}
 
-		connection.disconnect();
+	private String doPost(Endpoint endpoint, UrlEncodedForm form) throws IOException {
+		URL url = endpoint.url();
+		Response response = this.post(endpoint, FORM_CONTENT_TYPE, form.getLength(), form::writeTo);
+		if (response.code == 404) {
+			throw new FileNotFoundException(url.toString());
+		} else if (response.code != 200) {
+			throw new IOException("Server returned HTTP response code: " + response.code);
+		}
+		return firstLine(response.body);
+	}
 
-		return response;
+	private Response post(Endpoint endpoint, String contentType, long contentLength, RequestBody body)
+			throws IOException {
+		return this.request(endpoint, endpoint.url(), connection -> {
+			connection.setDoOutput(true);
+			connection.setDoInput(true);
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setRequestProperty("Charset", "utf-8");
+			connection.setFixedLengthStreamingMode(contentLength);
+			connection.setUseCaches(false);
+
+			/* stream the body instead of letting the connection buffer a copy of it */
+			OutputStream os = connection.getOutputStream();
+			body.writeTo(os);
+			os.flush();
+			os.close();
+		}, (connection, code) -> {
+			String responseBody = null;
+			if (code == 200) {
+				try (InputStream is = connection.getInputStream()) {
+					responseBody = IOUtils.toString(is, StandardCharsets.UTF_8);
+				}
+			}
+			return new Response(code, responseBody);
+		});
 	}
 
-	private String makeUrlEncoded(Map<String,String> params) {
-		StringBuilder s = new StringBuilder();
+	/**
+	 * Run a request through the throttle of its endpoint. Requests rejected with HTTP 429 or
+	 * 503 are sent again (the sender must be able to repeat the request) after the delay the
+	 * server asked for, up to {@link #setThrottleRetries(int)} times; after that, the receiver
+	 * gets the rejection like any other response.
+	 */
+	private <T> T request(Endpoint endpoint, URL url, Sender sender, Receiver<T> receiver) throws IOException {
+		RequestThrottle throttle = endpoint.throttle;
+		for (int attempt = 0; ; attempt++) {
+			throttle.acquire();
+			long start = System.nanoTime();
+			HttpURLConnection connection = null;
+			try {
+				int code;
+				try {
+					connection = (HttpURLConnection) url.openConnection();
+					sender.send(connection);
+					code = connection.getResponseCode();
+				} catch (IOException e) {
+					throttle.onFailure(start);
+					throw e;
+				}
 
-		for (Map.Entry<String,String> param : params.entrySet()) {
-			if (s.length() > 0)
-				s.append('&');
+				if (code == 429 || code == 503) {
+					long delay = throttle.onThrottled(start, parseRetryAfter(connection.getHeaderField("Retry-After")));
+					if (attempt < this.throttleRetries && delay <= MAX_RETRY_AFTER_MILLIS) {
+						continue;
+					}
+				} else {
+					throttle.onResponse(start, code);
+				}
+				return receiver.receive(connection, code);
+			} finally {
+				throttle.release();
+				if (connection != null) {
+					connection.disconnect();
+				}
+			}
+		}
+	}
 
-			s.append(param.getKey());
-			s.append('=');
+	/**
+	 * Parse a Retry-After header, given either in seconds or as an HTTP date.
+	 *
+	 * @return the delay in milliseconds, or -1 if there is no valid header
+	 */
+	private static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException e) {
 			try {
-				s.append(URLEncoder.encode(param.getValue(), "UTF-8"));
-			} catch (UnsupportedEncodingException ignored) {}
+				ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+				return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+			} catch (DateTimeParseException e2) {
+				return -1;
+			}
 		}
+	}
 
-		return s.toString();
+	private static String firstLine(String body) {
+		if (body == null || body.isEmpty()) {
+			return null;
+		}
+		int end = 0;
+		while (end < body.length() && body.charAt(end) != '\n' && body.charAt(end) != '\r') {
+			end++;
+		}
+		return body.substring(0, end);
 	}
 
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
 }
@@ -27,19 +27,26 @@ package ch.threema.apitool;
 import ch.threema.apitool.exceptions.BadMessageException;
 import ch.threema.apitool.exceptions.DecryptionFailedException;
 import ch.threema.apitool.exceptions.MessageParseException;
-import ch.threema.apitool.exceptions.UnsupportedMessageTypeException;
 import ch.threema.apitool.messages.*;
 import ch.threema.apitool.results.EncryptResult;
 import ch.threema.apitool.results.UploadResult;
 import com.neilalexander.jnacl.NaCl;
-import org.apache.commons.io.EndianUtils;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 /**
  * Contains static methods to do various Threema cryptography related tasks.
@@ -53,7 +60,11 @@ public class CryptTool {
 	private static final byte[] FILE_NONCE = new byte[]{0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x01};
 	private static final byte[] FILE_THUMBNAIL_NONCE = new byte[]{0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x02};
 
+	/* maximum size of an end-to-end encrypted message box accepted by the API */
+	public static final int MAX_BOX_LENGTH = 4000;
+
 	private static final SecureRandom random = new SecureRandom();
+	private static final ThreadLocal<byte[]> messageBuffer = ThreadLocal.withInitial(() -> new byte[MAX_BOX_LENGTH]);
 
 	/**
 	 * Encrypt a text message.
@@ -119,8 +130,17 @@ public class CryptTool {
 
 
 	private static EncryptResult encryptMessage(ThreemaMessage threemaMessage, byte[] privateKey, byte[] publicKey) {
-		/* determine random amount of PKCS7 padding */
-		int padbytes = random.nextInt(254) + 1;
+		byte[] nonce = randomNonce();
+		byte[] buffer = messageBuffer.get();
+
+		try {
+			int boxLength = encryptMessage(threemaMessage, privateKey, publicKey, nonce, buffer);
+			return new EncryptResult(Arrays.copyOf(buffer, boxLength), null, nonce);
+		} catch (BufferOverflowException e) {
+			/* larger than a regular box, fall through to a dedicated buffer */
+		} catch (BadMessageException e) {
+			return null;
+		}
 
 		byte[] messageBytes;
 		try {
@@ -129,18 +149,58 @@ public class CryptTool {
 			return null;
 		}
 
-		/* prepend type byte (0x02) to message data */
-		byte[] data = new byte[1 + messageBytes.length + padbytes];
-		data[0] = (byte)threemaMessage.getTypeCode();
+		byte[] data = new byte[NaCl.BOXOVERHEAD + 1 + messageBytes.length + 255];
+		try {
+			int boxLength = encryptMessage(threemaMessage, privateKey, publicKey, nonce, data);
+			return new EncryptResult(Arrays.copyOf(data, boxLength), null, nonce);
+		} catch (BadMessageException e) {
+			return null;
+		}
+	}
 
-		System.arraycopy(messageBytes, 0, data, 1, messageBytes.length);
+	/**
+	 * Encrypt a message directly into the given buffer. The message is serialized at offset
+	 * {@link NaCl#BOXOVERHEAD}, padded and encrypted in place, so no intermediate arrays are
+	 * allocated. On return, the box occupies the first (returned length) bytes of the buffer.
+	 *
+	 * A buffer of {@link #MAX_BOX_LENGTH} bytes fits any message the API accepts and can be
+	 * reused for subsequent messages.
+	 *
+	 * @param threemaMessage the message to be encrypted
+	 * @param privateKey the private key of the sending ID
+	 * @param publicKey the public key of the receiving ID
+	 * @param nonce the nonce to use (see {@link #randomNonce()})
+	 * @param buffer the buffer that receives the box
+	 * @return the length of the box
+	 * @throws BufferOverflowException if the padded message does not fit into the buffer
+	 */
+	public static int encryptMessage(ThreemaMessage threemaMessage, byte[] privateKey, byte[] publicKey,
+									 byte[] nonce, byte[] buffer) throws BadMessageException {
+		if (publicKey.length != NaCl.PUBLICKEYBYTES || privateKey.length != NaCl.SECRETKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		/* determine random amount of PKCS7 padding */
+		int padbytes = random.nextInt(254) + 1;
+
+		/* type byte followed by the message data */
+		int pos = NaCl.BOXOVERHEAD;
+		if (buffer.length < pos + 1) {
+			throw new BufferOverflowException();
+		}
+		buffer[pos++] = (byte)threemaMessage.getTypeCode();
+		pos += MessageCodecRegistry.getDefault().encode(threemaMessage, buffer, pos);
 
 		/* append padding */
-		for (int i = 0; i < padbytes; i++) {
-			data[i + 1 + messageBytes.length] = (byte)padbytes;
+		if (buffer.length - pos < padbytes) {
+			throw new BufferOverflowException();
 		}
+		Arrays.fill(buffer, pos, pos + padbytes, (byte)padbytes);
+		pos += padbytes;
 
-		return encrypt(data, privateKey, publicKey);
+		/* the box is BOXOVERHEAD bytes longer than the plaintext, i.e. ends at pos */
+		new NaCl(privateKey, publicKey).encryptInplace(buffer, pos - NaCl.BOXOVERHEAD, nonce);
+		return pos;
 	}
 
 	/**
@@ -167,6 +227,40 @@ public class CryptTool {
 		return NaCl.symmetricDecryptData(fileData, secret, FILE_NONCE);
 	}
 
+	/**
+	 * Decrypt symmetrically encrypted file data from a file, without reading it onto the heap.
+	 * Both files are memory-mapped. The output file is only kept if decryption succeeds.
+	 *
+	 * @param input the file with the encrypted data
+	 * @param output the file to write the decrypted data to (replaced if it exists)
+	 * @param secret The symmetric key that was used for encryption
+	 * @return true if decryption succeeded
+	 * @throws IOException if a file cannot be read/written
+	 */
+	public static boolean decryptFileData(Path input, Path output, byte[] secret) throws IOException {
+		boolean success = false;
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = in.size();
+			if (length < NaCl.BOXOVERHEAD) {
+				return false;
+			}
+
+			MappedByteBuffer inBuffer = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			MappedByteBuffer outBuffer = out.map(FileChannel.MapMode.READ_WRITE, 0, length - NaCl.BOXOVERHEAD);
+			success = NaCl.symmetricDecryptData(inBuffer, outBuffer, secret, FILE_NONCE);
+			if (success) {
+				outBuffer.force();
+			}
+			return success;
+		} finally {
+			if (!success) {
+				Files.deleteIfExists(output);
+			}
+		}
+	}
+
 	/**
 	 * Decrypt symmetrically encrypted file thumbnail data.
 	 *
@@ -185,7 +279,8 @@ public class CryptTool {
 	 * @param recipientPrivateKey the private key of the receiving ID
 	 * @param senderPublicKey the public key of the sending ID
 	 * @param nonce the nonce that was used for the encryption
-	 * @return decrypted message (text or delivery receipt)
+	 * @return decrypted message, decoded by the codec registered in the default
+	 *         {@link MessageCodecRegistry} for its type, or an {@link UnknownMessage}
 	 */
 	public static ThreemaMessage decryptMessage(byte[] box,  byte[] recipientPrivateKey, byte[] senderPublicKey, byte[] nonce) throws MessageParseException {
 
@@ -193,70 +288,26 @@ public class CryptTool {
 		if (data == null)
 			throw new DecryptionFailedException();
 
-		/* remove padding */
-		int padbytes = data[data.length-1] & 0xFF;
-		int realDataLength = data.length - padbytes;
-		if (realDataLength < 1)
-			throw new BadMessageException();     /* Bad message padding */
-
-		/* first byte of data is type */
-		int type = data[0] & 0xFF;
-
-		switch (type) {
-			case TextMessage.TYPE_CODE:
-				/* Text message */
-				if (realDataLength < 2)
-					throw new BadMessageException();
-
-				try {
-					return new TextMessage(new String(data, 1, realDataLength - 1, "UTF-8"));
-				} catch (UnsupportedEncodingException e) {
-					/* should never happen, UTF-8 is always supported */
-					throw new RuntimeException(e);
-				}
-
-			case DeliveryReceipt.TYPE_CODE:
-				/* Delivery receipt */
-				if (realDataLength < MessageId.MESSAGE_ID_LEN + 2 || ((realDataLength - 2) % MessageId.MESSAGE_ID_LEN) != 0)
-					throw new BadMessageException();
-
-				DeliveryReceipt.Type receiptType = DeliveryReceipt.Type.get(data[1] & 0xFF);
-				if (receiptType == null)
-					throw new BadMessageException();
-
-				List<MessageId> messageIds = new LinkedList<MessageId>();
-
-				int numMsgIds = ((realDataLength - 2) / MessageId.MESSAGE_ID_LEN);
-				for (int i = 0; i < numMsgIds; i++) {
-					messageIds.add(new MessageId(data, 2 + i*MessageId.MESSAGE_ID_LEN));
-				}
-
-				return new DeliveryReceipt(receiptType, messageIds);
-
-			case ImageMessage.TYPE_CODE:
-				if(realDataLength != (1 + ThreemaMessage.BLOB_ID_LEN + 4 + NaCl.NONCEBYTES)) {
-					System.out.println(String.valueOf(realDataLength));
-					System.out.println(String.valueOf(1 + ThreemaMessage.BLOB_ID_LEN + 4 + NaCl.NONCEBYTES));
-					throw new BadMessageException();
-				}
-				byte[] blobId = new byte[ThreemaMessage.BLOB_ID_LEN];
-				System.arraycopy(data, 1, blobId, 0, ThreemaMessage.BLOB_ID_LEN);
-				int size = EndianUtils.readSwappedInteger(data, 1 + ThreemaMessage.BLOB_ID_LEN);
-				byte[] fileNonce = new byte[NaCl.NONCEBYTES];
-				System.arraycopy(data, 1 + 4 + ThreemaMessage.BLOB_ID_LEN, fileNonce, 0, nonce.length);
-
-				return new ImageMessage(blobId, size, fileNonce);
-
-			case FileMessage.TYPE_CODE:
-				try {
-					return FileMessage.fromString(new String(data, 1, realDataLength-1, "UTF-8"));
-				} catch (UnsupportedEncodingException e) {
-					throw new BadMessageException();
-				}
-
-			default:
-				throw new UnsupportedMessageTypeException();
-		}
+		return MessageView.wrap(data, data.length).toMessage();
+	}
+
+	/**
+	 * Decrypt a message in place and return a lightweight view of it. The box array is
+	 * overwritten with the decrypted data and backs the returned view, so no copy of the
+	 * message is made; fields are decoded only when accessed.
+	 *
+	 * @param box the box to be decrypted (overwritten)
+	 * @param recipientPrivateKey the private key of the receiving ID
+	 * @param senderPublicKey the public key of the sending ID
+	 * @param nonce the nonce that was used for the encryption
+	 * @return view of the decrypted message
+	 */
+	public static MessageView decryptMessageView(byte[] box, byte[] recipientPrivateKey, byte[] senderPublicKey, byte[] nonce) throws MessageParseException {
+
+		if (!new NaCl(recipientPrivateKey, senderPublicKey).decryptInplace(box, box.length, nonce))
+			throw new DecryptionFailedException();
+
+		return MessageView.wrap(box, box.length - NaCl.BOXOVERHEAD);
 	}
 
 	/**
@@ -321,6 +372,71 @@ public class CryptTool {
 		return new EncryptResult(data, encryptionKey, FILE_THUMBNAIL_NONCE);
 	}
 
+	/**
+	 * Encrypt a file using NaCl asymmetric encryption with a random nonce, without reading it onto the heap.
+	 * Both files are memory-mapped, and the encrypted data is written to the output file.
+	 *
+	 * @param input the file to be encrypted
+	 * @param output the file to write the encrypted data to (replaced if it exists)
+	 * @param privateKey the private key of the sending ID
+	 * @param publicKey the public key of the receiving ID
+	 * @return the encryption result (without data, see {@link EncryptResult#getResult()})
+	 * @throws IOException if a file cannot be read/written, or the input is larger than 2 GB
+	 */
+	public static EncryptResult encrypt(Path input, Path output, byte[] privateKey, byte[] publicKey) throws IOException {
+		if (publicKey.length != NaCl.PUBLICKEYBYTES || privateKey.length != NaCl.SECRETKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		byte[] nonce = randomNonce();
+		NaCl naCl = new NaCl(privateKey, publicKey);
+		int size = encryptMapped(input, output, (in, out) -> naCl.encrypt(in, out, nonce));
+		return new EncryptResult(size, null, nonce);
+	}
+
+	/**
+	 * Encrypt file data using NaCl symmetric encryption with a random key, without reading it onto the heap.
+	 * Both files are memory-mapped, and the encrypted data is written to the output file.
+	 *
+	 * @param input the file to be encrypted
+	 * @param output the file to write the encrypted data to (replaced if it exists)
+	 * @return the encryption result including the random key (without data, see {@link EncryptResult#getResult()})
+	 * @throws IOException if a file cannot be read/written, or the input is larger than 2 GB
+	 */
+	public static EncryptResult encryptFileData(Path input, Path output) throws IOException {
+		SecureRandom rnd = new SecureRandom();
+		byte[] encryptionKey = new byte[NaCl.SYMMKEYBYTES];
+		rnd.nextBytes(encryptionKey);
+
+		int size = encryptMapped(input, output,
+				(in, out) -> NaCl.symmetricEncryptData(in, out, encryptionKey, FILE_NONCE));
+		return new EncryptResult(size, encryptionKey, FILE_NONCE);
+	}
+
+	/**
+	 * Map the input file and an output file of the encrypted size, and run the cipher on them.
+	 *
+	 * @return size of the encrypted data
+	 */
+	private static int encryptMapped(Path input, Path output, BiConsumer<ByteBuffer, ByteBuffer> cipher)
+			throws IOException {
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = in.size();
+			if (length > Integer.MAX_VALUE - NaCl.BOXOVERHEAD) {
+				throw new IOException("file too large");
+			}
+
+			int size = (int) length + NaCl.BOXOVERHEAD;
+			MappedByteBuffer inBuffer = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			MappedByteBuffer outBuffer = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			cipher.accept(inBuffer, outBuffer);
+			outBuffer.force();
+			return size;
+		}
+	}
+
 	/**
 	 * Hashes an email address for identity lookup.
 	 *
@@ -357,6 +473,21 @@ public class CryptTool {
 		}
 	}
 
+	/**
+	 * Compute the SHA-256 fingerprint of a public key.
+	 *
+	 * @param publicKey the public key
+	 * @return the raw fingerprint (32 bytes)
+	 */
+	public static byte[] publicKeyFingerprint(byte[] publicKey) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(publicKey);
+		} catch (NoSuchAlgorithmException e) {
+			/* should never happen, SHA-256 is always supported */
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Generate a random nonce.
 	 *
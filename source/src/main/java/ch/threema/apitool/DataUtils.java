@@ -27,22 +27,136 @@ package ch.threema.apitool;
 import ch.threema.apitool.exceptions.InvalidKeyException;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class DataUtils {
 
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+	private static final byte[] HEX_BYTES = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/* value of each ASCII hex digit, -1 for all other characters */
+	private static final byte[] HEX_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+
 	/**
-	 * Convert a string in hexadecimal representation to a byte array.
+	 * Convert a string in hexadecimal representation to a byte array. Non-hex characters
+	 * (e.g. whitespace or separators) are ignored.
 	 *
 	 * @param s hex string
 	 * @return decoded byte array
 	 */
 	public static byte[] hexStringToByteArray(String s) {
-		String sc = s.replaceAll("[^0-9a-fA-F]", "");
-		int len = sc.length();
-		byte[] data = new byte[len / 2];
-		for (int i = 0; i < len; i += 2) {
-			data[i / 2] = (byte) ((Character.digit(sc.charAt(i), 16) << 4)
-					+ Character.digit(sc.charAt(i+1), 16));
+		return decodeHexLenient(s, 0, s.length());
+	}
+
+	/**
+	 * Get the value of a hex digit.
+	 *
+	 * @param c the character (or ASCII byte value)
+	 * @return the value 0-15, or -1 if c is not a hex digit
+	 */
+	public static int hexValue(int c) {
+		return c >= 0 && c < 128 ? HEX_VALUES[c] : -1;
+	}
+
+	/**
+	 * Decode a hex string strictly: it must consist of an even number of hex digits only.
+	 *
+	 * @param s the string containing the hex data
+	 * @param start index of the first hex digit
+	 * @param end index after the last hex digit
+	 * @return decoded byte array
+	 * @throws IllegalArgumentException if the input is not valid hex
+	 */
+	public static byte[] decodeHex(CharSequence s, int start, int end) {
+		if (((end - start) & 1) != 0) {
+			throw new IllegalArgumentException("Odd hex string length");
+		}
+
+		byte[] data = new byte[(end - start) / 2];
+		for (int i = 0; i < data.length; i++) {
+			int hi = hexValue(s.charAt(start + 2 * i));
+			int lo = hexValue(s.charAt(start + 2 * i + 1));
+			if ((hi | lo) < 0) {
+				throw new IllegalArgumentException("Invalid hex character");
+			}
+			data[i] = (byte) ((hi << 4) | lo);
+		}
+		return data;
+	}
+
+	/**
+	 * Decode ASCII hex digits from a byte array strictly into another byte array.
+	 *
+	 * @param hex the buffer containing the hex digits
+	 * @param start index of the first hex digit
+	 * @param end index after the last hex digit
+	 * @param out destination buffer, must have room for (end - start) / 2 bytes
+	 * @param offset position in the destination buffer
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the input is not valid hex
+	 */
+	public static int decodeHex(byte[] hex, int start, int end, byte[] out, int offset) {
+		if (((end - start) & 1) != 0) {
+			throw new IllegalArgumentException("Odd hex string length");
+		}
+
+		int length = (end - start) / 2;
+		for (int i = 0; i < length; i++) {
+			int hi = hexValue(hex[start + 2 * i]);
+			int lo = hexValue(hex[start + 2 * i + 1]);
+			if ((hi | lo) < 0) {
+				throw new IllegalArgumentException("Invalid hex character");
+			}
+			out[offset + i] = (byte) ((hi << 4) | lo);
+		}
+		return length;
+	}
+
+	/**
+	 * Decode a hex string leniently, skipping all non-hex characters. A trailing unpaired
+	 * digit is ignored.
+	 *
+	 * @param s the string containing the hex data
+	 * @param start index to start decoding at
+	 * @param end index to stop decoding at
+	 * @return decoded byte array
+	 */
+	public static byte[] decodeHexLenient(CharSequence s, int start, int end) {
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			if (hexValue(s.charAt(i)) >= 0) {
+				digits++;
+			}
+		}
+
+		byte[] data = new byte[digits / 2];
+		int pos = 0;
+		int hi = -1;
+		for (int i = start; i < end && pos < data.length; i++) {
+			int d = hexValue(s.charAt(i));
+			if (d < 0) {
+				continue;
+			}
+			if (hi < 0) {
+				hi = d;
+			} else {
+				data[pos++] = (byte) ((hi << 4) | d);
+				hi = -1;
+			}
 		}
 		return data;
 	}
@@ -54,17 +168,174 @@ public class DataUtils {
 	 * @return hex encoded string
 	 */
 	public static String byteArrayToHexString(byte[] bytes) {
-		final char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
-		char[] hexChars = new char[bytes.length * 2];
-		int v;
-		for (int j = 0; j < bytes.length; j++) {
-			v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+		return byteArrayToHexString(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Convert a part of a byte array into a hexadecimal string (lowercase).
+	 *
+	 * @param bytes the bytes to encode
+	 * @param offset index of the first byte to encode
+	 * @param length number of bytes to encode
+	 * @return hex encoded string
+	 */
+	public static String byteArrayToHexString(byte[] bytes, int offset, int length) {
+		char[] hexChars = new char[length * 2];
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			hexChars[j * 2] = HEX_CHARS[v >>> 4];
+			hexChars[j * 2 + 1] = HEX_CHARS[v & 0x0F];
 		}
 		return new String(hexChars);
 	}
 
+	/**
+	 * Append bytes in hexadecimal representation (lowercase).
+	 *
+	 * @param sb the builder to append to
+	 * @param bytes the bytes to encode
+	 * @param offset index of the first byte to encode
+	 * @param length number of bytes to encode
+	 * @return the builder
+	 */
+	public static StringBuilder appendHex(StringBuilder sb, byte[] bytes, int offset, int length) {
+		sb.ensureCapacity(sb.length() + 2 * length);
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			sb.append(HEX_CHARS[v >>> 4]).append(HEX_CHARS[v & 0x0F]);
+		}
+		return sb;
+	}
+
+	/**
+	 * Append the 8 big-endian bytes of a long in hexadecimal representation (lowercase).
+	 *
+	 * @param sb the builder to append to
+	 * @param value the value to encode
+	 * @return the builder
+	 */
+	public static StringBuilder appendHex(StringBuilder sb, long value) {
+		sb.ensureCapacity(sb.length() + 16);
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			sb.append(HEX_CHARS[(int) (value >>> shift) & 0x0F]);
+		}
+		return sb;
+	}
+
+	/**
+	 * Encode bytes as ASCII hex digits (lowercase) into a byte array.
+	 *
+	 * @param bytes the bytes to encode
+	 * @param offset index of the first byte to encode
+	 * @param length number of bytes to encode
+	 * @param out destination buffer, must have room for 2 * length bytes
+	 * @param outOffset position in the destination buffer
+	 * @return number of bytes written
+	 */
+	public static int encodeHex(byte[] bytes, int offset, int length, byte[] out, int outOffset) {
+		if (2 * length > out.length - outOffset) {
+			throw new BufferOverflowException();
+		}
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			out[outOffset + 2 * j] = HEX_BYTES[v >>> 4];
+			out[outOffset + 2 * j + 1] = HEX_BYTES[v & 0x0F];
+		}
+		return 2 * length;
+	}
+
+	/**
+	 * Encode bytes as ASCII hex digits (lowercase) into a buffer, at its current position.
+	 *
+	 * @param bytes the bytes to encode
+	 * @param offset index of the first byte to encode
+	 * @param length number of bytes to encode
+	 * @param out destination buffer
+	 * @throws BufferOverflowException if the buffer has less than 2 * length bytes remaining
+	 */
+	public static void encodeHex(byte[] bytes, int offset, int length, ByteBuffer out) {
+		if (2 * length > out.remaining()) {
+			throw new BufferOverflowException();
+		}
+
+		if (out.hasArray()) {
+			int written = encodeHex(bytes, offset, length, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + written);
+			return;
+		}
+
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			out.put(HEX_BYTES[v >>> 4]);
+			out.put(HEX_BYTES[v & 0x0F]);
+		}
+	}
+
+	/**
+	 * Compute the length of a string in UTF-8 encoding without encoding it.
+	 * Unpaired surrogates count as one byte, as they are replaced by '?' when encoding.
+	 *
+	 * @param s the string
+	 * @return number of UTF-8 bytes
+	 */
+	public static int utf8Length(CharSequence s) {
+		int len = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				len += 1;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Encode a string as UTF-8 directly into a buffer, producing the same bytes as
+	 * {@code s.getBytes("UTF-8")}. The buffer must have room for
+	 * {@link #utf8Length(CharSequence)} bytes.
+	 *
+	 * @param s the string
+	 * @param buffer destination buffer
+	 * @param offset position in the buffer to start writing at
+	 * @return number of bytes written
+	 */
+	public static int encodeUtf8(CharSequence s, byte[] buffer, int offset) {
+		int pos = offset;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buffer[pos++] = (byte) '?';
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos - offset;
+	}
+
 	/**
 	 * Read hexadecimal data from a file and return it as a byte array.
 	 *
@@ -65,11 +65,15 @@ public class Key {
         String keyContent = keyArray[1];
 
         // Is this a valid hex key?
-        if (!keyContent.matches("[0-9a-fA-F]{64}")) {
+        if (keyContent.length() != 64) {
             throw new InvalidKeyException("Does not contain a valid key");
         }
 
-        return new Key(keyType, DataUtils.hexStringToByteArray(keyContent));
+        try {
+            return new Key(keyType, DataUtils.decodeHex(keyContent, 0, keyContent.length()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException("Does not contain a valid key");
+        }
     }
 
     /**
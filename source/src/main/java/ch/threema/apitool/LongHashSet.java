@@ -0,0 +1,216 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive long values using open addressing with linear probing. Avoids the
+ * per-element object overhead of a {@code HashSet<Long>}. Not thread-safe.
+ */
+public class LongHashSet {
+	private static final int MIN_CAPACITY = 16;
+
+	/* 0 marks an empty slot; the value 0 itself is tracked separately */
+	private long[] table;
+	private int mask;
+	private int size;
+	private boolean containsZero;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of elements the set should hold without resizing
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		this.table = new long[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @param value the value to add
+	 * @return true if the value was not yet contained in the set
+	 */
+	public boolean add(long value) {
+		if (value == 0) {
+			if (this.containsZero) {
+				return false;
+			}
+			this.containsZero = true;
+			this.size++;
+			return true;
+		}
+
+		int i = slot(value, this.mask);
+		long cur;
+		while ((cur = this.table[i]) != 0) {
+			if (cur == value) {
+				return false;
+			}
+			i = (i + 1) & this.mask;
+		}
+		this.table[i] = value;
+		this.size++;
+
+		if (this.size * 2 > this.table.length) {
+			this.resize(this.table.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * @param value the value to look for
+	 * @return true if the value is contained in the set
+	 */
+	public boolean contains(long value) {
+		if (value == 0) {
+			return this.containsZero;
+		}
+
+		int i = slot(value, this.mask);
+		long cur;
+		while ((cur = this.table[i]) != 0) {
+			if (cur == value) {
+				return true;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove a value from the set.
+	 *
+	 * @param value the value to remove
+	 * @return true if the value was contained in the set
+	 */
+	public boolean remove(long value) {
+		if (value == 0) {
+			if (!this.containsZero) {
+				return false;
+			}
+			this.containsZero = false;
+			this.size--;
+			return true;
+		}
+
+		int i = slot(value, this.mask);
+		long cur;
+		while ((cur = this.table[i]) != 0) {
+			if (cur == value) {
+				this.shiftBack(i);
+				this.size--;
+				return true;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of values in the set
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Remove all values, keeping the allocated table.
+	 */
+	public void clear() {
+		Arrays.fill(this.table, 0);
+		this.containsZero = false;
+		this.size = 0;
+	}
+
+	/**
+	 * @return all values in the set, in no particular order
+	 */
+	public long[] toArray() {
+		long[] values = new long[this.size];
+		int n = 0;
+		if (this.containsZero) {
+			values[n++] = 0;
+		}
+		for (long v : this.table) {
+			if (v != 0) {
+				values[n++] = v;
+			}
+		}
+		return values;
+	}
+
+	/* close the gap at the given slot so that probe sequences stay intact */
+	private void shiftBack(int gap) {
+		int i = gap;
+		while (true) {
+			i = (i + 1) & this.mask;
+			long cur = this.table[i];
+			if (cur == 0) {
+				break;
+			}
+			int home = slot(cur, this.mask);
+			/* move cur into the gap if its home slot is not between gap (exclusive) and i (inclusive) */
+			if (((i - home) & this.mask) >= ((i - gap) & this.mask)) {
+				this.table[gap] = cur;
+				gap = i;
+			}
+		}
+		this.table[gap] = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] old = this.table;
+		this.table = new long[capacity];
+		this.mask = capacity - 1;
+		for (long v : old) {
+			if (v != 0) {
+				int i = slot(v, this.mask);
+				while (this.table[i] != 0) {
+					i = (i + 1) & this.mask;
+				}
+				this.table[i] = v;
+			}
+		}
+	}
+
+	private static int slot(long value, int mask) {
+		/* message IDs are random, but mix anyway to be safe with sequential values */
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
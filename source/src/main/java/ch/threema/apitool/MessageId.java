@@ -25,35 +25,121 @@
 package ch.threema.apitool;
 
 /**
- * Encapsulates the 8-byte message IDs that Threema uses.
+ * Encapsulates the 8-byte message IDs that Threema uses. The ID is held as a primitive
+ * long (big-endian interpretation of the 8 bytes), so it can also be stored in primitive
+ * collections such as {@link LongHashSet} without wrapping.
  */
 public class MessageId {
 
 	public static final int MESSAGE_ID_LEN = 8;
 
-	private final byte[] messageId;
+	private final long messageId;
 
 	public MessageId(byte[] messageId) {
 		if (messageId.length != MESSAGE_ID_LEN)
 			throw new IllegalArgumentException("Bad message ID length");
 
-		this.messageId = messageId;
+		this.messageId = toLong(messageId, 0);
 	}
 
 	public MessageId(byte[] data, int offset) {
 		if ((offset + MESSAGE_ID_LEN) > data.length)
 			throw new IllegalArgumentException("Bad message ID buffer length");
 
-		this.messageId = new byte[MESSAGE_ID_LEN];
-		System.arraycopy(data, offset, this.messageId, 0, MESSAGE_ID_LEN);
+		this.messageId = toLong(data, offset);
+	}
+
+	private MessageId(long messageId) {
+		this.messageId = messageId;
+	}
+
+	public static MessageId fromLong(long messageId) {
+		return new MessageId(messageId);
+	}
+
+	/**
+	 * Parse a message ID from its 16 character hex representation, as returned by
+	 * {@link APIConnector#sendE2EMessage(String, byte[], byte[])}.
+	 */
+	public static MessageId fromHex(CharSequence hex) {
+		return new MessageId(parseHex(hex));
 	}
 
+	/**
+	 * @return a copy of the 8 ID bytes
+	 */
 	public byte[] getMessageId() {
+		byte[] bytes = new byte[MESSAGE_ID_LEN];
+		this.write(bytes, 0);
+		return bytes;
+	}
+
+	public long toLong() {
 		return messageId;
 	}
 
+	/**
+	 * Write the 8 ID bytes into a buffer.
+	 */
+	public void write(byte[] buffer, int offset) {
+		for (int i = MESSAGE_ID_LEN - 1; i >= 0; i--) {
+			buffer[offset + i] = (byte) (messageId >>> (8 * (MESSAGE_ID_LEN - 1 - i)));
+		}
+	}
+
+	/**
+	 * Read 8 bytes as a big-endian message ID.
+	 */
+	public static long toLong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 0; i < MESSAGE_ID_LEN; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a 16 character hex message ID without allocating.
+	 *
+	 * @throws IllegalArgumentException if the input is not a valid message ID
+	 */
+	public static long parseHex(CharSequence hex) {
+		if (hex.length() != 2 * MESSAGE_ID_LEN)
+			throw new IllegalArgumentException("Bad message ID length");
+
+		long value = 0;
+		for (int i = 0; i < hex.length(); i++) {
+			int d = DataUtils.hexValue(hex.charAt(i));
+			if (d < 0)
+				throw new IllegalArgumentException("Bad message ID");
+			value = (value << 4) | d;
+		}
+		return value;
+	}
+
+	/**
+	 * Append the 16 character hex representation of a message ID.
+	 */
+	public static StringBuilder appendHex(long messageId, StringBuilder sb) {
+		return DataUtils.appendHex(sb, messageId);
+	}
+
+	public static String toHexString(long messageId) {
+		return DataUtils.appendHex(new StringBuilder(2 * MESSAGE_ID_LEN), messageId).toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof MessageId && ((MessageId) o).messageId == messageId;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(messageId);
+	}
+
 	@Override
 	public String toString() {
-		return DataUtils.byteArrayToHexString(messageId);
+		return toHexString(messageId);
 	}
 }
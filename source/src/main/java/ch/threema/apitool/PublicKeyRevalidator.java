@@ -0,0 +1,185 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically re-fetches the public keys held in a {@link PublicKeyStore} from the
+ * server and reports keys that have changed since they were first seen (pinned).
+ *
+ * Revalidation runs on a background thread at a fixed rate of one key per interval,
+ * so {@link APIConnector#lookupKey(String)} and the send path never wait for it.
+ * Pinned keys are compared by their SHA-256 fingerprint.
+ */
+public class PublicKeyRevalidator {
+	private static final byte[] NO_KEY = new byte[0];
+
+	public interface Listener {
+
+		/**
+		 * Called when the server returns a different public key than the pinned one. If the
+		 * pinned key is kept, this is called once per change, not on every revalidation.
+		 *
+		 * @param threemaId the ID whose key has changed
+		 * @param oldFingerprint SHA-256 fingerprint of the pinned key
+		 * @param newFingerprint SHA-256 fingerprint of the new key, or null if the ID no longer exists
+		 * @param newPublicKey the new public key, or null if the ID no longer exists
+		 */
+		void onPublicKeyChanged(String threemaId, byte[] oldFingerprint, byte[] newFingerprint, byte[] newPublicKey);
+
+		/**
+		 * Called when a key could not be revalidated. It is checked again in the next sweep.
+		 *
+		 * @param threemaId the ID whose key was being revalidated
+		 * @param e the cause
+		 */
+		default void onError(String threemaId, Exception e) {
+		}
+	}
+
+	private final APIConnector apiConnector;
+	private final PublicKeyStore publicKeyStore;
+	private final Listener listener;
+	private final Map<String, byte[]> pinnedFingerprints = new ConcurrentHashMap<>();
+	/* fingerprint last reported to the listener per ID (NO_KEY if the ID no longer existed) */
+	private final Map<String, byte[]> reportedFingerprints = new ConcurrentHashMap<>();
+	private volatile boolean updateStore = false;
+
+	private ScheduledExecutorService executor;
+	private Iterator<String> sweep;
+
+	public PublicKeyRevalidator(APIConnector apiConnector, Listener listener) {
+		this.apiConnector = apiConnector;
+		this.publicKeyStore = apiConnector.getPublicKeyStore();
+		this.listener = listener;
+	}
+
+	/**
+	 * Whether a changed key should replace the pinned key in the public key store
+	 * (default: false, i.e. keep the pinned key and only notify the listener).
+	 */
+	public void setUpdateStore(boolean updateStore) {
+		this.updateStore = updateStore;
+	}
+
+	/**
+	 * Start revalidating cached keys in the background, one key per interval.
+	 *
+	 * @param interval time between two key fetches
+	 * @param unit time unit of the interval
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (this.executor != null) {
+			throw new IllegalStateException("Revalidation already started");
+		}
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PublicKeyRevalidator");
+			t.setDaemon(true);
+			return t;
+		});
+		this.executor.scheduleAtFixedRate(this::revalidateNext, interval, interval, unit);
+	}
+
+	/**
+	 * Stop background revalidation.
+	 */
+	public synchronized void stop() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Re-fetch the public key of the given ID and compare it with the pinned key. The
+	 * key that is currently in the store gets pinned if the ID has not been seen before.
+	 *
+	 * @param threemaId the ID to revalidate
+	 * @return true if the key is unchanged, false if it has changed or no longer exists
+	 * @throws IOException if a communication or server error occurs
+	 */
+	public boolean revalidate(String threemaId) throws IOException {
+		byte[] pinned = this.pinnedFingerprints.get(threemaId);
+		if (pinned == null) {
+			byte[] storedKey = this.publicKeyStore.getPublicKey(threemaId);
+			if (storedKey == null) {
+				return true;
+			}
+			pinned = CryptTool.publicKeyFingerprint(storedKey);
+			this.pinnedFingerprints.put(threemaId, pinned);
+		}
+
+		byte[] fetchedKey = this.apiConnector.fetchPublicKey(threemaId);
+		byte[] fetched = fetchedKey != null ? CryptTool.publicKeyFingerprint(fetchedKey) : null;
+
+		if (fetched != null && MessageDigest.isEqual(pinned, fetched)) {
+			this.reportedFingerprints.remove(threemaId);
+			return true;
+		}
+
+		if (fetched != null && this.updateStore) {
+			this.publicKeyStore.setPublicKey(threemaId, fetchedKey);
+			this.pinnedFingerprints.put(threemaId, fetched);
+		}
+
+		/* with the pinned key kept, report each change only once */
+		byte[] current = fetched != null ? fetched : NO_KEY;
+		byte[] reported = this.reportedFingerprints.put(threemaId, current);
+		if (this.listener != null && (reported == null || !MessageDigest.isEqual(reported, current))) {
+			this.listener.onPublicKeyChanged(threemaId, pinned, fetched, fetchedKey);
+		}
+		return false;
+	}
+
+	private void revalidateNext() {
+		if (this.sweep == null || !this.sweep.hasNext()) {
+			/* start a new sweep over the current cache contents */
+			this.sweep = new ArrayList<>(this.publicKeyStore.getCachedThreemaIds()).iterator();
+			if (!this.sweep.hasNext()) {
+				return;
+			}
+		}
+
+		String threemaId = this.sweep.next();
+		try {
+			this.revalidate(threemaId);
+		} catch (IOException | RuntimeException e) {
+			/* do not let a single failure cancel the scheduled task */
+			if (this.listener != null) {
+				this.listener.onError(threemaId, e);
+			}
+		}
+	}
+}
@@ -25,15 +25,34 @@
 package ch.threema.apitool;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Stores and caches public keys for Threema users. Extend this class to provide your
  * own storage implementation, e.g. in a file or database.
+ *
+ * By default every new key is written to the underlying store immediately. Call
+ * {@link #enableWriteBehind(int, long, TimeUnit)} to queue writes instead and flush
+ * them in batches through {@link #saveAll(Map)}.
  */
 public abstract class PublicKeyStore {
 	private final Map<String, byte[]> cache = new HashMap<>();
 
+	/* write-behind state; saveLock serializes batch writes, pendingLock guards the queue */
+	private final Object saveLock = new Object();
+	private final Object pendingLock = new Object();
+	private Map<String, byte[]> pending = new LinkedHashMap<>();
+	private volatile int writeBehindBatchSize = 0;
+	private volatile ScheduledExecutorService writeBehindExecutor;
+	private Thread shutdownHook;
+
 	/**
 	 * Get the public key for a given Threema ID. The cache is checked first; if it
 	 * is not found in the cache, fetchPublicKey() is called.
@@ -64,8 +83,152 @@ public abstract class PublicKeyStore {
 		if(publicKey != null) {
 			synchronized (this.cache) {
 				this.cache.put(threemaId, publicKey);
-				this.save(threemaId, publicKey);
 			}
+			this.persist(threemaId, publicKey);
+		}
+	}
+
+	/**
+	 * Get the Threema IDs whose public keys are currently held in the cache.
+	 *
+	 * @return A snapshot of the cached Threema IDs
+	 */
+	public final Set<String> getCachedThreemaIds() {
+		synchronized (this.cache) {
+			Set<String> ids = new HashSet<>();
+			for (Map.Entry<String, byte[]> entry : this.cache.entrySet()) {
+				if (entry.getValue() != null) {
+					ids.add(entry.getKey());
+				}
+			}
+			return ids;
+		}
+	}
+
+	/**
+	 * Enable write-behind mode. Keys passed to {@link #setPublicKey(String, byte[])} are
+	 * queued and written to the store in batches via {@link #saveAll(Map)}, either when
+	 * the queue reaches the given size or when the flush interval elapses. Pending keys
+	 * are also flushed on {@link #shutdown()} and when the JVM exits.
+	 *
+	 * @param batchSize number of queued keys that triggers a flush (at least 1)
+	 * @param flushInterval maximum time a key stays queued
+	 * @param unit time unit of the flush interval
+	 */
+	public final void enableWriteBehind(int batchSize, long flushInterval, TimeUnit unit) {
+		if (batchSize < 1 || flushInterval <= 0) {
+			throw new IllegalArgumentException("Invalid write-behind configuration");
+		}
+
+		synchronized (this.saveLock) {
+			if (this.writeBehindExecutor != null) {
+				throw new IllegalStateException("Write-behind mode already enabled");
+			}
+
+			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "PublicKeyStore-write-behind");
+				t.setDaemon(true);
+				return t;
+			});
+			executor.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+
+			this.shutdownHook = new Thread(this::flushQuietly, "PublicKeyStore-shutdown");
+			Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+
+			this.writeBehindBatchSize = batchSize;
+			this.writeBehindExecutor = executor;
+		}
+	}
+
+	/**
+	 * Write all queued keys to the store. Does nothing if write-behind mode is disabled
+	 * or no keys are pending. If the store fails, the keys stay queued for the next flush.
+	 */
+	public final void flush() {
+		synchronized (this.saveLock) {
+			Map<String, byte[]> batch;
+			synchronized (this.pendingLock) {
+				if (this.pending.isEmpty()) {
+					return;
+				}
+				batch = this.pending;
+				this.pending = new LinkedHashMap<>();
+			}
+
+			try {
+				this.saveAll(batch);
+			} catch (RuntimeException e) {
+				synchronized (this.pendingLock) {
+					/* keys queued meanwhile are newer and take precedence */
+					batch.putAll(this.pending);
+					this.pending = batch;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Flush all queued keys and stop the write-behind thread. Subsequent keys are
+	 * written to the store immediately.
+	 */
+	public final void shutdown() {
+		ScheduledExecutorService executor;
+		synchronized (this.saveLock) {
+			executor = this.writeBehindExecutor;
+			if (executor == null) {
+				return;
+			}
+			this.writeBehindExecutor = null;
+
+			try {
+				Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+			} catch (IllegalStateException e) {
+				/* JVM is already shutting down, the hook flushes anyway */
+			}
+			this.shutdownHook = null;
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.flush();
+	}
+
+	private void persist(String threemaId, byte[] publicKey) {
+		ScheduledExecutorService executor = this.writeBehindExecutor;
+		if (executor == null) {
+			this.save(threemaId, publicKey);
+			return;
+		}
+
+		boolean full;
+		synchronized (this.pendingLock) {
+			this.pending.put(threemaId, publicKey);
+			full = this.pending.size() >= this.writeBehindBatchSize;
+		}
+
+		if (this.writeBehindExecutor == null) {
+			/* shut down concurrently, nobody else will pick up the queued key */
+			this.flush();
+		} else if (full) {
+			try {
+				executor.execute(this::flushQuietly);
+			} catch (RejectedExecutionException e) {
+				/* shut down concurrently, write synchronously instead */
+				this.flush();
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			this.flush();
+		} catch (RuntimeException e) {
+			this.onSaveError(e);
 		}
 	}
 
@@ -86,4 +249,27 @@ public abstract class PublicKeyStore {
 	 * @param publicKey The corresponding public key.
 	 */
 	abstract protected void save(String threemaId, byte[] publicKey);
+
+	/**
+	 * Save a batch of public keys in the store. Called in write-behind mode instead of
+	 * {@link #save(String, byte[])}; the default implementation calls save() for every
+	 * entry. Override to write all keys at once, e.g. with a single batched statement.
+	 *
+	 * @param publicKeys Public keys by Threema ID, in insertion order
+	 */
+	protected void saveAll(Map<String, byte[]> publicKeys) {
+		for (Map.Entry<String, byte[]> entry : publicKeys.entrySet()) {
+			this.save(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Called when writing queued keys fails in the background (on the write-behind thread
+	 * or in the shutdown hook). The keys stay queued and are written with the next flush.
+	 * The default implementation ignores the failure.
+	 *
+	 * @param e the exception thrown by {@link #saveAll(Map)}
+	 */
+	protected void onSaveError(RuntimeException e) {
+	}
 }
@@ -0,0 +1,174 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side throttling of the requests to one gateway endpoint.
+ *
+ * A token bucket limits the request rate, and an adaptive limit caps the number of requests in
+ * flight: it grows by one per limit's worth of successful requests and is halved when the server
+ * signals overload (HTTP 429 or 5xx) or a request fails without a response (AIMD). A Retry-After
+ * delay holds back all requests to the endpoint until it has passed.
+ */
+final class RequestThrottle {
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+	private static final int DEFAULT_MAX_CONCURRENCY = 64;
+
+	/* token bucket; a rate of 0 disables it */
+	private double permitsPerNano = 0;
+	private double burst = 1;
+	private double tokens = 1;
+	private long refilledAt = System.nanoTime();
+
+	/* adaptive concurrency limit */
+	private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private double limit = DEFAULT_MAX_CONCURRENCY;
+	private int inFlight = 0;
+	/* only requests started after the last decrease may decrease the limit again */
+	private long decreasedAt = System.nanoTime();
+
+	/* set from Retry-After (or exponential backoff) after the server rejected a request */
+	private long blockedUntil = System.nanoTime();
+	private int throttledCount = 0;
+
+	synchronized void setRateLimit(double requestsPerSecond, int burst) {
+		this.permitsPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = System.nanoTime();
+		this.notifyAll();
+	}
+
+	synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+		this.limit = maxConcurrency;
+		this.notifyAll();
+	}
+
+	synchronized int getConcurrencyLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * Wait until a request may be sent. Every successful call must be followed by {@link #release()}.
+	 */
+	synchronized void acquire() throws InterruptedIOException {
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				long waitNanos = 0;
+				if (this.blockedUntil - now > 0) {
+					waitNanos = this.blockedUntil - now;
+				} else if (this.inFlight >= (int) this.limit) {
+					/* woken up by release() */
+					waitNanos = -1;
+				} else if (this.permitsPerNano > 0) {
+					this.refill(now);
+					if (this.tokens < 1) {
+						waitNanos = Math.max(1, (long) Math.ceil((1 - this.tokens) / this.permitsPerNano));
+					}
+				}
+
+				if (waitNanos == 0) {
+					if (this.permitsPerNano > 0) {
+						this.tokens -= 1;
+					}
+					this.inFlight++;
+					return;
+				} else if (waitNanos < 0) {
+					this.wait();
+				} else {
+					TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request");
+		}
+	}
+
+	synchronized void release() {
+		this.inFlight--;
+		this.notifyAll();
+	}
+
+	/**
+	 * Record the response of a request that was started at {@code start} (System.nanoTime()).
+	 */
+	synchronized void onResponse(long start, int code) {
+		if (code == 429 || code >= 500) {
+			this.decrease(start);
+		} else {
+			this.throttledCount = 0;
+			if (this.limit < this.maxConcurrency) {
+				this.limit = Math.min(this.maxConcurrency, this.limit + 1 / this.limit);
+			}
+		}
+	}
+
+	/**
+	 * Record a request that failed without a response.
+	 */
+	synchronized void onFailure(long start) {
+		this.decrease(start);
+	}
+
+	/**
+	 * Record a request rejected with HTTP 429 or 503 and hold back further requests.
+	 *
+	 * @param retryAfterMillis delay requested by the server, or -1 if it did not send one
+	 * @return the delay before the next request will be sent, in milliseconds
+	 */
+	synchronized long onThrottled(long start, long retryAfterMillis) {
+		this.decrease(start);
+		long delay = retryAfterMillis;
+		if (delay < 0) {
+			delay = INITIAL_BACKOFF_MILLIS << Math.min(this.throttledCount, 16);
+			delay = Math.min(delay, MAX_BACKOFF_MILLIS);
+		}
+		this.throttledCount++;
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		if (until - this.blockedUntil > 0) {
+			this.blockedUntil = until;
+		}
+		return delay;
+	}
+
+	private void decrease(long start) {
+		if (start - this.decreasedAt > 0) {
+			this.limit = Math.max(1, this.limit / 2);
+			this.decreasedAt = System.nanoTime();
+		}
+	}
+
+	private void refill(long now) {
+		this.tokens = Math.min(this.burst, this.tokens + (now - this.refilledAt) * this.permitsPerNano);
+		this.refilledAt = now;
+	}
+}
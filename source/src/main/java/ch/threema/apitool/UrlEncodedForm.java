@@ -0,0 +1,160 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds an application/x-www-form-urlencoded request body directly as ASCII bytes in a
+ * reusable buffer. Values are percent-encoded like {@link java.net.URLEncoder} (UTF-8),
+ * except for binary fields, which are written as hex without any escaping.
+ */
+final class UrlEncodedForm {
+	private static final byte[] HEX_UPPER = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+	private byte[] buffer;
+	private int length;
+
+	UrlEncodedForm(int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+	}
+
+	/**
+	 * Clear the form for reuse, keeping the buffer.
+	 */
+	UrlEncodedForm reset() {
+		this.length = 0;
+		return this;
+	}
+
+	/**
+	 * Add a field with a URL-encoded value.
+	 */
+	UrlEncodedForm add(String name, CharSequence value) {
+		this.name(name);
+		/* worst case: a 3 byte UTF-8 sequence, percent-encoded */
+		this.ensureCapacity(9 * value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (isSafe(c)) {
+				this.buffer[this.length++] = (byte) c;
+			} else if (c == ' ') {
+				this.buffer[this.length++] = '+';
+			} else if (c < 0x80) {
+				this.percent(c);
+			} else if (c < 0x800) {
+				this.percent(0xC0 | (c >> 6));
+				this.percent(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				this.percent(0xF0 | (cp >> 18));
+				this.percent(0x80 | ((cp >> 12) & 0x3F));
+				this.percent(0x80 | ((cp >> 6) & 0x3F));
+				this.percent(0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				this.percent('?');
+			} else {
+				this.percent(0xE0 | (c >> 12));
+				this.percent(0x80 | ((c >> 6) & 0x3F));
+				this.percent(0x80 | (c & 0x3F));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Append fields that are already URL-encoded, e.g. a precomputed credential fragment.
+	 */
+	UrlEncodedForm addEncoded(byte[] fields) {
+		this.ensureCapacity(fields.length + 1);
+		if (this.length > 0) {
+			this.buffer[this.length++] = '&';
+		}
+		System.arraycopy(fields, 0, this.buffer, this.length, fields.length);
+		this.length += fields.length;
+		return this;
+	}
+
+	/**
+	 * Add a binary field, hex-encoded straight into the buffer. Hex digits never need
+	 * URL encoding.
+	 */
+	UrlEncodedForm addHex(String name, byte[] data, int offset, int dataLength) {
+		this.name(name);
+		this.ensureCapacity(2 * dataLength);
+		this.length += DataUtils.encodeHex(data, offset, dataLength, this.buffer, this.length);
+		return this;
+	}
+
+	byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	int getLength() {
+		return this.length;
+	}
+
+	void writeTo(OutputStream os) throws IOException {
+		os.write(this.buffer, 0, this.length);
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.buffer, 0, this.length, StandardCharsets.US_ASCII);
+	}
+
+	private void name(String name) {
+		/* field names are fixed ASCII identifiers */
+		this.ensureCapacity(name.length() + 2);
+		if (this.length > 0) {
+			this.buffer[this.length++] = '&';
+		}
+		for (int i = 0; i < name.length(); i++) {
+			this.buffer[this.length++] = (byte) name.charAt(i);
+		}
+		this.buffer[this.length++] = '=';
+	}
+
+	private void percent(int b) {
+		this.buffer[this.length++] = '%';
+		this.buffer[this.length++] = HEX_UPPER[(b >> 4) & 0x0F];
+		this.buffer[this.length++] = HEX_UPPER[b & 0x0F];
+	}
+
+	private void ensureCapacity(int additional) {
+		if (this.buffer.length - this.length < additional) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.length + additional));
+		}
+	}
+
+	private static boolean isSafe(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '.' || c == '-' || c == '*' || c == '_';
+	}
+}
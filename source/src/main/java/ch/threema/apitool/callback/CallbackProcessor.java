@@ -0,0 +1,396 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.InvalidCallbackException;
+import ch.threema.apitool.exceptions.InvalidKeyException;
+import ch.threema.apitool.exceptions.InvalidMacException;
+import ch.threema.apitool.exceptions.MessageParseException;
+import ch.threema.apitool.messages.MessageView;
+import ch.threema.apitool.messages.ThreemaMessage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Verifies, parses and decrypts the HTTP callbacks the Threema Message API sends for
+ * incoming messages, and passes the decrypted messages on to a listener.
+ *
+ * The request body is parsed directly from its URL-encoded bytes; the MAC is computed
+ * over the raw field values and compared in constant time before anything is decoded
+ * or decrypted.
+ */
+public class CallbackProcessor {
+
+	public interface Listener {
+
+		/**
+		 * Called for every incoming message that was verified and decrypted successfully.
+		 *
+		 * @param callback the verified callback parameters
+		 * @param message the decrypted message
+		 */
+		void onMessageReceived(IncomingCallback callback, ThreemaMessage message);
+
+		/**
+		 * Called by {@link #process(byte[], int)} if a verified callback could not be processed
+		 * because the key lookup or the listener failed. The gateway retries the callback.
+		 *
+		 * @param callback the verified callback parameters
+		 * @param e the cause
+		 */
+		default void onError(IncomingCallback callback, Exception e) {
+		}
+	}
+
+	/* callback fields, in MAC order */
+	private static final int FIELD_FROM = 0;
+	private static final int FIELD_TO = 1;
+	private static final int FIELD_MESSAGE_ID = 2;
+	private static final int FIELD_DATE = 3;
+	private static final int FIELD_NONCE = 4;
+	private static final int FIELD_BOX = 5;
+	private static final int FIELD_MAC = 6;
+	private static final int FIELD_NICKNAME = 7;
+	private static final int MAC_FIELD_COUNT = 6;
+
+	private static final byte[][] FIELD_NAMES = {
+			ascii("from"), ascii("to"), ascii("messageId"), ascii("date"),
+			ascii("nonce"), ascii("box"), ascii("mac"), ascii("nickname")
+	};
+
+	private static final int MAC_LEN = 32;
+
+	private final APIConnector apiConnector;
+	private final byte[] privateKey;
+	private final Listener listener;
+	private final ThreadLocal<Mac> mac;
+	private volatile MessageIdFilter duplicateFilter;
+
+	/**
+	 * @param apiConnector connector used to look up the public keys of senders
+	 * @param secret the API secret of the gateway ID (used as MAC key)
+	 * @param privateKey the private key of the gateway ID
+	 * @param listener receives the decrypted messages
+	 */
+	public CallbackProcessor(APIConnector apiConnector, String secret, byte[] privateKey, Listener listener) {
+		this.apiConnector = apiConnector;
+		this.privateKey = privateKey;
+		this.listener = listener;
+
+		final SecretKeySpec macKey = new SecretKeySpec(secret.getBytes(StandardCharsets.US_ASCII), "HmacSHA256");
+		this.mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac m = Mac.getInstance("HmacSHA256");
+				m.init(macKey);
+				return m;
+			} catch (GeneralSecurityException e) {
+				/* should never happen, HmacSHA256 is always supported */
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Drop callbacks whose message ID has already been seen, before they are decrypted.
+	 *
+	 * @param duplicateFilter the filter to use, or null to accept all callbacks
+	 */
+	public void setDuplicateFilter(MessageIdFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	/**
+	 * Check a verified callback against the duplicate filter and record its message ID.
+	 *
+	 * @param callback the verified callback
+	 * @return false if the callback is a duplicate and should be dropped
+	 */
+	public boolean accept(IncomingCallback callback) {
+		MessageIdFilter filter = this.duplicateFilter;
+		return filter == null || filter.add(callback.getMessageIdAsLong());
+	}
+
+	/**
+	 * Remove the message ID of a callback from the duplicate filter, so that a retry by
+	 * the gateway is accepted. Use if the callback could not be processed.
+	 *
+	 * @param callback the verified callback
+	 */
+	public void release(IncomingCallback callback) {
+		MessageIdFilter filter = this.duplicateFilter;
+		if (filter != null) {
+			filter.remove(callback.getMessageIdAsLong());
+		}
+	}
+
+	/**
+	 * Verify, decrypt and dispatch a callback request body. Duplicates are acknowledged
+	 * without being decrypted. An IOException or RuntimeException is reported to the
+	 * listener's {@link Listener#onError(IncomingCallback, Exception)} before it is thrown.
+	 *
+	 * @param body the URL-encoded request body
+	 * @param length number of valid bytes in body
+	 * @throws InvalidCallbackException if the request is malformed or the MAC does not match
+	 * @throws InvalidKeyException if the public key of the sender cannot be found
+	 * @throws MessageParseException if the message cannot be decrypted or parsed
+	 * @throws IOException if the public key lookup fails
+	 */
+	public void process(byte[] body, int length)
+			throws InvalidCallbackException, InvalidKeyException, MessageParseException, IOException {
+		IncomingCallback callback = this.parse(body, length);
+		if (!this.accept(callback)) {
+			return;
+		}
+
+		try {
+			this.dispatch(callback, this.decrypt(callback));
+		} catch (IOException | RuntimeException e) {
+			/* key lookup or listener failed, the gateway will retry */
+			this.release(callback);
+			this.listener.onError(callback, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Parse a callback request body and verify its MAC.
+	 *
+	 * @param body the URL-encoded request body
+	 * @param length number of valid bytes in body
+	 * @return the verified callback
+	 * @throws InvalidCallbackException if the request is malformed or the MAC does not match
+	 */
+	public IncomingCallback parse(byte[] body, int length) throws InvalidCallbackException {
+		/* start/end offsets of each field value */
+		int[] start = new int[FIELD_NAMES.length];
+		int[] end = new int[FIELD_NAMES.length];
+		for (int i = 0; i < start.length; i++) {
+			start[i] = -1;
+		}
+
+		int pos = 0;
+		while (pos < length) {
+			int amp = indexOf(body, (byte) '&', pos, length);
+			int eq = indexOf(body, (byte) '=', pos, amp);
+			if (eq < amp) {
+				int field = fieldIndex(body, pos, eq);
+				if (field >= 0) {
+					start[field] = eq + 1;
+					end[field] = amp;
+				}
+			}
+			pos = amp + 1;
+		}
+
+		for (int i = 0; i <= FIELD_MAC; i++) {
+			if (start[i] < 0) {
+				throw new InvalidCallbackException("Missing field " + new String(FIELD_NAMES[i], StandardCharsets.US_ASCII));
+			}
+		}
+
+		String from = urlDecode(body, start[FIELD_FROM], end[FIELD_FROM]);
+		String to = urlDecode(body, start[FIELD_TO], end[FIELD_TO]);
+
+		/* MAC over from || to || messageId || date || nonce || box */
+		Mac m = this.mac.get();
+		m.update(from.getBytes(StandardCharsets.US_ASCII));
+		m.update(to.getBytes(StandardCharsets.US_ASCII));
+		for (int i = FIELD_MESSAGE_ID; i < MAC_FIELD_COUNT; i++) {
+			m.update(body, start[i], end[i] - start[i]);
+		}
+		byte[] expectedMac = m.doFinal();
+		byte[] givenMac = decodeHex(body, start[FIELD_MAC], end[FIELD_MAC], "mac");
+		if (givenMac.length != MAC_LEN || !MessageDigest.isEqual(expectedMac, givenMac)) {
+			throw new InvalidMacException();
+		}
+
+		String messageId = new String(body, start[FIELD_MESSAGE_ID], end[FIELD_MESSAGE_ID] - start[FIELD_MESSAGE_ID],
+				StandardCharsets.US_ASCII);
+		long messageIdAsLong = parseHexLong(body, start[FIELD_MESSAGE_ID], end[FIELD_MESSAGE_ID]);
+		long date = parseLong(body, start[FIELD_DATE], end[FIELD_DATE]);
+		byte[] nonce = decodeHex(body, start[FIELD_NONCE], end[FIELD_NONCE], "nonce");
+		byte[] box = decodeHex(body, start[FIELD_BOX], end[FIELD_BOX], "box");
+		String nickname = start[FIELD_NICKNAME] >= 0 ? urlDecode(body, start[FIELD_NICKNAME], end[FIELD_NICKNAME]) : null;
+
+		return new IncomingCallback(from, to, messageId, messageIdAsLong, date, nonce, box, nickname);
+	}
+
+	/**
+	 * Look up the sender's public key and decrypt a verified callback.
+	 *
+	 * @param callback the verified callback
+	 * @return the decrypted message
+	 * @throws InvalidKeyException if the public key of the sender cannot be found
+	 * @throws MessageParseException if the message cannot be decrypted or parsed
+	 * @throws IOException if the public key lookup fails
+	 */
+	public ThreemaMessage decrypt(IncomingCallback callback)
+			throws InvalidKeyException, MessageParseException, IOException {
+		byte[] publicKey = this.apiConnector.lookupKey(callback.getFrom());
+		if (publicKey == null) {
+			throw new InvalidKeyException("invalid threema id");
+		}
+
+		return CryptTool.decryptMessage(callback.getBox(), this.privateKey, publicKey, callback.getNonce());
+	}
+
+	/**
+	 * Look up the sender's public key and decrypt a verified callback in place, returning a
+	 * lightweight view of the message. The box of the callback is overwritten by this call.
+	 *
+	 * @param callback the verified callback
+	 * @return view of the decrypted message
+	 * @throws InvalidKeyException if the public key of the sender cannot be found
+	 * @throws MessageParseException if the message cannot be decrypted
+	 * @throws IOException if the public key lookup fails
+	 */
+	public MessageView decryptView(IncomingCallback callback)
+			throws InvalidKeyException, MessageParseException, IOException {
+		byte[] publicKey = this.apiConnector.lookupKey(callback.getFrom());
+		if (publicKey == null) {
+			throw new InvalidKeyException("invalid threema id");
+		}
+
+		return CryptTool.decryptMessageView(callback.getBox(), this.privateKey, publicKey, callback.getNonce());
+	}
+
+	/**
+	 * Hand a decrypted message to the listener.
+	 *
+	 * @param callback the verified callback
+	 * @param message the decrypted message
+	 */
+	public void dispatch(IncomingCallback callback, ThreemaMessage message) {
+		this.listener.onMessageReceived(callback, message);
+	}
+
+	private static int indexOf(byte[] data, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private static int fieldIndex(byte[] data, int from, int to) {
+		for (int f = 0; f < FIELD_NAMES.length; f++) {
+			byte[] name = FIELD_NAMES[f];
+			if (name.length != to - from) {
+				continue;
+			}
+			int i = 0;
+			while (i < name.length && name[i] == data[from + i]) {
+				i++;
+			}
+			if (i == name.length) {
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] decodeHex(byte[] data, int from, int to, String field) throws InvalidCallbackException {
+		if (((to - from) & 1) != 0) {
+			throw new InvalidCallbackException("Invalid hex length in field " + field);
+		}
+
+		byte[] out = new byte[(to - from) / 2];
+		try {
+			DataUtils.decodeHex(data, from, to, out, 0);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidCallbackException("Invalid hex character in field " + field);
+		}
+		return out;
+	}
+
+	private static long parseHexLong(byte[] data, int from, int to) throws InvalidCallbackException {
+		if (to - from != 16) {
+			throw new InvalidCallbackException("Invalid message ID");
+		}
+
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			int d = DataUtils.hexValue(data[i]);
+			if (d < 0) {
+				throw new InvalidCallbackException("Invalid message ID");
+			}
+			value = (value << 4) | d;
+		}
+		return value;
+	}
+
+	private static long parseLong(byte[] data, int from, int to) throws InvalidCallbackException {
+		if (from == to || to - from > 18) {
+			throw new InvalidCallbackException("Invalid date");
+		}
+
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			int d = data[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new InvalidCallbackException("Invalid date");
+			}
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	private static String urlDecode(byte[] data, int from, int to) throws InvalidCallbackException {
+		byte[] out = new byte[to - from];
+		int len = 0;
+		for (int i = from; i < to; i++) {
+			byte c = data[i];
+			if (c == '+') {
+				c = ' ';
+			} else if (c == '%') {
+				if (i + 2 >= to) {
+					throw new InvalidCallbackException("Invalid URL encoding");
+				}
+				int hi = DataUtils.hexValue(data[i + 1]);
+				int lo = DataUtils.hexValue(data[i + 2]);
+				if (hi < 0 || lo < 0) {
+					throw new InvalidCallbackException("Invalid URL encoding");
+				}
+				c = (byte) ((hi << 4) | lo);
+				i += 2;
+			}
+			out[len++] = c;
+		}
+		return new String(out, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.exceptions.InvalidCallbackException;
+import ch.threema.apitool.exceptions.InvalidKeyException;
+import ch.threema.apitool.exceptions.InvalidMacException;
+import ch.threema.apitool.exceptions.MessageParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embeddable HTTP server that receives the Threema Message API callbacks and passes
+ * them to a {@link CallbackProcessor}. TLS is expected to be terminated by a reverse
+ * proxy in front of this server.
+ */
+public class CallbackServer {
+	/* box is at most 4000 bytes, hex encoded plus the other fields */
+	private static final int MAX_BODY_SIZE = 16384;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final CallbackProcessor processor;
+	private volatile DecryptDispatcher dispatcher;
+
+	/**
+	 * @param address the local address to bind to
+	 * @param path the request path of the callback URL, e.g. "/threema"
+	 * @param processor processor for the incoming callbacks
+	 * @param threads number of request handling threads
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public CallbackServer(InetSocketAddress address, String path, CallbackProcessor processor, int threads)
+			throws IOException {
+		this.processor = processor;
+
+		final AtomicInteger threadNo = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "CallbackServer-" + threadNo.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext(path, this::handle);
+	}
+
+	/**
+	 * Decrypt callbacks asynchronously on the given dispatcher. The request is answered as
+	 * soon as its MAC has been verified; decryption results and errors are reported to the
+	 * dispatcher's listener instead of the processor's.
+	 *
+	 * @param dispatcher the dispatcher to use, or null to decrypt on the request thread
+	 */
+	public void setDispatcher(DecryptDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * Stop the server, waiting at most the given time for running requests to finish.
+	 *
+	 * @param delaySeconds maximum time to wait
+	 */
+	public void stop(int delaySeconds) {
+		this.server.stop(delaySeconds);
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the address the server is bound to
+	 */
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = new byte[MAX_BODY_SIZE];
+			int length = readBody(exchange.getRequestBody(), body);
+			if (length < 0) {
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(this.process(body, length), -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private int process(byte[] body, int length) {
+		try {
+			DecryptDispatcher d = this.dispatcher;
+			if (d != null) {
+				IncomingCallback callback = this.processor.parse(body, length);
+				if (this.processor.accept(callback)) {
+					try {
+						d.submit(callback, this.processor::release);
+					} catch (RejectedExecutionException e) {
+						this.processor.release(callback);
+						throw e;
+					}
+				}
+			} else {
+				this.processor.process(body, length);
+			}
+			return 200;
+		} catch (RejectedExecutionException e) {
+			/* dispatcher queue full, let the gateway retry later */
+			return 503;
+		} catch (InvalidMacException e) {
+			return 401;
+		} catch (InvalidCallbackException | InvalidKeyException | MessageParseException e) {
+			/* retrying will not help */
+			return 400;
+		} catch (IOException | RuntimeException e) {
+			/* reported to the processor's listener; let the gateway retry later */
+			return 500;
+		}
+	}
+
+	private static int readBody(InputStream is, byte[] buffer) throws IOException {
+		int length = 0;
+		int read;
+		while ((read = is.read(buffer, length, buffer.length - length)) > 0) {
+			length += read;
+			if (length == buffer.length) {
+				/* buffer full: accept only if the stream ends exactly here */
+				return is.read() == -1 ? length : -1;
+			}
+		}
+		return length;
+	}
+}
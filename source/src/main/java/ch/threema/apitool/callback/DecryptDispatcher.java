@@ -0,0 +1,216 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.helpers.E2EHelper;
+
+import java.nio.file.Path;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Decrypts verified callbacks on a pool of worker threads using
+ * {@link E2EHelper#receiveMessage(String, String, byte[], byte[], Path)}.
+ *
+ * Callbacks are partitioned by the sender's Threema ID: each worker owns its own queue
+ * and all messages of one sender go to the same worker, so they are delivered to the
+ * listener in the order they were submitted, while different senders are processed
+ * in parallel.
+ */
+public class DecryptDispatcher {
+
+	public interface Listener {
+
+		/**
+		 * Called on a worker thread for every successfully decrypted message.
+		 *
+		 * @param callback the verified callback parameters
+		 * @param result the decrypted message and downloaded files
+		 */
+		void onMessageReceived(IncomingCallback callback, E2EHelper.ReceiveMessageResult result);
+
+		/**
+		 * Called on a worker thread if a callback could not be decrypted.
+		 *
+		 * @param callback the verified callback parameters
+		 * @param e the cause
+		 */
+		void onError(IncomingCallback callback, Exception e);
+	}
+
+	private final E2EHelper e2eHelper;
+	private final Path outputFolder;
+	private final Listener listener;
+	private final ThreadPoolExecutor[] lanes;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param e2eHelper helper used to decrypt messages and download their files
+	 * @param outputFolder folder to store downloaded image/file blobs in
+	 * @param workers number of worker threads
+	 * @param queueCapacity maximum number of pending callbacks per worker
+	 * @param listener receives the results
+	 */
+	public DecryptDispatcher(E2EHelper e2eHelper, Path outputFolder, int workers, int queueCapacity,
+			Listener listener) {
+		if (workers < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Invalid dispatcher configuration");
+		}
+
+		this.e2eHelper = e2eHelper;
+		this.outputFolder = outputFolder;
+		this.listener = listener;
+		this.lanes = new ThreadPoolExecutor[workers];
+		for (int i = 0; i < workers; i++) {
+			final String name = "DecryptDispatcher-" + (i + 1);
+			this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<>(queueCapacity), r -> {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					});
+		}
+	}
+
+	/**
+	 * Queue a verified callback for decryption.
+	 *
+	 * @param callback the verified callback
+	 * @throws java.util.concurrent.RejectedExecutionException if the sender's queue is full
+	 *         or the dispatcher has been shut down
+	 */
+	public void submit(final IncomingCallback callback) {
+		this.submit(callback, null);
+	}
+
+	/**
+	 * Queue a verified callback for decryption.
+	 *
+	 * @param callback the verified callback
+	 * @param onFailure called on the worker thread if the callback cannot be processed, e.g. to
+	 *        remove its message ID from a duplicate filter; may be null
+	 * @throws java.util.concurrent.RejectedExecutionException if the sender's queue is full
+	 *         or the dispatcher has been shut down
+	 */
+	public void submit(final IncomingCallback callback, final Consumer<IncomingCallback> onFailure) {
+		this.lanes[this.laneOf(callback.getFrom())].execute(() -> this.receive(callback, onFailure));
+	}
+
+	/**
+	 * Stop accepting callbacks and wait for the queued ones to be processed.
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit time unit of the timeout
+	 * @return true if all queued callbacks have been processed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		for (ThreadPoolExecutor lane : this.lanes) {
+			lane.shutdown();
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ThreadPoolExecutor lane : this.lanes) {
+			if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of callbacks waiting to be decrypted, over all workers
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ThreadPoolExecutor lane : this.lanes) {
+			depth += lane.getQueue().size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @param worker worker index (0..getWorkerCount()-1)
+	 * @return the number of callbacks waiting to be decrypted by the given worker
+	 */
+	public int getQueueDepth(int worker) {
+		return this.lanes[worker].getQueue().size();
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getWorkerCount() {
+		return this.lanes.length;
+	}
+
+	/**
+	 * @return the number of callbacks that have been decrypted successfully
+	 */
+	public long getProcessedCount() {
+		return this.processed.get();
+	}
+
+	/**
+	 * @return the number of callbacks that could not be decrypted
+	 */
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	private int laneOf(String threemaId) {
+		int h = threemaId.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), this.lanes.length);
+	}
+
+	private void receive(IncomingCallback callback, Consumer<IncomingCallback> onFailure) {
+		E2EHelper.ReceiveMessageResult result;
+		try {
+			result = this.e2eHelper.receiveMessage(callback.getFrom(), callback.getMessageId(), callback.getBox(),
+					callback.getNonce(), this.outputFolder);
+		} catch (Exception e) {
+			this.failed.incrementAndGet();
+			if (onFailure != null) {
+				onFailure.accept(callback);
+			}
+			this.listener.onError(callback, e);
+			return;
+		}
+
+		this.processed.incrementAndGet();
+		try {
+			this.listener.onMessageReceived(callback, result);
+		} catch (RuntimeException e) {
+			if (onFailure != null) {
+				onFailure.accept(callback);
+			}
+			throw e;
+		}
+	}
+}
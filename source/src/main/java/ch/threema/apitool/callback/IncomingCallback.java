@@ -0,0 +1,113 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+/**
+ * An incoming message callback whose MAC has been verified, but which has not been
+ * decrypted yet.
+ */
+public class IncomingCallback {
+	private final String from;
+	private final String to;
+	private final String messageId;
+	private final long messageIdAsLong;
+	private final long date;
+	private final byte[] nonce;
+	private final byte[] box;
+	private final String nickname;
+
+	public IncomingCallback(String from, String to, String messageId, long messageIdAsLong, long date,
+			byte[] nonce, byte[] box, String nickname) {
+		this.from = from;
+		this.to = to;
+		this.messageId = messageId;
+		this.messageIdAsLong = messageIdAsLong;
+		this.date = date;
+		this.nonce = nonce;
+		this.box = box;
+		this.nickname = nickname;
+	}
+
+	/**
+	 * @return the Threema ID of the sender
+	 */
+	public String getFrom() {
+		return this.from;
+	}
+
+	/**
+	 * @return the gateway ID the message was sent to
+	 */
+	public String getTo() {
+		return this.to;
+	}
+
+	/**
+	 * @return the message ID (hex)
+	 */
+	public String getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * @return the 8 message ID bytes as a big-endian long
+	 */
+	public long getMessageIdAsLong() {
+		return this.messageIdAsLong;
+	}
+
+	/**
+	 * @return the message date as a UNIX timestamp (seconds)
+	 */
+	public long getDate() {
+		return this.date;
+	}
+
+	/**
+	 * @return the nonce that was used for encryption
+	 */
+	public byte[] getNonce() {
+		return this.nonce;
+	}
+
+	/**
+	 * @return the encrypted message data
+	 */
+	public byte[] getBox() {
+		return this.box;
+	}
+
+	/**
+	 * @return the public nickname of the sender, or null if not set
+	 */
+	public String getNickname() {
+		return this.nickname;
+	}
+
+	@Override
+	public String toString() {
+		return "callback " + this.messageId + " from " + this.from;
+	}
+}
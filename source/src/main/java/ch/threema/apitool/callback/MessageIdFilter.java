@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.LongHashSet;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently seen message IDs to drop callbacks the gateway delivers more than once.
+ *
+ * IDs are kept in two generations of primitive long sets. The current generation is
+ * retired when the time window elapses or when it reaches its maximum size, and memory
+ * stays bounded at about 2 * maxIdsPerWindow longs. The size bound takes precedence over
+ * the window: an ID is remembered for at least one window only while fewer than
+ * maxIdsPerWindow IDs arrive per window. Under heavier load, IDs are remembered for at
+ * least the time it takes maxIdsPerWindow further IDs to arrive, so size the limit for
+ * the peak callback rate.
+ */
+public class MessageIdFilter {
+	private final long windowNanos;
+	private final int maxIdsPerWindow;
+
+	private LongHashSet current;
+	private LongHashSet previous;
+	private long currentStart;
+
+	/**
+	 * @param window minimum time an ID is remembered, as long as the size limit is not reached
+	 * @param unit time unit of the window
+	 * @param maxIdsPerWindow maximum number of IDs per generation; reaching it retires the
+	 *        older generation before the window has elapsed
+	 */
+	public MessageIdFilter(long window, TimeUnit unit, int maxIdsPerWindow) {
+		if (window <= 0 || maxIdsPerWindow < 1) {
+			throw new IllegalArgumentException("Invalid filter configuration");
+		}
+
+		this.windowNanos = unit.toNanos(window);
+		this.maxIdsPerWindow = maxIdsPerWindow;
+		this.current = new LongHashSet(maxIdsPerWindow);
+		this.previous = new LongHashSet(maxIdsPerWindow);
+		this.currentStart = System.nanoTime();
+	}
+
+	/**
+	 * Record a message ID.
+	 *
+	 * @param messageId the message ID
+	 * @return true if the ID has not been seen within the window, false for a duplicate
+	 */
+	public synchronized boolean add(long messageId) {
+		long now = System.nanoTime();
+		if (now - this.currentStart >= this.windowNanos || this.current.size() >= this.maxIdsPerWindow) {
+			this.rotate(now);
+		}
+
+		if (this.previous.contains(messageId)) {
+			return false;
+		}
+		return this.current.add(messageId);
+	}
+
+	/**
+	 * @param messageId the message ID
+	 * @return true if the ID has been seen within the window
+	 */
+	public synchronized boolean contains(long messageId) {
+		return this.current.contains(messageId) || this.previous.contains(messageId);
+	}
+
+	/**
+	 * Forget a message ID, e.g. because its message could not be processed and a retry
+	 * should be accepted.
+	 *
+	 * @param messageId the message ID
+	 */
+	public synchronized void remove(long messageId) {
+		this.current.remove(messageId);
+		this.previous.remove(messageId);
+	}
+
+	/**
+	 * @return the number of IDs currently remembered
+	 */
+	public synchronized int size() {
+		return this.current.size() + this.previous.size();
+	}
+
+	private void rotate(long now) {
+		/* reuse the retired table to avoid reallocating */
+		LongHashSet retired = this.previous;
+		retired.clear();
+		this.previous = this.current;
+		this.current = retired;
+		this.currentStart = now;
+	}
+}
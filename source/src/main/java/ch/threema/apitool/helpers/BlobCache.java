@@ -0,0 +1,214 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import ch.threema.apitool.DataUtils;
+
+/**
+ * Remembers uploaded blobs by the SHA-256 hash of their content, so that an attachment
+ * sent again is not read, encrypted and uploaded a second time. Entries expire after the
+ * time the server keeps blobs, counted from the upload.
+ */
+public class BlobCache {
+    /** Default lifetime of an entry, matching the blob retention of the server (14 days) */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    private static final int HASH_BUFFER_SIZE = 65536;
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * A cached upload: the blob ID plus whatever is needed to reference it in a message.
+     */
+    public static final class Entry {
+        private final byte[] blobId;
+        private final byte[] key;
+        private final byte[] thumbnailBlobId;
+        private final int size;
+        private final long expires;
+
+        Entry(byte[] blobId, byte[] key, byte[] thumbnailBlobId, int size, long expires) {
+            this.blobId = blobId;
+            this.key = key;
+            this.thumbnailBlobId = thumbnailBlobId;
+            this.size = size;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the blob ID of the uploaded data
+         */
+        public byte[] getBlobId() {
+            return this.blobId;
+        }
+
+        /**
+         * @return the file encryption key (file messages) or the nonce (image messages)
+         */
+        public byte[] getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return the blob ID of the uploaded thumbnail, or null
+         */
+        public byte[] getThumbnailBlobId() {
+            return this.thumbnailBlobId;
+        }
+
+        /**
+         * @return the size of the encrypted blob
+         */
+        public int getSize() {
+            return this.size;
+        }
+    }
+
+    public BlobCache() {
+        this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param ttl lifetime of an entry after the upload; should not exceed the blob retention of the server
+     * @param unit time unit of the lifetime
+     */
+    public BlobCache(long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid TTL");
+        }
+        this.ttlMillis = unit.toMillis(ttl);
+    }
+
+    /**
+     * Look up an upload.
+     *
+     * @param cacheKey key from {@link #key(String, byte[], File...)}
+     * @return the cached upload, or null if there is none or it has expired
+     */
+    public Entry get(String cacheKey) {
+        Entry entry = this.entries.get(cacheKey);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            this.entries.remove(cacheKey, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Remember an upload that has just been made.
+     *
+     * @param cacheKey key from {@link #key(String, byte[], File...)}
+     * @param blobId the blob ID returned by the server
+     * @param key the file encryption key or nonce
+     * @param thumbnailBlobId the blob ID of the thumbnail, or null
+     * @param size the size of the encrypted blob
+     */
+    public void put(String cacheKey, byte[] blobId, byte[] key, byte[] thumbnailBlobId, int size) {
+        long now = System.currentTimeMillis();
+        this.entries.put(cacheKey, new Entry(blobId, key, thumbnailBlobId, size, now + this.ttlMillis));
+
+        /* drop expired entries so that the cache does not grow with one-off uploads */
+        for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove an upload, e.g. after the server rejected a message referencing it.
+     */
+    public void remove(String cacheKey) {
+        this.entries.remove(cacheKey);
+    }
+
+    /**
+     * @return the number of cached uploads (including expired ones not yet removed)
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Compute a cache key as the SHA-256 hash over the type, the length and content of each
+     * file (a null file is hashed as absent), and the extra data.
+     *
+     * @param type kind of upload, so that the same content uploaded differently gets another key
+     * @param extra data the upload depends on besides the files, e.g. the recipient's public key; may be null
+     * @param files the uploaded files
+     * @return the hex encoded hash
+     * @throws IOException if a file cannot be read
+     */
+    public static String key(String type, byte[] extra, File... files) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(type.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        for (File file : files) {
+            if (file == null) {
+                buffer.putLong(-1).flip();
+                digest.update(buffer);
+                buffer.clear();
+                continue;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer.putLong(channel.size()).flip();
+                digest.update(buffer);
+                buffer.clear();
+
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        if (extra != null) {
+            digest.update(extra);
+        }
+
+        return DataUtils.byteArrayToHexString(digest.digest());
+    }
+}
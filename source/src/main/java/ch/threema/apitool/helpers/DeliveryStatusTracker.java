@@ -0,0 +1,177 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import ch.threema.apitool.LongHashSet;
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.messages.DeliveryReceipt;
+import ch.threema.apitool.messages.MessageView;
+
+/**
+ * Tracks the delivery status of sent messages by their message ID. IDs are kept as
+ * primitive longs in one {@link LongHashSet} per status, so tracking millions of
+ * messages costs a few bytes per ID instead of an object each. A message moves to a
+ * higher status (RECEIVED, READ, USER_ACK) when a matching receipt arrives; receipts
+ * for lower statuses and for untracked IDs are ignored. Thread-safe.
+ */
+public class DeliveryStatusTracker {
+    /* sent, no receipt yet */
+    private final LongHashSet sent;
+    private final Map<DeliveryReceipt.Type, LongHashSet> acknowledged = new EnumMap<>(DeliveryReceipt.Type.class);
+
+    public DeliveryStatusTracker() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of unacknowledged messages to size the tracker for
+     */
+    public DeliveryStatusTracker(int expectedSize) {
+        this.sent = new LongHashSet(expectedSize);
+        for (DeliveryReceipt.Type type : DeliveryReceipt.Type.values()) {
+            this.acknowledged.put(type, new LongHashSet());
+        }
+    }
+
+    /**
+     * Start tracking a sent message.
+     *
+     * @param messageId hex message ID as returned by the API
+     */
+    public void markSent(String messageId) {
+        this.markSent(MessageId.parseHex(messageId));
+    }
+
+    public synchronized void markSent(long messageId) {
+        if (!this.isTracked(messageId)) {
+            this.sent.add(messageId);
+        }
+    }
+
+    /**
+     * Update the status of all messages acknowledged by a receipt.
+     */
+    public synchronized void update(DeliveryReceipt receipt) {
+        for (MessageId messageId : receipt.getAckedMessageIds()) {
+            this.update(receipt.getReceiptType(), messageId.toLong());
+        }
+    }
+
+    /**
+     * Update the status of all messages acknowledged by a receipt, reading the IDs
+     * straight from the decrypted message.
+     */
+    public synchronized void update(MessageView receipt) {
+        DeliveryReceipt.Type type = receipt.getReceiptType();
+        if (type == null) {
+            return;
+        }
+        for (int i = 0; i < receipt.getAckedMessageIdCount(); i++) {
+            this.update(type, receipt.getAckedMessageId(i));
+        }
+    }
+
+    /**
+     * Update the status of a message.
+     *
+     * @return true if the status of a tracked message changed
+     */
+    public synchronized boolean update(DeliveryReceipt.Type receiptType, long messageId) {
+        if (this.sent.remove(messageId)) {
+            this.acknowledged.get(receiptType).add(messageId);
+            return true;
+        }
+
+        for (DeliveryReceipt.Type type : DeliveryReceipt.Type.values()) {
+            if (type.compareTo(receiptType) >= 0) {
+                break;
+            }
+            if (this.acknowledged.get(type).remove(messageId)) {
+                this.acknowledged.get(receiptType).add(messageId);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isTracked(long messageId) {
+        if (this.sent.contains(messageId)) {
+            return true;
+        }
+        for (LongHashSet ids : this.acknowledged.values()) {
+            if (ids.contains(messageId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the highest receipt type received for the message, or null if the message
+     *         has not been acknowledged yet or is not tracked
+     */
+    public synchronized DeliveryReceipt.Type getStatus(long messageId) {
+        for (Map.Entry<DeliveryReceipt.Type, LongHashSet> entry : this.acknowledged.entrySet()) {
+            if (entry.getValue().contains(messageId)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop tracking a message.
+     *
+     * @return true if the message was tracked
+     */
+    public synchronized boolean remove(long messageId) {
+        boolean removed = this.sent.remove(messageId);
+        for (LongHashSet ids : this.acknowledged.values()) {
+            removed |= ids.remove(messageId);
+        }
+        return removed;
+    }
+
+    /**
+     * @return IDs of sent messages without any receipt
+     */
+    public synchronized long[] getUnacknowledged() {
+        return this.sent.toArray();
+    }
+
+    public synchronized int getUnacknowledgedCount() {
+        return this.sent.size();
+    }
+
+    /**
+     * @return number of tracked messages with the given status
+     */
+    public synchronized int getCount(DeliveryReceipt.Type receiptType) {
+        return this.acknowledged.get(receiptType).size();
+    }
+}
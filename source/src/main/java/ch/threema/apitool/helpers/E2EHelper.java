@@ -28,11 +28,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 
@@ -40,22 +49,40 @@ import com.neilalexander.jnacl.NaCl;
 
 import ch.threema.apitool.APIConnector;
 import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.OutgoingMessage;
+import ch.threema.apitool.callback.IncomingCallback;
+import ch.threema.apitool.exceptions.BadMessageException;
 import ch.threema.apitool.exceptions.InvalidKeyException;
 import ch.threema.apitool.exceptions.MessageParseException;
 import ch.threema.apitool.exceptions.NotAllowedException;
+import ch.threema.apitool.messages.DeliveryReceipt;
 import ch.threema.apitool.messages.FileMessage;
 import ch.threema.apitool.messages.ImageMessage;
+import ch.threema.apitool.messages.TextMessage;
 import ch.threema.apitool.messages.ThreemaMessage;
 import ch.threema.apitool.results.CapabilityResult;
 import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.SendResult;
 import ch.threema.apitool.results.UploadResult;
 
 /**
  * Helper to handle Threema end-to-end encryption.
  */
 public class E2EHelper {
+    private static final ThreadLocal<byte[]> boxBuffer = ThreadLocal.withInitial(() -> new byte[CryptTool.MAX_BOX_LENGTH]);
+
+    /* runs background uploads and async sends unless an executor is passed in */
+    private static final Executor defaultExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "E2EHelper-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final APIConnector apiConnector;
     private final byte[] privateKey;
+    private final Executor executor;
+    private volatile BlobCache blobCache;
 
     public class ReceiveMessageResult {
         private final String messageId;
@@ -86,8 +113,28 @@ public class E2EHelper {
     }
 
     public E2EHelper(APIConnector apiConnector, byte[] privateKey) {
+        this(apiConnector, privateKey, defaultExecutor);
+    }
+
+    /**
+     * @param executor executor for background uploads and async sends; must not run tasks in
+     *                 the calling thread and should allow a few tasks per send to run concurrently
+     */
+    public E2EHelper(APIConnector apiConnector, byte[] privateKey, Executor executor) {
         this.apiConnector = apiConnector;
         this.privateKey = privateKey;
+        this.executor = executor;
+    }
+
+    /**
+     * Reuse uploads of identical attachments. With a cache set, files and images whose content
+     * (and, for images, recipient) was uploaded before are not uploaded again while the cache
+     * entry is valid.
+     *
+     * @param blobCache the cache to use, or null to always upload
+     */
+    public void setBlobCache(BlobCache blobCache) {
+        this.blobCache = blobCache;
     }
 
     /**
@@ -104,23 +151,53 @@ public class E2EHelper {
         if (publicKey == null) {
             throw new Exception("invalid threema id");
         }
-        EncryptResult res = CryptTool.encryptTextMessage(text, this.privateKey, publicKey);
+        // encrypt into the pooled buffer of this thread
+        byte[] nonce = CryptTool.randomNonce();
+        byte[] box = boxBuffer.get();
+        int boxLength = CryptTool.encryptMessage(new TextMessage(text), this.privateKey, publicKey, nonce, box);
 
-        return this.apiConnector.sendE2EMessage(threemaId, res.getNonce(), res.getResult());
+        return this.apiConnector.sendE2EMessage(threemaId, nonce, box, boxLength);
     }
 
     /**
-     * Encrypt an image message and send it to the given recipient.
+     * Encrypt a message for the given recipient without sending it, e.g. to hand it to an
+     * {@link OutboundQueue}.
      *
      * @param threemaId target Threema ID
-     * @param imageFilePath path to read image data from
-     * @return generated message ID
-     * @throws NotAllowedException
+     * @param message the message to encrypt
+     * @return the encrypted message
+     * @throws InvalidKeyException if the recipient has no public key
+     * @throws BadMessageException if the message cannot be encoded
+     * @throws IOException if the public key lookup fails
+     */
+    public OutgoingMessage encryptMessage(String threemaId, ThreemaMessage message)
+            throws InvalidKeyException, BadMessageException, IOException {
+        byte[] publicKey = this.apiConnector.lookupKey(threemaId);
+
+        if (publicKey == null) {
+            throw new InvalidKeyException("invalid threema id");
+        }
+
+        byte[] nonce = CryptTool.randomNonce();
+        byte[] box = boxBuffer.get();
+        int boxLength = CryptTool.encryptMessage(message, this.privateKey, publicKey, nonce, box);
+        return new OutgoingMessage(threemaId, nonce, Arrays.copyOf(box, boxLength));
+    }
+
+    /**
+     * Send a delivery receipt for one or more messages to the given recipient. If there
+     * are more than {@link DeliveryReceipt#MAX_MESSAGE_IDS} message IDs, they are split
+     * over several receipts.
+     *
+     * @param threemaId target Threema ID (the sender of the acknowledged messages)
+     * @param receiptType type of the receipt
+     * @param messageIds IDs of the messages to acknowledge
+     * @return generated message IDs of the receipts
      * @throws IOException
      * @throws InvalidKeyException
      */
-    public String sendImageMessage(String threemaId, String imageFilePath)
-            throws NotAllowedException, IOException, InvalidKeyException {
+    public List<String> sendDeliveryReceipt(String threemaId, DeliveryReceipt.Type receiptType,
+            List<MessageId> messageIds) throws IOException, InvalidKeyException {
         // fetch public key
         byte[] publicKey = this.apiConnector.lookupKey(threemaId);
 
@@ -128,25 +205,89 @@ public class E2EHelper {
             throw new InvalidKeyException("invalid threema id");
         }
 
-        // check capability of a key
-        CapabilityResult capabilityResult = this.apiConnector.lookupKeyCapability(threemaId);
-        if (capabilityResult == null || !capabilityResult.canImage()) {
-            throw new NotAllowedException();
+        List<String> receiptIds = new ArrayList<>();
+        byte[] box = boxBuffer.get();
+        for (int i = 0; i < messageIds.size(); i += DeliveryReceipt.MAX_MESSAGE_IDS) {
+            DeliveryReceipt receipt = new DeliveryReceipt(receiptType,
+                    messageIds.subList(i, Math.min(messageIds.size(), i + DeliveryReceipt.MAX_MESSAGE_IDS)));
+
+            byte[] nonce = CryptTool.randomNonce();
+            int boxLength;
+            try {
+                boxLength = CryptTool.encryptMessage(receipt, this.privateKey, publicKey, nonce, box);
+            } catch (BadMessageException e) {
+                /* receipts are always encodable */
+                throw new IllegalStateException(e);
+            }
+            receiptIds.add(this.apiConnector.sendE2EMessage(threemaId, nonce, box, boxLength));
         }
+        return receiptIds;
+    }
 
-        byte[] fileData = Files.readAllBytes(Paths.get(imageFilePath));
-        if (fileData == null) {
+    /**
+     * Encrypt an image message and send it to the given recipient.
+     * The capability lookup runs in the background while the public key is fetched and the
+     * image is encrypted; the image is only uploaded once the recipient is known to accept it.
+     *
+     * @param threemaId target Threema ID
+     * @param imageFilePath path to read image data from
+     * @return generated message ID
+     * @throws NotAllowedException
+     * @throws IOException
+     * @throws InvalidKeyException
+     */
+    public String sendImageMessage(String threemaId, String imageFilePath)
+            throws NotAllowedException, IOException, InvalidKeyException {
+        if (!Files.isRegularFile(Paths.get(imageFilePath))) {
             throw new IOException("invalid file");
         }
 
-        // encrypt the image
-        EncryptResult encryptResult = CryptTool.encrypt(fileData, this.privateKey, publicKey);
+        // check capability of a key in the background
+        CompletableFuture<CapabilityResult> capabilityLookup = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.apiConnector.lookupKeyCapability(threemaId);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
 
-        // upload the image
-        UploadResult uploadResult = apiConnector.uploadFile(encryptResult);
+        // fetch public key
+        byte[] publicKey = this.apiConnector.lookupKey(threemaId);
 
-        if (!uploadResult.isSuccess()) {
-            throw new IOException("could not upload file (upload response " + uploadResult.getResponseCode() + ")");
+        if (publicKey == null) {
+            throw new InvalidKeyException("invalid threema id");
+        }
+
+        // images are encrypted for the recipient, so a cached upload can only be reused for the same key
+        BlobCache cache = this.blobCache;
+        String cacheKey = cache != null ? BlobCache.key("image", publicKey, new File(imageFilePath)) : null;
+        BlobCache.Entry cached = cache != null ? cache.get(cacheKey) : null;
+
+        EncryptResult encryptResult;
+        UploadResult uploadResult;
+        if (cached != null) {
+            this.checkCanImage(capabilityLookup);
+            encryptResult = new EncryptResult(cached.getSize(), null, cached.getKey());
+            uploadResult = new UploadResult(200, cached.getBlobId());
+        } else {
+            // encrypt the image from a mapped file into a temporary file while the capabilities
+            // are looked up, and upload it once the recipient is known to accept images
+            File encryptedFile = File.createTempFile("image", ".blob");
+            try {
+                encryptResult = CryptTool.encrypt(Paths.get(imageFilePath), encryptedFile.toPath(),
+                        this.privateKey, publicKey);
+                this.checkCanImage(capabilityLookup);
+                uploadResult = apiConnector.uploadFile(encryptedFile);
+            } finally {
+                Files.deleteIfExists(encryptedFile.toPath());
+            }
+
+            if (!uploadResult.isSuccess()) {
+                throw new IOException("could not upload file (upload response " + uploadResult.getResponseCode() + ")");
+            }
+            if (cache != null) {
+                cache.put(cacheKey, uploadResult.getBlobId(), encryptResult.getNonce(), null, encryptResult.getSize());
+            }
         }
 
         // send it
@@ -178,56 +319,131 @@ public class E2EHelper {
 
         // check capability of a key
         CapabilityResult capabilityResult = this.apiConnector.lookupKeyCapability(threemaId);
-        if (capabilityResult == null || !capabilityResult.canImage()) {
+        if (capabilityResult == null || !capabilityResult.canFile()) {
             throw new NotAllowedException();
         }
 
-        if (!fileMessageFile.isFile()) {
-            throw new IOException("invalid file");
-        }
+        FileMessage fileMessage = this.uploadFileMessage(fileMessageFile, thumbnailMessagePath);
 
-        byte[] fileData = this.readFile(fileMessageFile);
+        // send it
+        byte[] nonce = CryptTool.randomNonce();
+        byte[] box = boxBuffer.get();
+        int boxLength = this.encryptFileMessage(fileMessage, publicKey, nonce, box);
 
-        if (fileData == null) {
-            throw new IOException("invalid file");
-        }
+        return this.apiConnector.sendE2EMessage(threemaId, nonce, box, boxLength);
+    }
 
-        // encrypt the image
-        EncryptResult encryptResult = CryptTool.encryptFileData(fileData);
+    /**
+     * Asynchronous variant of {@link #sendFileMessage(String, File, File)}.
+     *
+     * @return a future for the generated message ID
+     */
+    public CompletableFuture<String> sendFileMessageAsync(String threemaId, File fileMessageFile,
+            File thumbnailMessagePath) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.sendFileMessage(threemaId, fileMessageFile, thumbnailMessagePath);
+            } catch (InvalidKeyException | IOException | NotAllowedException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
+    }
 
-        // upload the image
-        UploadResult uploadResult = apiConnector.uploadFile(encryptResult);
+    /**
+     * Send a file message to many recipients. The file (and thumbnail) is encrypted and
+     * uploaded only once; the per-recipient messages, which carry the blob IDs and the
+     * file key, are then prepared in parallel and sent in bulk.
+     *
+     * Recipients without a public key get response code 404, recipients that cannot
+     * receive files 403, recipients whose message cannot be prepared (e.g. an invalid
+     * public key) 400, and recipients whose lookup failed {@link SendResult#NO_RESPONSE}.
+     *
+     * @param threemaIds target Threema IDs
+     * @param fileMessageFile the file to be sent
+     * @param thumbnailMessagePath file for thumbnail; if not set, no thumbnail will be sent
+     * @param parallelism number of recipients to prepare concurrently (key and capability lookup, encryption)
+     * @return one result per recipient, in the same order
+     * @throws IOException if the file cannot be read or uploaded
+     */
+    public List<SendResult> sendFileMessage(List<String> threemaIds, File fileMessageFile, File thumbnailMessagePath,
+            int parallelism) throws IOException {
+        final FileMessage fileMessage = this.uploadFileMessage(fileMessageFile, thumbnailMessagePath);
+
+        final OutgoingMessage[] prepared = new OutgoingMessage[threemaIds.size()];
+        final SendResult[] results = new SendResult[threemaIds.size()];
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, threemaIds.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>(threemaIds.size());
+            for (int i = 0; i < threemaIds.size(); i++) {
+                final int index = i;
+                final String threemaId = threemaIds.get(i);
+                futures.add(executor.submit(() -> {
+                    try {
+                        byte[] publicKey = this.apiConnector.lookupKey(threemaId);
+                        if (publicKey == null) {
+                            results[index] = new SendResult(threemaId, 404, null);
+                            return;
+                        }
+                        if (publicKey.length != NaCl.PUBLICKEYBYTES) {
+                            results[index] = new SendResult(threemaId, 400, null);
+                            return;
+                        }
+
+                        CapabilityResult capabilityResult = this.apiConnector.lookupKeyCapability(threemaId);
+                        if (capabilityResult == null || !capabilityResult.canFile()) {
+                            results[index] = new SendResult(threemaId, 403, null);
+                            return;
+                        }
+
+                        byte[] nonce = CryptTool.randomNonce();
+                        byte[] box = boxBuffer.get();
+                        int boxLength = this.encryptFileMessage(fileMessage, publicKey, nonce, box);
+                        prepared[index] = new OutgoingMessage(threemaId, nonce, Arrays.copyOf(box, boxLength));
+                    } catch (IOException e) {
+                        results[index] = new SendResult(threemaId, SendResult.NO_RESPONSE, null);
+                    } catch (RuntimeException e) {
+                        // a bad key or message affects only this recipient
+                        results[index] = new SendResult(threemaId, 400, null);
+                    }
+                }));
+            }
 
-        if (!uploadResult.isSuccess()) {
-            throw new IOException("could not upload file (upload response " + uploadResult.getResponseCode() + ")");
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
-        UploadResult uploadResultThumbnail = null;
-
-        if (thumbnailMessagePath != null && thumbnailMessagePath.isFile()) {
-            byte[] thumbnailData = this.readFile(thumbnailMessagePath);
-            if (thumbnailData == null) {
-                throw new IOException("invalid thumbnail file");
+        // send all prepared messages in bulk and merge the results in recipient order
+        List<OutgoingMessage> messages = new ArrayList<>(prepared.length);
+        for (OutgoingMessage message : prepared) {
+            if (message != null) {
+                messages.add(message);
             }
-
-            // encrypt the thumbnail
-            EncryptResult encryptResultThumbnail = CryptTool.encryptFileThumbnailData(fileData,
-                    encryptResult.getSecret());
-
-            // upload the thumbnail
-            uploadResultThumbnail = this.apiConnector.uploadFile(encryptResultThumbnail);
         }
+        List<SendResult> sendResults = this.apiConnector.sendE2EMessages(messages);
 
-        // send it
-        EncryptResult fileMessage = CryptTool.encryptFileMessage(encryptResult, uploadResult,
-                Files.probeContentType(fileMessageFile.toPath()), fileMessageFile.getName(),
-                (int) fileMessageFile.length(), uploadResultThumbnail, privateKey, publicKey);
-
-        return this.apiConnector.sendE2EMessage(threemaId, fileMessage.getNonce(), fileMessage.getResult());
+        List<SendResult> merged = new ArrayList<>(results.length);
+        int next = 0;
+        for (int i = 0; i < results.length; i++) {
+            merged.add(prepared[i] != null ? sendResults.get(next++) : results[i]);
+        }
+        return merged;
     }
 
     /**
      * Decrypt a Message and download the blobs of the Message (e.g. image or file)
+     * <p>
+     * If the download of a file fails, the downloaded part is kept in outputFolder (as
+     * "&lt;messageId&gt;-&lt;fileName&gt;.blob.part") so that receiving the message again resumes it.
+     * Delete it if the message is not received again.
      *
      * @param threemaId Threema ID of the sender
      * @param messageId Message ID
@@ -272,33 +488,248 @@ public class E2EHelper {
 
             result.files.add(imageFile);
         } else if (message instanceof FileMessage) {
-            // download file
             FileMessage fileMessage = (FileMessage) message;
-            byte[] fileData = this.apiConnector.downloadFile(fileMessage.getBlobId());
 
-            byte[] decryptedFileData = CryptTool.decryptFileData(fileData, fileMessage.getEncryptionKey());
+            // download the thumbnail in the background while the file is downloaded here
+            CompletableFuture<File> thumbnailDownload = null;
+            if (fileMessage.getThumbnailBlobId() != null) {
+                thumbnailDownload = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return this.downloadThumbnail(fileMessage, messageId, outputFolder);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, this.executor);
+            }
+
+            // download the encrypted file next to its destination (resumable and, for large
+            // blobs, in parallel ranges if enabled on the connector), then decrypt it from
+            // disk to disk without loading it onto the heap
+            File encryptedFile = new File(outputFolder.toString() + "/" + messageId + "-"
+                    + fileMessage.getFileName() + ".blob");
             File file = new File(outputFolder.toString() + "/" + messageId + "-" + fileMessage.getFileName());
-            FileOutputStream fos = new FileOutputStream(file);
-            fos.write(decryptedFileData);
-            fos.close();
+            try {
+                this.apiConnector.downloadFile(fileMessage.getBlobId(), encryptedFile, null);
+                if (!CryptTool.decryptFileData(encryptedFile.toPath(), file.toPath(),
+                        fileMessage.getEncryptionKey())) {
+                    throw new MessageParseException();
+                }
+            } catch (IOException | MessageParseException | RuntimeException e) {
+                if (thumbnailDownload != null) {
+                    // the caller never learns about the thumbnail, remove it once it has been written
+                    thumbnailDownload.whenComplete((thumbnailFile, error) -> {
+                        if (thumbnailFile != null) {
+                            thumbnailFile.delete();
+                        }
+                    });
+                }
+                throw e;
+            } finally {
+                Files.deleteIfExists(encryptedFile.toPath());
+            }
 
             result.files.add(file);
 
-            if (fileMessage.getThumbnailBlobId() != null) {
-                byte[] thumbnailData = this.apiConnector.downloadFile(fileMessage.getThumbnailBlobId());
+            if (thumbnailDownload != null) {
+                try {
+                    result.files.add(await(thumbnailDownload));
+                } catch (IOException | RuntimeException e) {
+                    // the caller never learns about the decrypted file either
+                    Files.deleteIfExists(file.toPath());
+                    throw e;
+                }
+            }
+        }
+
+        return result;
+    }
 
-                byte[] decryptedThumbnailData = CryptTool.decryptFileThumbnailData(thumbnailData,
-                        fileMessage.getEncryptionKey());
-                File thumbnailFile = new File(outputFolder.toString() + "/" + messageId + "-thumbnail.jpg");
-                fos = new FileOutputStream(thumbnailFile);
-                fos.write(decryptedThumbnailData);
-                fos.close();
+    /**
+     * Decrypt a batch of incoming messages and download their blobs. Up to parallelism
+     * messages are processed concurrently (each of which may download its thumbnail in the
+     * background as well). A failing message does not affect the others; its result has
+     * no message and describes the failure in {@link ReceiveMessageResult#getErrors()}.
+     *
+     * @param callbacks the incoming messages
+     * @param outputFolder Output folder for storing decrypted images/files
+     * @param parallelism maximum number of messages processed concurrently
+     * @return one result per message, in the same order
+     */
+    public List<ReceiveMessageResult> receiveMessages(List<IncomingCallback> callbacks, Path outputFolder,
+            int parallelism) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, callbacks.size())));
+        try {
+            List<Future<ReceiveMessageResult>> futures = new ArrayList<>(callbacks.size());
+            for (IncomingCallback callback : callbacks) {
+                futures.add(pool.submit(() -> this.receiveMessage(callback.getFrom(), callback.getMessageId(),
+                        callback.getBox(), callback.getNonce(), outputFolder)));
+            }
 
-                result.files.add(thumbnailFile);
+            List<ReceiveMessageResult> results = new ArrayList<>(callbacks.size());
+            for (int i = 0; i < futures.size(); i++) {
+                ReceiveMessageResult result;
+                String error;
+                try {
+                    result = futures.get(i).get();
+                    error = result == null ? "could not decrypt message" : null;
+                } catch (ExecutionException e) {
+                    result = null;
+                    error = e.getCause().toString();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = null;
+                    error = "interrupted";
+                }
+
+                if (result == null) {
+                    result = new ReceiveMessageResult(callbacks.get(i).getMessageId(), null);
+                    result.errors.add(error);
+                }
+                results.add(result);
             }
+            return results;
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        return result;
+    private File downloadThumbnail(FileMessage fileMessage, String messageId, Path outputFolder) throws IOException {
+        byte[] thumbnailData = this.apiConnector.downloadFile(fileMessage.getThumbnailBlobId());
+
+        byte[] decryptedThumbnailData = CryptTool.decryptFileThumbnailData(thumbnailData,
+                fileMessage.getEncryptionKey());
+        File thumbnailFile = new File(outputFolder.toString() + "/" + messageId + "-thumbnail.jpg");
+        try (FileOutputStream fos = new FileOutputStream(thumbnailFile)) {
+            fos.write(decryptedThumbnailData);
+        }
+        return thumbnailFile;
+    }
+
+    /**
+     * Encrypt and upload a file and its optional thumbnail with a new file key.
+     *
+     * @return a file message referencing the uploaded blobs, which can be sent to any recipient
+     */
+    private FileMessage uploadFileMessage(File fileMessageFile, File thumbnailMessagePath) throws IOException {
+        if (!fileMessageFile.isFile()) {
+            throw new IOException("invalid file");
+        }
+
+        // the file key is not tied to a recipient, so a cached upload fits any message with the same content
+        BlobCache cache = this.blobCache;
+        File thumbnailFile = thumbnailMessagePath != null && thumbnailMessagePath.isFile() ? thumbnailMessagePath : null;
+        String cacheKey = cache != null ? BlobCache.key("file", null, fileMessageFile, thumbnailFile) : null;
+        BlobCache.Entry cached = cache != null ? cache.get(cacheKey) : null;
+        if (cached != null) {
+            return this.createFileMessage(fileMessageFile, cached.getBlobId(), cached.getKey(),
+                    cached.getThumbnailBlobId());
+        }
+
+        // encrypt the file from a mapped file into a temporary file, so that its content is never
+        // copied onto the heap
+        File encryptedFile = File.createTempFile("file", ".blob");
+        EncryptResult encryptResult;
+        try {
+            encryptResult = CryptTool.encryptFileData(fileMessageFile.toPath(), encryptedFile.toPath());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(encryptedFile.toPath());
+            throw e;
+        }
+
+        // upload the file in the background, while the thumbnail is prepared and uploaded here
+        CompletableFuture<UploadResult> fileUpload = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.apiConnector.uploadFile(encryptedFile);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                encryptedFile.delete();
+            }
+        }, this.executor);
+
+        byte[] thumbnailBlobId = null;
+
+        if (thumbnailFile != null) {
+            byte[] thumbnailData = this.readFile(thumbnailFile);
+
+            // encrypt the thumbnail
+            EncryptResult encryptResultThumbnail = CryptTool.encryptFileThumbnailData(thumbnailData,
+                    encryptResult.getSecret());
+
+            // upload the thumbnail
+            UploadResult uploadResultThumbnail = this.apiConnector.uploadFile(encryptResultThumbnail);
+
+            if (!uploadResultThumbnail.isSuccess()) {
+                throw new IOException("could not upload thumbnail (upload response "
+                        + uploadResultThumbnail.getResponseCode() + ")");
+            }
+            thumbnailBlobId = uploadResultThumbnail.getBlobId();
+        }
+
+        UploadResult uploadResult = await(fileUpload);
+
+        if (!uploadResult.isSuccess()) {
+            throw new IOException("could not upload file (upload response " + uploadResult.getResponseCode() + ")");
+        }
+
+        FileMessage fileMessage = this.createFileMessage(fileMessageFile, uploadResult.getBlobId(),
+                encryptResult.getSecret(), thumbnailBlobId);
+        if (cache != null) {
+            cache.put(cacheKey, uploadResult.getBlobId(), encryptResult.getSecret(), thumbnailBlobId,
+                    encryptResult.getSize());
+        }
+        return fileMessage;
+    }
+
+    private FileMessage createFileMessage(File file, byte[] blobId, byte[] encryptionKey, byte[] thumbnailBlobId)
+            throws IOException {
+        String mimeType = Files.probeContentType(file.toPath());
+        FileMessage fileMessage = new FileMessage(blobId, encryptionKey,
+                mimeType != null ? mimeType : "application/octet-stream", file.getName(),
+                (int) file.length(), thumbnailBlobId);
+
+        // fail before anything is sent if the message cannot fit into a box
+        try {
+            if (fileMessage.getData().length + 1 + 254 + NaCl.BOXOVERHEAD > CryptTool.MAX_BOX_LENGTH) {
+                throw new IOException("file name too long");
+            }
+        } catch (BadMessageException e) {
+            throw new IOException("invalid file message");
+        }
+        return fileMessage;
+    }
+
+    private void checkCanImage(CompletableFuture<CapabilityResult> capabilityLookup)
+            throws IOException, NotAllowedException {
+        CapabilityResult capabilityResult = await(capabilityLookup);
+        if (capabilityResult == null || !capabilityResult.canImage()) {
+            throw new NotAllowedException();
+        }
+    }
+
+    /**
+     * Wait for a background task, unwrapping its exception.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private int encryptFileMessage(FileMessage fileMessage, byte[] publicKey, byte[] nonce, byte[] box) {
+        try {
+            return CryptTool.encryptMessage(fileMessage, this.privateKey, publicKey, nonce, box);
+        } catch (BadMessageException e) {
+            /* checked when the message was created */
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -0,0 +1,351 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.OutgoingMessage;
+import ch.threema.apitool.results.SendResult;
+
+/**
+ * Append-only journal of outgoing messages in a memory-mapped file, used by {@link OutboundQueue}.
+ * <p>
+ * The file starts with a magic number and version, followed by records of the form
+ * <code>length (int), type (byte), payload, CRC32 of type and payload (int)</code>. An enqueue
+ * record holds the sequence number, recipient, nonce and box of a message; an ack record holds
+ * the sequence number, response code and message ID of its final result. Replay stops at the
+ * first record that is incomplete or fails its checksum, which covers a write torn by a crash.
+ * <p>
+ * Appends only write to the mapping; {@link #sync()} forces the file to disk. Concurrent
+ * callers of sync share a single force (group commit).
+ */
+final class OutboundJournal implements Closeable {
+    private static final int MAGIC = 0x544d514a; /* "TMQJ" */
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    private static final byte TYPE_ENQUEUE = 1;
+    private static final byte TYPE_ACK = 2;
+
+    private static final int ID_LENGTH = 8;
+    private static final int NONCE_LENGTH = 24;
+    /* length, type and checksum */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+    private static final int ACK_LENGTH = RECORD_OVERHEAD + 8 + 4 + 8;
+
+    private final Path path;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+
+    /* guarded by this */
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final Map<Long, OutgoingMessage> pending = new LinkedHashMap<>();
+    private long nextSequence = 1;
+    /* number of bytes appended since opening, including compactions */
+    private long written;
+    private boolean closed;
+
+    /* guarded by syncMonitor */
+    private final Object syncMonitor = new Object();
+    private long durable;
+    private boolean syncing;
+
+    /**
+     * Open a journal, replaying the messages that have not been acknowledged, and compact it.
+     *
+     * @param file journal file; created if it does not exist
+     * @param capacity maximum size of the journal file
+     */
+    OutboundJournal(File file, int capacity) throws IOException {
+        this.path = file.toPath();
+        this.capacity = capacity;
+
+        if (Files.exists(this.path)) {
+            this.replay();
+        }
+        synchronized (this) {
+            this.compact();
+        }
+    }
+
+    private void replay() throws IOException {
+        try (FileChannel in = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            long size = Math.min(in.size(), this.capacity);
+            if (size == 0) {
+                return;
+            }
+
+            MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_LENGTH || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("not an outbound journal: " + this.path);
+            }
+
+            int position = HEADER_LENGTH;
+            while (position + 4 <= size) {
+                int length = data.getInt(position);
+                if (length < RECORD_OVERHEAD || position + length > size) {
+                    break;
+                }
+
+                if (this.checksum(data, position + 4, position + length - 4) != data.getInt(position + length - 4)) {
+                    break;
+                }
+
+                data.position(position + 5);
+                long sequence = data.getLong();
+                if (data.get(position + 4) == TYPE_ENQUEUE) {
+                    byte[] to = new byte[ID_LENGTH];
+                    byte[] nonce = new byte[NONCE_LENGTH];
+                    data.get(to).get(nonce);
+                    byte[] box = new byte[data.getInt()];
+                    data.get(box);
+                    this.pending.put(sequence, new OutgoingMessage(new String(to, StandardCharsets.US_ASCII), nonce, box));
+                } else {
+                    this.pending.remove(sequence);
+                }
+                this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+                position += length;
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the pending messages. The new file is written and forced
+     * next to the journal, then moved over it.
+     */
+    private void compact() throws IOException {
+        Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        FileChannel newChannel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+            newBuffer.putInt(MAGIC).putInt(VERSION);
+            for (Map.Entry<Long, OutgoingMessage> entry : this.pending.entrySet()) {
+                if (newBuffer.remaining() < enqueueLength(entry.getValue()) + 4) {
+                    throw new IOException("outbound journal full");
+                }
+                this.writeEnqueue(newBuffer, entry.getKey(), entry.getValue());
+            }
+            newBuffer.force();
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (this.channel != null) {
+                this.channel.close();
+            }
+            this.channel = newChannel;
+            this.buffer = newBuffer;
+        } catch (IOException | RuntimeException e) {
+            newChannel.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        /* everything appended so far is either in the forced new file or acknowledged */
+        this.markDurable(this.written);
+    }
+
+    /**
+     * Append a message to the journal. It is not durable before the next {@link #sync()}.
+     *
+     * @return the sequence number of the message
+     */
+    synchronized long append(OutgoingMessage message) throws IOException {
+        this.checkOpen();
+        if (message.getTo().length() != ID_LENGTH || message.getNonce().length != NONCE_LENGTH) {
+            throw new IllegalArgumentException("Invalid message");
+        }
+
+        int length = enqueueLength(message);
+        this.ensureSpace(length);
+        long sequence = this.nextSequence++;
+        this.writeEnqueue(this.buffer, sequence, message);
+        this.pending.put(sequence, message);
+        this.written += length;
+        return sequence;
+    }
+
+    /**
+     * Record the final result of a message, so that it is not replayed. It is not durable
+     * before the next {@link #sync()}.
+     */
+    synchronized void ack(long sequence, SendResult result) throws IOException {
+        this.checkOpen();
+        if (this.pending.remove(sequence) == null) {
+            return;
+        }
+
+        long messageId = 0;
+        if (result.getMessageId() != null) {
+            try {
+                messageId = MessageId.parseHex(result.getMessageId());
+            } catch (IllegalArgumentException e) {
+                /* not recorded */
+            }
+        }
+
+        this.ensureSpace(ACK_LENGTH);
+        int start = this.buffer.position();
+        this.buffer.putInt(ACK_LENGTH).put(TYPE_ACK).putLong(sequence).putInt(result.getResponseCode())
+                .putLong(messageId);
+        this.writeChecksum(this.buffer, start);
+        this.written += ACK_LENGTH;
+    }
+
+    /**
+     * Make everything appended before this call durable. If another thread is already forcing
+     * the journal, wait for it and force once more only if its force did not cover our appends.
+     */
+    void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            if (this.closed) {
+                /* forced by close() */
+                return;
+            }
+            target = this.written;
+        }
+
+        synchronized (this.syncMonitor) {
+            while (this.syncing && this.durable < target) {
+                try {
+                    this.syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("journal sync interrupted");
+                }
+            }
+            if (this.durable >= target) {
+                return;
+            }
+            this.syncing = true;
+        }
+
+        long upTo = 0;
+        try {
+            MappedByteBuffer current;
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                current = this.buffer;
+                upTo = this.written;
+            }
+            current.force();
+        } finally {
+            synchronized (this.syncMonitor) {
+                this.syncing = false;
+                this.durable = Math.max(this.durable, upTo);
+                this.syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the messages that have no result yet, by sequence number
+     */
+    synchronized Map<Long, OutgoingMessage> getPending() {
+        return new LinkedHashMap<>(this.pending);
+    }
+
+    synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Force and close the journal. Later appends and acknowledgements fail.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("outbound journal closed");
+        }
+    }
+
+    private void ensureSpace(int length) throws IOException {
+        /* keep room for the terminating zero length */
+        if (this.buffer.remaining() < length + 4) {
+            this.compact();
+            if (this.buffer.remaining() < length + 4) {
+                throw new IOException("outbound journal full");
+            }
+        }
+    }
+
+    private void markDurable(long position) {
+        synchronized (this.syncMonitor) {
+            this.durable = Math.max(this.durable, position);
+            this.syncMonitor.notifyAll();
+        }
+    }
+
+    private static int enqueueLength(OutgoingMessage message) {
+        return RECORD_OVERHEAD + 8 + ID_LENGTH + NONCE_LENGTH + 4 + message.getBox().length;
+    }
+
+    private void writeEnqueue(MappedByteBuffer target, long sequence, OutgoingMessage message) {
+        int start = target.position();
+        target.putInt(enqueueLength(message)).put(TYPE_ENQUEUE).putLong(sequence)
+                .put(message.getTo().getBytes(StandardCharsets.US_ASCII)).put(message.getNonce())
+                .putInt(message.getBox().length).put(message.getBox());
+        this.writeChecksum(target, start);
+    }
+
+    private void writeChecksum(MappedByteBuffer target, int start) {
+        target.putInt(this.checksum(target, start + 4, target.position()));
+    }
+
+    private int checksum(ByteBuffer data, int start, int end) {
+        ByteBuffer range = data.duplicate();
+        range.limit(end).position(start);
+        this.crc.reset();
+        this.crc.update(range);
+        return (int) this.crc.getValue();
+    }
+}
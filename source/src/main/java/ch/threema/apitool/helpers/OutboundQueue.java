@@ -0,0 +1,385 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.OutgoingMessage;
+import ch.threema.apitool.results.SendResult;
+
+/**
+ * Durable queue for outgoing end-to-end encrypted messages.
+ * <p>
+ * Enqueued messages are written to a memory-mapped journal file before they are accepted,
+ * and sent in batches by a number of worker threads. The final result of each message
+ * (its message ID, or the error code of a permanent failure) is recorded in the journal as
+ * well. Messages without a result are sent again after a restart, so a message may be sent
+ * twice if the process dies between sending it and recording its result.
+ * <p>
+ * Journal writes are forced to disk once per group of concurrent enqueues and once per
+ * dispatched batch, not once per message. Requests that fail for temporary reasons (no
+ * connection, HTTP 429 or 5xx) are retried with exponential backoff. Messages whose result
+ * cannot be determined are not sent again; they complete with
+ * {@link SendResult#OUTCOME_UNKNOWN} and are left for the caller to check.
+ */
+public class OutboundQueue implements Closeable {
+    /** Default maximum size of the journal file (64 MiB) */
+    public static final int DEFAULT_JOURNAL_CAPACITY = 64 * 1024 * 1024;
+    /** Default maximum number of messages sent in one request */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private final APIConnector apiConnector;
+    private final OutboundJournal journal;
+    private final int workers;
+    private final int batchSize;
+    private final BlockingQueue<Entry> ready = new LinkedBlockingQueue<>();
+    /* messages left by an earlier run, queued on start() */
+    private Map<Long, OutgoingMessage> replayed;
+    /* entries waiting for a retry */
+    private final Set<Entry> delayed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retryScheduler;
+    private volatile long retryDelayMillis = 1000;
+    private volatile ExecutorService workerPool;
+    private volatile boolean closed;
+
+    private static class Entry {
+        final long sequence;
+        final OutgoingMessage message;
+        final CompletableFuture<SendResult> future;
+        int attempts;
+
+        Entry(long sequence, OutgoingMessage message, CompletableFuture<SendResult> future) {
+            this.sequence = sequence;
+            this.message = message;
+            this.future = future;
+        }
+    }
+
+    public OutboundQueue(APIConnector apiConnector, File journalFile, int workers) throws IOException {
+        this(apiConnector, journalFile, DEFAULT_JOURNAL_CAPACITY, workers, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Open the queue and its journal. Messages left in the journal by an earlier run are sent
+     * once the queue is started.
+     *
+     * @param apiConnector connector used to send the messages
+     * @param journalFile journal file; created if it does not exist
+     * @param journalCapacity maximum size of the journal file, which limits the number of pending messages
+     * @param workers number of threads sending batches concurrently
+     * @param batchSize maximum number of messages per request
+     * @throws IOException if the journal cannot be opened
+     */
+    public OutboundQueue(APIConnector apiConnector, File journalFile, int journalCapacity, int workers,
+                         int batchSize) throws IOException {
+        if (workers < 1 || batchSize < 1 || journalCapacity < 65536) {
+            throw new IllegalArgumentException("Invalid outbound queue configuration");
+        }
+
+        this.apiConnector = apiConnector;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.journal = new OutboundJournal(journalFile, journalCapacity);
+        this.replayed = this.journal.getPending();
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "OutboundQueue-retry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue the messages left from an earlier run and start sending.
+     */
+    public synchronized void start() {
+        if (this.workerPool != null || this.closed) {
+            throw new IllegalStateException("Outbound queue already started or closed");
+        }
+
+        /* messages enqueued since the journal was opened are already in the ready queue */
+        for (Map.Entry<Long, OutgoingMessage> pending : this.replayed.entrySet()) {
+            this.ready.add(new Entry(pending.getKey(), pending.getValue(), null));
+        }
+        this.replayed = null;
+
+        this.workerPool = Executors.newFixedThreadPool(this.workers, r -> {
+            Thread t = new Thread(r, "OutboundQueue-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < this.workers; i++) {
+            this.workerPool.execute(this::work);
+        }
+    }
+
+    /**
+     * Add a message to the queue. Returns once the message has been written to disk.
+     *
+     * @param message the message to send
+     * @return a future completed with the final result of the message
+     * @throws IOException if the message cannot be written to the journal
+     */
+    public CompletableFuture<SendResult> enqueue(OutgoingMessage message) throws IOException {
+        List<OutgoingMessage> messages = new ArrayList<>(1);
+        messages.add(message);
+        return this.enqueue(messages).get(0);
+    }
+
+    /**
+     * Add several messages to the queue with a single write to disk.
+     *
+     * @param messages the messages to send
+     * @return one future per message, completed with its final result
+     * @throws IOException if the messages cannot be written to the journal
+     */
+    public List<CompletableFuture<SendResult>> enqueue(List<OutgoingMessage> messages) throws IOException {
+        List<Entry> entries = new ArrayList<>(messages.size());
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Outbound queue closed");
+            }
+            for (OutgoingMessage message : messages) {
+                entries.add(new Entry(this.journal.append(message), message, new CompletableFuture<>()));
+            }
+        }
+        /* outside the lock, so that concurrent enqueues share one force */
+        this.journal.sync();
+
+        List<CompletableFuture<SendResult>> futures = new ArrayList<>(entries.size());
+        synchronized (this) {
+            for (Entry entry : entries) {
+                if (this.closed) {
+                    /* closed while syncing; the message stays in the journal */
+                    entry.future.completeExceptionally(new IOException("outbound queue closed"));
+                } else {
+                    this.ready.add(entry);
+                }
+                futures.add(entry.future);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Set the delay before the first retry of a temporarily failed message. It is doubled for
+     * each further attempt, up to five minutes.
+     */
+    public void setRetryDelay(long delay, TimeUnit unit) {
+        this.retryDelayMillis = unit.toMillis(delay);
+    }
+
+    /**
+     * @return the number of messages without a final result
+     */
+    public int getPendingCount() {
+        return this.journal.getPendingCount();
+    }
+
+    /**
+     * Stop sending and close the journal. Messages that have not been sent stay in the
+     * journal and are sent by the next queue opened on it; their futures fail. Waits for
+     * requests that are in progress to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+
+        this.retryScheduler.shutdownNow();
+        if (this.workerPool != null) {
+            this.workerPool.shutdownNow();
+            try {
+                /* a worker may be inside a request; its results must reach the journal before it is closed */
+                while (!this.workerPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    /* keep waiting */
+                }
+            } catch (InterruptedException e) {
+                /* a late result fails to be recorded, and the message is sent again by the next queue */
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.journal.close();
+
+        List<Entry> unsent = new ArrayList<>(this.delayed);
+        this.ready.drainTo(unsent);
+        for (Entry entry : unsent) {
+            if (entry.future != null) {
+                entry.future.completeExceptionally(new IOException("outbound queue closed"));
+            }
+        }
+    }
+
+    /**
+     * Called with the final result of each message, including messages replayed from the journal.
+     * Runs on a worker thread. A RuntimeException thrown here fails the future of the message.
+     *
+     * @param sequence sequence number of the message in the journal
+     * @param message the message
+     * @param result the result of sending it
+     */
+    protected void onResult(long sequence, OutgoingMessage message, SendResult result) {
+    }
+
+    private void work() {
+        List<Entry> batch = new ArrayList<>(this.batchSize);
+        while (!this.closed) {
+            try {
+                Entry first = this.ready.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.ready.drainTo(batch, this.batchSize - 1);
+                this.dispatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                /* do not leave the callers waiting; the messages stay in the journal until acknowledged */
+                for (Entry entry : batch) {
+                    if (entry.future != null && !this.delayed.contains(entry)) {
+                        entry.future.completeExceptionally(e);
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void dispatch(List<Entry> batch) {
+        List<OutgoingMessage> messages = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            messages.add(entry.message);
+        }
+
+        List<SendResult> results;
+        try {
+            results = this.apiConnector.sendE2EMessages(messages);
+            if (results.size() != batch.size()) {
+                throw new IllegalStateException("Expected " + batch.size() + " results, got " + results.size());
+            }
+        } catch (RuntimeException e) {
+            /* some of the messages may have been sent; sending them again could duplicate them */
+            results = new ArrayList<>(batch.size());
+            for (Entry entry : batch) {
+                results.add(new SendResult(entry.message.getTo(), SendResult.OUTCOME_UNKNOWN, null));
+            }
+        }
+
+        /*
+         * A journal that cannot record results fails the next enqueue as well. The messages of
+         * this batch were sent, so their futures still complete with their results; without a
+         * recorded result they are sent again after a restart.
+         */
+        List<Entry> done = new ArrayList<>(batch.size());
+        List<SendResult> doneResults = new ArrayList<>(batch.size());
+        boolean recorded = true;
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            SendResult result = results.get(i);
+            if (isTemporaryFailure(result)) {
+                this.retry(entry);
+                continue;
+            }
+            if (recorded) {
+                try {
+                    this.journal.ack(entry.sequence, result);
+                } catch (IOException e) {
+                    recorded = false;
+                }
+            }
+            done.add(entry);
+            doneResults.add(result);
+        }
+        try {
+            /* one force for the results of the whole batch */
+            this.journal.sync();
+        } catch (IOException e) {
+            /* see above */
+        }
+
+        for (int i = 0; i < done.size(); i++) {
+            Entry entry = done.get(i);
+            SendResult result = doneResults.get(i);
+            try {
+                this.onResult(entry.sequence, entry.message, result);
+            } catch (RuntimeException e) {
+                /* the caller learns about a failing hook from the future */
+                if (entry.future != null) {
+                    entry.future.completeExceptionally(e);
+                }
+                continue;
+            }
+            if (entry.future != null) {
+                entry.future.complete(result);
+            }
+        }
+    }
+
+    private void retry(Entry entry) {
+        long delay = this.retryDelayMillis << Math.min(entry.attempts++, 20);
+        this.delayed.add(entry);
+        try {
+            this.retryScheduler.schedule(() -> {
+                synchronized (this) {
+                    /* once closed, close() fails the entries that are still delayed */
+                    if (!this.closed) {
+                        this.delayed.remove(entry);
+                        this.ready.add(entry);
+                    }
+                }
+            }, Math.min(delay, MAX_RETRY_DELAY_MILLIS), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            /* closed; the message stays in the journal */
+        }
+    }
+
+    private static boolean isTemporaryFailure(SendResult result) {
+        int code = result.getResponseCode();
+        return code == SendResult.NO_RESPONSE || code == 429 || code >= 500;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.messages.DeliveryReceipt;
+
+/**
+ * Collects message IDs to acknowledge per sender and receipt type, and sends them as a
+ * single {@link DeliveryReceipt} once enough IDs have been collected or the oldest ID
+ * has been waiting for the maximum delay.
+ */
+public class ReceiptAggregator {
+    private final E2EHelper e2eHelper;
+    private final int maxMessageIds;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService executor;
+
+    /* pending batches by receipt type and Threema ID; guarded by itself */
+    private final Map<DeliveryReceipt.Type, Map<String, Batch>> pending = new EnumMap<>(DeliveryReceipt.Type.class);
+
+    private static class Batch {
+        final String threemaId;
+        final DeliveryReceipt.Type receiptType;
+        final List<MessageId> messageIds = new ArrayList<>();
+        ScheduledFuture<?> timer;
+
+        Batch(String threemaId, DeliveryReceipt.Type receiptType) {
+            this.threemaId = threemaId;
+            this.receiptType = receiptType;
+        }
+    }
+
+    /**
+     * @param e2eHelper helper used to send the receipts
+     * @param maxMessageIds number of collected IDs that triggers sending a receipt
+     *                      (at most {@link DeliveryReceipt#MAX_MESSAGE_IDS})
+     * @param maxDelay maximum time an ID waits before its receipt is sent
+     * @param unit time unit of the delay
+     */
+    public ReceiptAggregator(E2EHelper e2eHelper, int maxMessageIds, long maxDelay, TimeUnit unit) {
+        if (maxMessageIds < 1 || maxMessageIds > DeliveryReceipt.MAX_MESSAGE_IDS || maxDelay <= 0) {
+            throw new IllegalArgumentException("Invalid receipt aggregator configuration");
+        }
+
+        this.e2eHelper = e2eHelper;
+        this.maxMessageIds = maxMessageIds;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ReceiptAggregator");
+            t.setDaemon(true);
+            return t;
+        });
+        /* pending timers are dropped on shutdown, shutdown() flushes their batches itself */
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        for (DeliveryReceipt.Type type : DeliveryReceipt.Type.values()) {
+            this.pending.put(type, new HashMap<>());
+        }
+    }
+
+    /**
+     * Queue a message for acknowledgement.
+     *
+     * @param threemaId Threema ID of the sender of the message
+     * @param receiptType type of the receipt
+     * @param messageId ID of the message
+     */
+    public void add(String threemaId, DeliveryReceipt.Type receiptType, MessageId messageId) {
+        Batch full = null;
+        synchronized (this.pending) {
+            Map<String, Batch> batches = this.pending.get(receiptType);
+            Batch batch = batches.get(threemaId);
+            if (batch == null) {
+                batch = new Batch(threemaId, receiptType);
+                batches.put(threemaId, batch);
+                batch.timer = this.schedule(batch);
+            }
+
+            batch.messageIds.add(messageId);
+            if (batch.messageIds.size() >= this.maxMessageIds || batch.timer == null) {
+                batches.remove(threemaId);
+                if (batch.timer != null) {
+                    batch.timer.cancel(false);
+                }
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            final Batch batch = full;
+            try {
+                this.executor.execute(() -> this.send(batch));
+            } catch (RejectedExecutionException e) {
+                /* shut down, send synchronously instead */
+                this.send(batch);
+            }
+        }
+    }
+
+    /**
+     * @return number of message IDs waiting to be acknowledged
+     */
+    public int getPendingCount() {
+        synchronized (this.pending) {
+            int count = 0;
+            for (Map<String, Batch> batches : this.pending.values()) {
+                for (Batch batch : batches.values()) {
+                    count += batch.messageIds.size();
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Send receipts for all queued message IDs in the calling thread.
+     */
+    public void flush() {
+        List<Batch> batches = new ArrayList<>();
+        synchronized (this.pending) {
+            for (Map<String, Batch> byId : this.pending.values()) {
+                for (Batch batch : byId.values()) {
+                    if (batch.timer != null) {
+                        batch.timer.cancel(false);
+                    }
+                    batches.add(batch);
+                }
+                byId.clear();
+            }
+        }
+
+        for (Batch batch : batches) {
+            this.send(batch);
+        }
+    }
+
+    /**
+     * Stop the background thread and send receipts for all queued message IDs. IDs added
+     * afterwards are acknowledged immediately.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+    }
+
+    /**
+     * Send the receipt for a batch of message IDs. Failures are passed to
+     * {@link #onSendError(String, DeliveryReceipt.Type, List, Exception)}.
+     *
+     * @param threemaId target Threema ID
+     * @param receiptType type of the receipt
+     * @param messageIds IDs of the messages to acknowledge
+     */
+    protected void sendReceipt(String threemaId, DeliveryReceipt.Type receiptType, List<MessageId> messageIds) {
+        try {
+            this.e2eHelper.sendDeliveryReceipt(threemaId, receiptType, messageIds);
+        } catch (Exception e) {
+            this.onSendError(threemaId, receiptType, messageIds, e);
+        }
+    }
+
+    /**
+     * Called when the receipt for a batch of message IDs could not be sent. The IDs are not
+     * queued again. The default implementation ignores the failure.
+     *
+     * @param threemaId target Threema ID
+     * @param receiptType type of the receipt
+     * @param messageIds IDs of the messages that were not acknowledged
+     * @param e the cause of the failure
+     */
+    protected void onSendError(String threemaId, DeliveryReceipt.Type receiptType, List<MessageId> messageIds,
+            Exception e) {
+    }
+
+    private ScheduledFuture<?> schedule(Batch batch) {
+        try {
+            return this.executor.schedule(() -> this.expire(batch), this.maxDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            /* shut down, the caller sends the batch right away */
+            return null;
+        }
+    }
+
+    private void expire(Batch batch) {
+        synchronized (this.pending) {
+            Map<String, Batch> batches = this.pending.get(batch.receiptType);
+            if (batches.get(batch.threemaId) != batch) {
+                /* already sent because it was full or flushed */
+                return;
+            }
+            batches.remove(batch.threemaId);
+        }
+        this.send(batch);
+    }
+
+    private void send(Batch batch) {
+        try {
+            this.sendReceipt(batch.threemaId, batch.receiptType, batch.messageIds);
+        } catch (RuntimeException e) {
+            this.onSendError(batch.threemaId, batch.receiptType, batch.messageIds, e);
+        }
+    }
+}
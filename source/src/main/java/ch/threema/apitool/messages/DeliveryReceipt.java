@@ -24,8 +24,13 @@
 
 package ch.threema.apitool.messages;
 
+import ch.threema.apitool.CryptTool;
 import ch.threema.apitool.MessageId;
+import ch.threema.apitool.exceptions.BadMessageException;
+import com.neilalexander.jnacl.NaCl;
 
+import java.nio.BufferOverflowException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -36,6 +41,41 @@ public class DeliveryReceipt extends ThreemaMessage {
 
 	public static final int TYPE_CODE = 0x80;
 
+	/**
+	 * Maximum number of message IDs in one receipt, so that the encrypted box (including
+	 * type byte and maximum padding) stays within {@link CryptTool#MAX_BOX_LENGTH}.
+	 */
+	public static final int MAX_MESSAGE_IDS = (CryptTool.MAX_BOX_LENGTH - NaCl.BOXOVERHEAD - 2 - 254)
+			/ MessageId.MESSAGE_ID_LEN;
+
+	public static final MessageCodec<DeliveryReceipt> CODEC = new MessageCodec<DeliveryReceipt>() {
+		@Override
+		public int getTypeCode() {
+			return TYPE_CODE;
+		}
+
+		@Override
+		public void validate(byte[] data, int offset, int length) throws BadMessageException {
+			if (length < MessageId.MESSAGE_ID_LEN + 1 || ((length - 1) % MessageId.MESSAGE_ID_LEN) != 0)
+				throw new BadMessageException();
+
+			if (Type.get(data[offset] & 0xFF) == null)
+				throw new BadMessageException();
+		}
+
+		@Override
+		public DeliveryReceipt decode(byte[] data, int offset, int length) throws BadMessageException {
+			this.validate(data, offset, length);
+			Type receiptType = Type.get(data[offset] & 0xFF);
+			int numMsgIds = (length - 1) / MessageId.MESSAGE_ID_LEN;
+			List<MessageId> messageIds = new ArrayList<>(numMsgIds);
+			for (int i = 0; i < numMsgIds; i++) {
+				messageIds.add(new MessageId(data, offset + 1 + i * MessageId.MESSAGE_ID_LEN));
+			}
+			return new DeliveryReceipt(receiptType, messageIds);
+		}
+	};
+
 	private final Type receiptType;
 	private final List<MessageId> ackedMessageIds;
 
@@ -107,7 +147,24 @@ public class DeliveryReceipt extends ThreemaMessage {
 
 	@Override
 	public byte[] getData() {
-		//Not implemented yet
-		return new byte[0];
+		byte[] data = new byte[1 + ackedMessageIds.size() * MessageId.MESSAGE_ID_LEN];
+		this.writeData(data, 0);
+		return data;
+	}
+
+	@Override
+	public int writeData(byte[] buffer, int offset) {
+		int length = 1 + ackedMessageIds.size() * MessageId.MESSAGE_ID_LEN;
+		if (length > buffer.length - offset) {
+			throw new BufferOverflowException();
+		}
+
+		int pos = offset;
+		buffer[pos++] = (byte) receiptType.getCode();
+		for (MessageId messageId : ackedMessageIds) {
+			messageId.write(buffer, pos);
+			pos += MessageId.MESSAGE_ID_LEN;
+		}
+		return length;
 	}
 }
@@ -24,44 +24,62 @@
 
 package ch.threema.apitool.messages;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
-
-import ch.threema.apitool.DataUtils;
 import ch.threema.apitool.exceptions.BadMessageException;
 
 /**
  * A file message that can be sent/received with end-to-end encryption via Threema.
  */
 public class FileMessage extends ThreemaMessage {
-    private final static String KEY_BLOB_ID = "b";
-    private final static String KEY_THUMBNAIL_BLOB_ID = "t";
-    private final static String KEY_ENCRYPTION_KEY = "k";
-    private final static String KEY_MIME_TYPE = "m";
-    private final static String KEY_FILE_NAME = "n";
-    private final static String KEY_FILE_SIZE = "s";
-    private final static String KEY_TYPE = "i";
-
     public static final int TYPE_CODE = 0x17;
 
+    public static final MessageCodec<FileMessage> CODEC = new MessageCodec<FileMessage>() {
+        @Override
+        public int getTypeCode() {
+            return TYPE_CODE;
+        }
+
+        @Override
+        public FileMessage decode(byte[] data, int offset, int length) throws BadMessageException {
+            return FileMessageJson.read(data, offset, length);
+        }
+    };
+
     private final byte[] blobId;
     private final byte[] encryptionKey;
     private final String mimeType;
     private final String fileName;
     private final int fileSize;
     private final byte[] thumbnailBlobId;
+    private final String description;
+    private final String metadata;
 
     public FileMessage(byte[] blobId, byte[] encryptionKey, String mimeType, String fileName, int fileSize,
             byte[] thumbnailBlobId) {
+        this(blobId, encryptionKey, mimeType, fileName, fileSize, thumbnailBlobId, null, null);
+    }
+
+    /**
+     * @param description optional caption shown with the file
+     * @param metadata optional metadata object, as raw JSON text (e.g. {@code {"h":480,"w":640}})
+     * @throws IllegalArgumentException if the metadata is not a well-formed JSON object
+     */
+    public FileMessage(byte[] blobId, byte[] encryptionKey, String mimeType, String fileName, int fileSize,
+            byte[] thumbnailBlobId, String description, String metadata) {
+        if (metadata != null && !FileMessageJson.isObject(metadata)) {
+            throw new IllegalArgumentException("metadata is not a JSON object");
+        }
+
         this.blobId = blobId;
         this.encryptionKey = encryptionKey;
         this.mimeType = mimeType;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.thumbnailBlobId = thumbnailBlobId;
+        this.description = description;
+        this.metadata = metadata;
     }
 
     public byte[] getBlobId() {
@@ -88,6 +106,17 @@ public class FileMessage extends ThreemaMessage {
         return this.thumbnailBlobId;
     }
 
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * @return the metadata object as raw JSON text, or null if not present
+     */
+    public String getMetadata() {
+        return this.metadata;
+    }
+
     @Override
     public int getTypeCode() {
         return TYPE_CODE;
@@ -100,52 +129,17 @@ public class FileMessage extends ThreemaMessage {
 
     @Override
     public byte[] getData() throws BadMessageException {
-        JsonObject o = new JsonObject();
-        try {
-            o.addProperty(KEY_BLOB_ID, DataUtils.byteArrayToHexString(this.blobId));
-            o.addProperty(KEY_THUMBNAIL_BLOB_ID,
-                    this.thumbnailBlobId != null ? DataUtils.byteArrayToHexString(this.thumbnailBlobId) : null);
-            o.addProperty(KEY_ENCRYPTION_KEY, DataUtils.byteArrayToHexString(this.encryptionKey));
-            o.addProperty(KEY_MIME_TYPE, this.mimeType);
-            o.addProperty(KEY_FILE_NAME, this.fileName);
-            o.addProperty(KEY_FILE_SIZE, this.fileSize);
-            o.addProperty(KEY_TYPE, 0);
-        } catch (Exception e) {
-            throw new BadMessageException();
-        }
+        byte[] buffer = new byte[FileMessageJson.maxLength(this)];
+        return Arrays.copyOf(buffer, FileMessageJson.write(this, buffer, 0));
+    }
 
-        try {
-            return o.toString().getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            return null;
-        }
+    @Override
+    public int writeData(byte[] buffer, int offset) throws BadMessageException {
+        return FileMessageJson.write(this, buffer, offset);
     }
 
     public static FileMessage fromString(String json) throws BadMessageException {
-        try {
-            JsonObject o = new Gson().fromJson(json, JsonObject.class);
-            byte[] encryptionKey = DataUtils.hexStringToByteArray(o.get(KEY_ENCRYPTION_KEY).getAsString());
-            String mimeType = o.get(KEY_MIME_TYPE).getAsString();
-            int fileSize = o.get(KEY_FILE_SIZE).getAsInt();
-            byte[] blobId = DataUtils.hexStringToByteArray(o.get(KEY_BLOB_ID).getAsString());
-
-            String fileName;
-            byte[] thumbnailBlobId = null;
-
-            // optional field
-            if (o.has(KEY_THUMBNAIL_BLOB_ID)) {
-                thumbnailBlobId = DataUtils.hexStringToByteArray(o.get(KEY_THUMBNAIL_BLOB_ID).getAsString());
-            }
-
-            if (o.has(KEY_FILE_NAME)) {
-                fileName = o.get(KEY_FILE_NAME).getAsString();
-            } else {
-                fileName = "unnamed";
-            }
-
-            return new FileMessage(blobId, encryptionKey, mimeType, fileName, fileSize, thumbnailBlobId);
-        } catch (JsonSyntaxException e) {
-            throw new BadMessageException();
-        }
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return FileMessageJson.read(data, 0, data.length);
     }
 }
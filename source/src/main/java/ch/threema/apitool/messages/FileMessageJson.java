@@ -0,0 +1,526 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.BadMessageException;
+
+/**
+ * Streaming JSON codec for the fixed key set of file messages. Reads and writes UTF-8
+ * bytes directly, decoding and encoding the hex fields in place, without building a
+ * JSON tree or intermediate strings.
+ */
+final class FileMessageJson {
+    static final byte KEY_BLOB_ID = 'b';
+    static final byte KEY_THUMBNAIL_BLOB_ID = 't';
+    static final byte KEY_ENCRYPTION_KEY = 'k';
+    static final byte KEY_MIME_TYPE = 'm';
+    static final byte KEY_FILE_NAME = 'n';
+    static final byte KEY_FILE_SIZE = 's';
+    static final byte KEY_TYPE = 'i';
+    static final byte KEY_DESCRIPTION = 'd';
+    static final byte KEY_METADATA = 'x';
+
+    private FileMessageJson() {
+    }
+
+    /**
+     * Upper bound for the encoded length of a file message.
+     */
+    static int maxLength(FileMessage m) {
+        int len = 64;
+        len += 2 * m.getBlobId().length + 2 * m.getEncryptionKey().length + 8;
+        if (m.getThumbnailBlobId() != null) {
+            len += 2 * m.getThumbnailBlobId().length + 8;
+        }
+        /* worst case is a \\u00XX escape (6 bytes) per char */
+        len += maxStringLength(m.getMimeType()) + maxStringLength(m.getFileName())
+                + maxStringLength(m.getDescription());
+        if (m.getMetadata() != null) {
+            len += 3 * m.getMetadata().length() + 8;
+        }
+        return len;
+    }
+
+    private static int maxStringLength(String s) {
+        return s != null ? 6 * s.length() + 8 : 0;
+    }
+
+    /**
+     * @return true if the text is a single well-formed JSON object (surrounding whitespace allowed)
+     */
+    static boolean isObject(String json) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        Reader r = new Reader(data, 0, data.length);
+        if (r.skipWhitespace() >= r.end || data[r.pos] != '{') {
+            return false;
+        }
+        try {
+            r.skipValue();
+        } catch (BadMessageException e) {
+            return false;
+        }
+        return r.skipWhitespace() == r.end;
+    }
+
+    static int write(FileMessage m, byte[] buffer, int offset) throws BadMessageException {
+        if (m.getBlobId() == null || m.getEncryptionKey() == null) {
+            throw new BadMessageException();
+        }
+
+        Writer w = new Writer(buffer, offset);
+        w.put((byte) '{');
+        w.key(KEY_BLOB_ID, true).hex(m.getBlobId());
+        if (m.getThumbnailBlobId() != null) {
+            w.key(KEY_THUMBNAIL_BLOB_ID, false).hex(m.getThumbnailBlobId());
+        }
+        w.key(KEY_ENCRYPTION_KEY, false).hex(m.getEncryptionKey());
+        w.key(KEY_MIME_TYPE, false).string(m.getMimeType());
+        w.key(KEY_FILE_NAME, false).string(m.getFileName());
+        w.key(KEY_FILE_SIZE, false).number(m.getFileSize());
+        w.key(KEY_TYPE, false).number(0);
+        if (m.getDescription() != null) {
+            w.key(KEY_DESCRIPTION, false).string(m.getDescription());
+        }
+        if (m.getMetadata() != null) {
+            w.key(KEY_METADATA, false);
+            w.pos += w.utf8(m.getMetadata());
+        }
+        w.put((byte) '}');
+        return w.pos - offset;
+    }
+
+    static FileMessage read(byte[] data, int offset, int length) throws BadMessageException {
+        Reader r = new Reader(data, offset, offset + length);
+
+        byte[] blobId = null;
+        byte[] thumbnailBlobId = null;
+        byte[] encryptionKey = null;
+        String mimeType = null;
+        String fileName = null;
+        String description = null;
+        String metadata = null;
+        long fileSize = -1;
+
+        r.expect((byte) '{');
+        if (!r.consume((byte) '}')) {
+            do {
+                int keyStart = r.stringStart();
+                int keyEnd = r.stringEnd(keyStart);
+                r.expect((byte) ':');
+
+                byte key = keyEnd - keyStart == 1 && data[keyStart] != '\\' ? data[keyStart] : 0;
+                if (r.consumeNull()) {
+                    continue;
+                }
+                switch (key) {
+                    case KEY_BLOB_ID:
+                        blobId = r.hex();
+                        break;
+                    case KEY_THUMBNAIL_BLOB_ID:
+                        thumbnailBlobId = r.hex();
+                        break;
+                    case KEY_ENCRYPTION_KEY:
+                        encryptionKey = r.hex();
+                        break;
+                    case KEY_MIME_TYPE:
+                        mimeType = r.string();
+                        break;
+                    case KEY_FILE_NAME:
+                        fileName = r.string();
+                        break;
+                    case KEY_FILE_SIZE:
+                        fileSize = r.number();
+                        break;
+                    case KEY_DESCRIPTION:
+                        description = r.string();
+                        break;
+                    case KEY_METADATA:
+                        int start = r.skipWhitespace();
+                        r.skipValue();
+                        /* only objects are valid metadata; ignore anything else */
+                        metadata = data[start] == '{' ? new String(data, start, r.pos - start, StandardCharsets.UTF_8)
+                                : null;
+                        break;
+                    default:
+                        r.skipValue();
+                        break;
+                }
+            } while (r.consume((byte) ','));
+            r.expect((byte) '}');
+        }
+        if (r.skipWhitespace() != r.end) {
+            throw new BadMessageException();
+        }
+
+        if (blobId == null || encryptionKey == null || mimeType == null || fileSize < 0
+                || fileSize > Integer.MAX_VALUE) {
+            throw new BadMessageException();
+        }
+
+        return new FileMessage(blobId, encryptionKey, mimeType, fileName != null ? fileName : "unnamed",
+                (int) fileSize, thumbnailBlobId, description, metadata);
+    }
+
+    private static final class Writer {
+        private final byte[] buf;
+        private int pos;
+
+        Writer(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        void put(byte b) {
+            if (this.pos >= this.buf.length) {
+                throw new BufferOverflowException();
+            }
+            this.buf[this.pos++] = b;
+        }
+
+        Writer key(byte key, boolean first) {
+            if (!first) {
+                this.put((byte) ',');
+            }
+            this.put((byte) '"');
+            this.put(key);
+            this.put((byte) '"');
+            this.put((byte) ':');
+            return this;
+        }
+
+        void hex(byte[] bytes) {
+            this.put((byte) '"');
+            this.pos += DataUtils.encodeHex(bytes, 0, bytes.length, this.buf, this.pos);
+            this.put((byte) '"');
+        }
+
+        void number(long n) {
+            if (n < 0) {
+                this.put((byte) '-');
+                n = -n;
+            }
+            long div = 1;
+            while (div * 10 <= n) {
+                div *= 10;
+            }
+            for (; div > 0; div /= 10) {
+                this.put((byte) ('0' + (n / div) % 10));
+            }
+        }
+
+        void string(String s) {
+            if (s == null) {
+                this.put((byte) 'n');
+                this.put((byte) 'u');
+                this.put((byte) 'l');
+                this.put((byte) 'l');
+                return;
+            }
+
+            this.put((byte) '"');
+            int runStart = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    this.pos += this.utf8(s.subSequence(runStart, i));
+                    this.put((byte) '\\');
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            this.put((byte) c);
+                            break;
+                        case '\n':
+                            this.put((byte) 'n');
+                            break;
+                        case '\r':
+                            this.put((byte) 'r');
+                            break;
+                        case '\t':
+                            this.put((byte) 't');
+                            break;
+                        default:
+                            this.put((byte) 'u');
+                            this.put((byte) '0');
+                            this.put((byte) '0');
+                            this.put((byte) Character.forDigit(c >> 4, 16));
+                            this.put((byte) Character.forDigit(c & 0x0F, 16));
+                            break;
+                    }
+                    runStart = i + 1;
+                }
+            }
+            this.pos += this.utf8(s.subSequence(runStart, s.length()));
+            this.put((byte) '"');
+        }
+
+        int utf8(CharSequence s) {
+            if (DataUtils.utf8Length(s) > this.buf.length - this.pos) {
+                throw new BufferOverflowException();
+            }
+            return DataUtils.encodeUtf8(s, this.buf, this.pos);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int skipWhitespace() {
+            while (this.pos < this.end) {
+                byte c = this.data[this.pos];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    break;
+                }
+                this.pos++;
+            }
+            return this.pos;
+        }
+
+        boolean consume(byte b) {
+            if (this.skipWhitespace() < this.end && this.data[this.pos] == b) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(byte b) throws BadMessageException {
+            if (!this.consume(b)) {
+                throw new BadMessageException();
+            }
+        }
+
+        boolean consumeNull() throws BadMessageException {
+            if (this.skipWhitespace() + 4 <= this.end && this.data[this.pos] == 'n') {
+                this.literal("null");
+                return true;
+            }
+            return false;
+        }
+
+        void literal(String literal) throws BadMessageException {
+            if (this.pos + literal.length() > this.end) {
+                throw new BadMessageException();
+            }
+            for (int i = 0; i < literal.length(); i++) {
+                if (this.data[this.pos + i] != literal.charAt(i)) {
+                    throw new BadMessageException();
+                }
+            }
+            this.pos += literal.length();
+        }
+
+        /* position after the opening quote of a string */
+        int stringStart() throws BadMessageException {
+            this.expect((byte) '"');
+            return this.pos;
+        }
+
+        /* position of the closing quote; leaves pos after it */
+        int stringEnd(int start) throws BadMessageException {
+            int i = start;
+            while (i < this.end) {
+                byte c = this.data[i];
+                if (c == '"') {
+                    this.pos = i + 1;
+                    return i;
+                } else if (c == '\\') {
+                    i += 2;
+                } else {
+                    i++;
+                }
+            }
+            throw new BadMessageException();
+        }
+
+        String string() throws BadMessageException {
+            int start = this.stringStart();
+            int stringEnd = this.stringEnd(start);
+
+            /* fast path: no escapes, decode the bytes directly */
+            int escape = -1;
+            for (int i = start; i < stringEnd; i++) {
+                if (this.data[i] == '\\') {
+                    escape = i;
+                    break;
+                }
+            }
+            if (escape < 0) {
+                return new String(this.data, start, stringEnd - start, StandardCharsets.UTF_8);
+            }
+
+            StringBuilder sb = new StringBuilder(stringEnd - start);
+            sb.append(new String(this.data, start, escape - start, StandardCharsets.UTF_8));
+            int i = escape;
+            while (i < stringEnd) {
+                int runStart = i;
+                while (i < stringEnd && this.data[i] != '\\') {
+                    i++;
+                }
+                if (i > runStart) {
+                    sb.append(new String(this.data, runStart, i - runStart, StandardCharsets.UTF_8));
+                }
+                if (i >= stringEnd) {
+                    break;
+                }
+
+                byte e = this.data[i + 1];
+                i += 2;
+                switch (e) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        sb.append((char) e);
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (i + 4 > stringEnd) {
+                            throw new BadMessageException();
+                        }
+                        int cp = 0;
+                        for (int j = 0; j < 4; j++) {
+                            int d = DataUtils.hexValue(this.data[i + j]);
+                            if (d < 0) {
+                                throw new BadMessageException();
+                            }
+                            cp = (cp << 4) | d;
+                        }
+                        sb.append((char) cp);
+                        i += 4;
+                        break;
+                    default:
+                        throw new BadMessageException();
+                }
+            }
+            return sb.toString();
+        }
+
+        byte[] hex() throws BadMessageException {
+            int start = this.stringStart();
+            int stringEnd = this.stringEnd(start);
+            if (((stringEnd - start) & 1) != 0) {
+                throw new BadMessageException();
+            }
+
+            byte[] out = new byte[(stringEnd - start) / 2];
+            try {
+                DataUtils.decodeHex(this.data, start, stringEnd, out, 0);
+            } catch (IllegalArgumentException e) {
+                throw new BadMessageException();
+            }
+            return out;
+        }
+
+        long number() throws BadMessageException {
+            this.skipWhitespace();
+            int start = this.pos;
+            long value = 0;
+            while (this.pos < this.end && this.data[this.pos] >= '0' && this.data[this.pos] <= '9') {
+                if (this.pos - start >= 18) {
+                    throw new BadMessageException();
+                }
+                value = value * 10 + (this.data[this.pos] - '0');
+                this.pos++;
+            }
+            if (this.pos == start) {
+                throw new BadMessageException();
+            }
+            return value;
+        }
+
+        void skipValue() throws BadMessageException {
+            if (this.skipWhitespace() >= this.end) {
+                throw new BadMessageException();
+            }
+
+            byte c = this.data[this.pos];
+            switch (c) {
+                case '"':
+                    this.stringEnd(this.stringStart());
+                    break;
+                case '{':
+                case '[':
+                    byte close = c == '{' ? (byte) '}' : (byte) ']';
+                    this.pos++;
+                    if (this.consume(close)) {
+                        break;
+                    }
+                    do {
+                        if (c == '{') {
+                            this.stringEnd(this.stringStart());
+                            this.expect((byte) ':');
+                        }
+                        this.skipValue();
+                    } while (this.consume((byte) ','));
+                    this.expect(close);
+                    break;
+                case 't':
+                    this.literal("true");
+                    break;
+                case 'f':
+                    this.literal("false");
+                    break;
+                case 'n':
+                    this.literal("null");
+                    break;
+                default:
+                    /* number */
+                    int start = this.pos;
+                    while (this.pos < this.end && "+-0123456789.eE".indexOf(this.data[this.pos]) >= 0) {
+                        this.pos++;
+                    }
+                    if (this.pos == start) {
+                        throw new BadMessageException();
+                    }
+                    break;
+            }
+        }
+    }
+}
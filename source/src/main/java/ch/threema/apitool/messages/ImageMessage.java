@@ -25,15 +25,42 @@
 package ch.threema.apitool.messages;
 
 import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.BadMessageException;
 import com.neilalexander.jnacl.NaCl;
 import org.apache.commons.io.EndianUtils;
 
+import java.nio.BufferOverflowException;
+import java.util.Arrays;
+
 /**
  * An image message that can be sent/received with end-to-end encryption via Threema.
  */
 public class ImageMessage extends ThreemaMessage {
 
 	public static final int TYPE_CODE = 0x02;
+
+	public static final MessageCodec<ImageMessage> CODEC = new MessageCodec<ImageMessage>() {
+		@Override
+		public int getTypeCode() {
+			return TYPE_CODE;
+		}
+
+		@Override
+		public void validate(byte[] data, int offset, int length) throws BadMessageException {
+			if (length != BLOB_ID_LEN + 4 + NaCl.NONCEBYTES)
+				throw new BadMessageException();
+		}
+
+		@Override
+		public ImageMessage decode(byte[] data, int offset, int length) throws BadMessageException {
+			this.validate(data, offset, length);
+			byte[] blobId = Arrays.copyOfRange(data, offset, offset + BLOB_ID_LEN);
+			int size = EndianUtils.readSwappedInteger(data, offset + BLOB_ID_LEN);
+			byte[] nonce = Arrays.copyOfRange(data, offset + BLOB_ID_LEN + 4, offset + length);
+			return new ImageMessage(blobId, size, nonce);
+		}
+	};
+
 	private final byte[] blobId;
 	private final int size;
 	private final byte[] nonce;
@@ -73,15 +100,25 @@ public class ImageMessage extends ThreemaMessage {
 	@Override
 	public byte[] getData() {
 		byte[] data = new byte[BLOB_ID_LEN + 4 + NaCl.NONCEBYTES];
-		int pos = 0;
-		System.arraycopy(this.blobId, 0, data, pos, BLOB_ID_LEN);
+		this.writeData(data, 0);
+		return data;
+	}
+
+	@Override
+	public int writeData(byte[] buffer, int offset) {
+		if (BLOB_ID_LEN + 4 + NaCl.NONCEBYTES > buffer.length - offset) {
+			throw new BufferOverflowException();
+		}
+
+		int pos = offset;
+		System.arraycopy(this.blobId, 0, buffer, pos, BLOB_ID_LEN);
 		pos += BLOB_ID_LEN;
 
-		EndianUtils.writeSwappedInteger(data, pos, this.size);
+		EndianUtils.writeSwappedInteger(buffer, pos, this.size);
 		pos += 4;
 
-		System.arraycopy(this.nonce, 0, data, pos,  NaCl.NONCEBYTES);
-		return data;
-
+		System.arraycopy(this.nonce, 0, buffer, pos,  NaCl.NONCEBYTES);
+		pos += NaCl.NONCEBYTES;
+		return pos - offset;
 	}
 }
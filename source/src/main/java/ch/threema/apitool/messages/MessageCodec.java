@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.exceptions.BadMessageException;
+
+/**
+ * Encodes and decodes the raw content (without type byte and padding) of one message type.
+ * Register implementations with a {@link MessageCodecRegistry} to support additional types.
+ *
+ * @param <T> the message class handled by this codec
+ */
+public interface MessageCodec<T extends ThreemaMessage> {
+
+	/**
+	 * @return the type code handled by this codec (0..255)
+	 */
+	int getTypeCode();
+
+	/**
+	 * Check the raw content of a message without decoding it. Called for every
+	 * {@link MessageView}, so it should not allocate. The default accepts any content.
+	 *
+	 * @param data buffer containing the message data
+	 * @param offset position of the message data (after the type byte)
+	 * @param length length of the message data (without padding)
+	 * @throws BadMessageException if the data is malformed
+	 */
+	default void validate(byte[] data, int offset, int length) throws BadMessageException {
+	}
+
+	/**
+	 * Decode the raw content of a message.
+	 *
+	 * @param data buffer containing the message data
+	 * @param offset position of the message data (after the type byte)
+	 * @param length length of the message data (without padding)
+	 * @return the decoded message
+	 * @throws BadMessageException if the data is malformed
+	 */
+	T decode(byte[] data, int offset, int length) throws BadMessageException;
+
+	/**
+	 * Encode the raw content of a message into a buffer.
+	 *
+	 * @param message the message to encode
+	 * @param buffer destination buffer
+	 * @param offset position in the buffer to start writing at
+	 * @return number of bytes written
+	 * @throws BadMessageException if the message cannot be encoded
+	 * @throws java.nio.BufferOverflowException if the content does not fit into the buffer
+	 */
+	default int encode(T message, byte[] buffer, int offset) throws BadMessageException {
+		return message.writeData(buffer, offset);
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.exceptions.BadMessageException;
+
+import java.util.Arrays;
+
+/**
+ * Maps message type codes to {@link MessageCodec}s. Lookup is a single array access
+ * indexed by the type byte. Messages of types without a registered codec are decoded
+ * as {@link UnknownMessage}.
+ */
+public class MessageCodecRegistry {
+	private static final MessageCodecRegistry defaultRegistry = new MessageCodecRegistry()
+			.register(TextMessage.class, TextMessage.CODEC)
+			.register(ImageMessage.class, ImageMessage.CODEC)
+			.register(FileMessage.class, FileMessage.CODEC)
+			.register(DeliveryReceipt.class, DeliveryReceipt.CODEC);
+
+	/* replaced as a whole on registration, so readers never need to lock */
+	private volatile Registration<?>[] registrations = new Registration<?>[256];
+
+	/**
+	 * @return the registry used by {@link ch.threema.apitool.CryptTool}, with codecs for
+	 *         text, image, file messages and delivery receipts
+	 */
+	public static MessageCodecRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * Register a codec, replacing any codec previously registered for its type code.
+	 *
+	 * @param messageClass the message class handled by the codec
+	 * @param codec the codec
+	 * @return this registry
+	 */
+	public synchronized <T extends ThreemaMessage> MessageCodecRegistry register(Class<T> messageClass,
+			MessageCodec<T> codec) {
+		Registration<?>[] updated = Arrays.copyOf(this.registrations, 256);
+		updated[codec.getTypeCode() & 0xFF] = new Registration<>(messageClass, codec);
+		this.registrations = updated;
+		return this;
+	}
+
+	/**
+	 * Remove the codec for a type code.
+	 *
+	 * @param typeCode the type code (0..255)
+	 */
+	public synchronized void unregister(int typeCode) {
+		Registration<?>[] updated = Arrays.copyOf(this.registrations, 256);
+		updated[typeCode & 0xFF] = null;
+		this.registrations = updated;
+	}
+
+	/**
+	 * @param typeCode the type code (0..255)
+	 * @return the codec for the type code, or null if none is registered
+	 */
+	public MessageCodec<?> getCodec(int typeCode) {
+		Registration<?> registration = this.registrations[typeCode & 0xFF];
+		return registration != null ? registration.codec : null;
+	}
+
+	/**
+	 * Check the raw content of a message with the codec registered for its type code.
+	 * Content of types without a codec is accepted.
+	 *
+	 * @param typeCode the message type code
+	 * @param data buffer containing the message data
+	 * @param offset position of the message data (after the type byte)
+	 * @param length length of the message data (without padding)
+	 * @throws BadMessageException if the data is malformed
+	 */
+	public void validate(int typeCode, byte[] data, int offset, int length) throws BadMessageException {
+		Registration<?> registration = this.registrations[typeCode & 0xFF];
+		if (registration != null) {
+			registration.codec.validate(data, offset, length);
+		}
+	}
+
+	/**
+	 * Decode the raw content of a message.
+	 *
+	 * @param typeCode the message type code
+	 * @param data buffer containing the message data
+	 * @param offset position of the message data (after the type byte)
+	 * @param length length of the message data (without padding)
+	 * @return the decoded message, or an {@link UnknownMessage} if no codec is registered
+	 * @throws BadMessageException if the data is malformed
+	 */
+	public ThreemaMessage decode(int typeCode, byte[] data, int offset, int length) throws BadMessageException {
+		Registration<?> registration = this.registrations[typeCode & 0xFF];
+		if (registration == null) {
+			return new UnknownMessage(typeCode, Arrays.copyOfRange(data, offset, offset + length));
+		}
+		return registration.codec.decode(data, offset, length);
+	}
+
+	/**
+	 * Encode the raw content of a message, using the codec registered for its type code
+	 * or {@link ThreemaMessage#writeData(byte[], int)} if there is none.
+	 *
+	 * @param message the message to encode
+	 * @param buffer destination buffer
+	 * @param offset position in the buffer to start writing at
+	 * @return number of bytes written
+	 * @throws BadMessageException if the message cannot be encoded, or is not of the class
+	 *         handled by the codec registered for its type code
+	 */
+	public int encode(ThreemaMessage message, byte[] buffer, int offset) throws BadMessageException {
+		Registration<?> registration = this.registrations[message.getTypeCode() & 0xFF];
+		if (registration == null) {
+			return message.writeData(buffer, offset);
+		}
+		return registration.encode(message, buffer, offset);
+	}
+
+	/**
+	 * A codec together with the message class it handles.
+	 */
+	private static final class Registration<T extends ThreemaMessage> {
+		private final Class<T> messageClass;
+		private final MessageCodec<T> codec;
+
+		Registration(Class<T> messageClass, MessageCodec<T> codec) {
+			this.messageClass = messageClass;
+			this.codec = codec;
+		}
+
+		int encode(ThreemaMessage message, byte[] buffer, int offset) throws BadMessageException {
+			if (!this.messageClass.isInstance(message)) {
+				throw new BadMessageException();
+			}
+			return this.codec.encode(this.messageClass.cast(message), buffer, offset);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.exceptions.BadMessageException;
+import ch.threema.apitool.exceptions.MessageParseException;
+import com.neilalexander.jnacl.NaCl;
+import org.apache.commons.io.EndianUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lightweight view of a decrypted message that references the decrypted data instead of
+ * copying it. The message type and its fixed-size fields are available without allocating;
+ * text is decoded and a {@link ThreemaMessage} is created only when requested.
+ *
+ * The view is backed by the array it was created from, so that array must not be modified
+ * while the view is in use.
+ */
+public class MessageView {
+	private final byte[] data;
+	private final int length;
+	private final int typeCode;
+
+	private String text;
+	private ThreemaMessage message;
+
+	private MessageView(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+		this.typeCode = data[0] & 0xFF;
+	}
+
+	/**
+	 * Create a view of decrypted message data. The padding is removed and the
+	 * content is validated by the codec of its type in the default {@link MessageCodecRegistry}.
+	 *
+	 * @param data the decrypted data (type byte, message data and padding)
+	 * @param length number of valid bytes in data
+	 * @return the view
+	 * @throws BadMessageException if the padding or length is invalid
+	 */
+	public static MessageView wrap(byte[] data, int length) throws BadMessageException {
+		if (length < 1)
+			throw new BadMessageException();
+
+		/* remove padding */
+		int padbytes = data[length - 1] & 0xFF;
+		int realDataLength = length - padbytes;
+		if (realDataLength < 1)
+			throw new BadMessageException();     /* Bad message padding */
+
+		MessageView view = new MessageView(data, realDataLength);
+		MessageCodecRegistry.getDefault().validate(view.typeCode, data, 1, realDataLength - 1);
+		return view;
+	}
+
+	/**
+	 * @return the message's type code
+	 */
+	public int getTypeCode() {
+		return this.typeCode;
+	}
+
+	/**
+	 * @return read-only view of the message data (without type byte and padding)
+	 */
+	public ByteBuffer getPayload() {
+		return ByteBuffer.wrap(this.data, 1, this.length - 1).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the text of a text message, decoded on first access
+	 */
+	public String getText() {
+		this.requireType(TextMessage.TYPE_CODE);
+		if (this.text == null) {
+			this.text = new String(this.data, 1, this.length - 1, StandardCharsets.UTF_8);
+		}
+		return this.text;
+	}
+
+	/**
+	 * @return read-only view of the blob ID of an image message
+	 */
+	public ByteBuffer getBlobId() {
+		this.requireType(ImageMessage.TYPE_CODE);
+		return this.slice(1, ThreemaMessage.BLOB_ID_LEN);
+	}
+
+	/**
+	 * @return the size of the image of an image message
+	 */
+	public int getImageSize() {
+		this.requireType(ImageMessage.TYPE_CODE);
+		return EndianUtils.readSwappedInteger(this.data, 1 + ThreemaMessage.BLOB_ID_LEN);
+	}
+
+	/**
+	 * @return read-only view of the image nonce of an image message
+	 */
+	public ByteBuffer getImageNonce() {
+		this.requireType(ImageMessage.TYPE_CODE);
+		return this.slice(1 + ThreemaMessage.BLOB_ID_LEN + 4, NaCl.NONCEBYTES);
+	}
+
+	/**
+	 * @return the receipt type of a delivery receipt
+	 */
+	public DeliveryReceipt.Type getReceiptType() {
+		this.requireType(DeliveryReceipt.TYPE_CODE);
+		return DeliveryReceipt.Type.get(this.data[1] & 0xFF);
+	}
+
+	/**
+	 * @return the number of message IDs acknowledged by a delivery receipt
+	 */
+	public int getAckedMessageIdCount() {
+		this.requireType(DeliveryReceipt.TYPE_CODE);
+		return (this.length - 2) / MessageId.MESSAGE_ID_LEN;
+	}
+
+	/**
+	 * @return the message IDs acknowledged by a delivery receipt, as big-endian longs
+	 */
+	public long[] getAckedMessageIds() {
+		long[] ids = new long[this.getAckedMessageIdCount()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = this.getAckedMessageId(i);
+		}
+		return ids;
+	}
+
+	/**
+	 * @param index index of the message ID (0..getAckedMessageIdCount()-1)
+	 * @return the acknowledged message ID as a big-endian long
+	 */
+	public long getAckedMessageId(int index) {
+		this.requireType(DeliveryReceipt.TYPE_CODE);
+		int offset = 2 + index * MessageId.MESSAGE_ID_LEN;
+		if (index < 0 || offset + MessageId.MESSAGE_ID_LEN > this.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		return MessageId.toLong(this.data, offset);
+	}
+
+	/**
+	 * Materialize the message using the default {@link MessageCodecRegistry}. The result is cached.
+	 *
+	 * @return the decoded message, or an {@link UnknownMessage} if its type is not supported
+	 * @throws MessageParseException if the message cannot be decoded
+	 */
+	public ThreemaMessage toMessage() throws MessageParseException {
+		if (this.message == null) {
+			this.message = this.decode();
+		}
+		return this.message;
+	}
+
+	private ThreemaMessage decode() throws MessageParseException {
+		return MessageCodecRegistry.getDefault().decode(this.typeCode, this.data, 1, this.length - 1);
+	}
+
+	private ByteBuffer slice(int offset, int len) {
+		return ByteBuffer.wrap(this.data, offset, len).slice().asReadOnlyBuffer();
+	}
+
+	private void requireType(int typeCode) {
+		if (this.typeCode != typeCode) {
+			throw new IllegalStateException("Not a message of type " + typeCode);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "message view (type " + this.typeCode + ", " + (this.length - 1) + " bytes)";
+	}
+}
@@ -24,7 +24,12 @@
 
 package ch.threema.apitool.messages;
 
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.BadMessageException;
+
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A text message that can be sent/received with end-to-end encryption via Threema.
@@ -33,6 +38,25 @@ public class TextMessage extends ThreemaMessage {
 
 	public static final int TYPE_CODE = 0x01;
 
+	public static final MessageCodec<TextMessage> CODEC = new MessageCodec<TextMessage>() {
+		@Override
+		public int getTypeCode() {
+			return TYPE_CODE;
+		}
+
+		@Override
+		public void validate(byte[] data, int offset, int length) throws BadMessageException {
+			if (length < 1)
+				throw new BadMessageException();
+		}
+
+		@Override
+		public TextMessage decode(byte[] data, int offset, int length) throws BadMessageException {
+			this.validate(data, offset, length);
+			return new TextMessage(new String(data, offset, length, StandardCharsets.UTF_8));
+		}
+	};
+
 	private final String text;
 
 	public TextMessage(String text) {
@@ -53,6 +77,14 @@ public class TextMessage extends ThreemaMessage {
 		return text;
 	}
 
+	@Override
+	public int writeData(byte[] buffer, int offset) {
+		if (DataUtils.utf8Length(text) > buffer.length - offset) {
+			throw new BufferOverflowException();
+		}
+		return DataUtils.encodeUtf8(text, buffer, offset);
+	}
+
 	@Override
 	public byte[] getData() {
 		try {
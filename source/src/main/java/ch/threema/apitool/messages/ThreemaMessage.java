@@ -26,6 +26,8 @@ package ch.threema.apitool.messages;
 
 import ch.threema.apitool.exceptions.BadMessageException;
 
+import java.nio.BufferOverflowException;
+
 /**
  * Abstract base class of messages that can be sent with end-to-end encryption via Threema.
  */
@@ -38,6 +40,24 @@ public abstract class ThreemaMessage {
 	 */
 	public abstract byte[] getData() throws BadMessageException;
 
+	/**
+	 * Write the message's raw content into a buffer. The default implementation copies
+	 * the result of {@link #getData()}; subclasses override this to serialize directly.
+	 *
+	 * @param buffer destination buffer
+	 * @param offset position in the buffer to start writing at
+	 * @return number of bytes written
+	 * @throws BufferOverflowException if the content does not fit into the buffer
+	 */
+	public int writeData(byte[] buffer, int offset) throws BadMessageException {
+		byte[] data = this.getData();
+		if (data.length > buffer.length - offset) {
+			throw new BufferOverflowException();
+		}
+		System.arraycopy(data, 0, buffer, offset, data.length);
+		return data.length;
+	}
+
 	/**
 	 * @return the message's type code
 	 */
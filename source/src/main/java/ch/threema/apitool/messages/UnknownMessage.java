@@ -0,0 +1,55 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+/**
+ * A message of a type this SDK has no codec for. Keeps the raw content so that it can be
+ * inspected or forwarded.
+ */
+public class UnknownMessage extends ThreemaMessage {
+
+	private final int typeCode;
+	private final byte[] data;
+
+	public UnknownMessage(int typeCode, byte[] data) {
+		this.typeCode = typeCode;
+		this.data = data;
+	}
+
+	@Override
+	public int getTypeCode() {
+		return this.typeCode;
+	}
+
+	@Override
+	public byte[] getData() {
+		return this.data;
+	}
+
+	@Override
+	public String toString() {
+		return "unknown message (type " + this.typeCode + ", " + this.data.length + " bytes)";
+	}
+}
@@ -29,17 +29,29 @@ package ch.threema.apitool.results;
  */
 public class EncryptResult {
 	private final byte[] result;
+	private final int size;
 	private final byte[] secret;
 	private final byte[] nonce;
 
 	public EncryptResult(byte[] result, byte[] secret, byte[] nonce) {
 		this.result = result;
+		this.size = result.length;
 		this.secret = secret;
 		this.nonce = nonce;
 	}
 
 	/**
-	 * @return the encrypted data
+	 * Result of an encryption whose output was written to a file instead of an array.
+	 */
+	public EncryptResult(int size, byte[] secret, byte[] nonce) {
+		this.result = null;
+		this.size = size;
+		this.secret = secret;
+		this.nonce = nonce;
+	}
+
+	/**
+	 * @return the encrypted data, or null if it was written to a file
 	 */
 	public byte[] getResult() {
 		return this.result;
@@ -49,7 +61,7 @@ public class EncryptResult {
 	 * @return the size (in bytes) of the encrypted data
 	 */
 	public int getSize() {
-		return this.result.length;
+		return this.size;
 	}
 
 	/**
@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.results;
+
+/**
+ * Result of sending one message of a bulk send
+ */
+public class SendResult {
+	/**
+	 * Response code of a request that failed without a response; the message was not sent
+	 */
+	public static final int NO_RESPONSE = -1;
+
+	/**
+	 * Response code of a message whose result could not be read from the response; the
+	 * message may or may not have been sent
+	 */
+	public static final int OUTCOME_UNKNOWN = -2;
+
+	private final String to;
+	private final int responseCode;
+	private final String messageId;
+
+	public SendResult(String to, int responseCode, String messageId) {
+		this.to = to;
+		this.responseCode = responseCode;
+		this.messageId = messageId;
+	}
+
+	/**
+	 * @return the recipient ID
+	 */
+	public String getTo() {
+		return this.to;
+	}
+
+	/**
+	 * @return the generated message ID, or null if sending failed
+	 */
+	public String getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * @return whether the message was sent
+	 */
+	public boolean isSuccess() {
+		return this.responseCode == 200 && this.messageId != null;
+	}
+
+	/**
+	 * @return the response code for this message (e.g. 400 for an invalid recipient),
+	 *         {@link #NO_RESPONSE} if the request failed without a response, or
+	 *         {@link #OUTCOME_UNKNOWN} if the response could not be read
+	 */
+	public int getResponseCode() {
+		return this.responseCode;
+	}
+}
@@ -27,6 +27,7 @@
 
 package com.neilalexander.jnacl;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Formatter;
@@ -81,6 +82,45 @@ public class NaCl {
         return output;
     }
 
+    /**
+     * In-place version of {@link #encrypt(byte[], byte[])} that stores the output in the same byte array
+     * as the input. The input data must begin at offset {@link #BOXOVERHEAD} in the array (the first
+     * BOXOVERHEAD bytes are ignored and will be overwritten with the message authentication code during
+     * encryption).
+     *
+     * @param io plaintext on input (starting at offset BOXOVERHEAD), ciphertext on return (starting at offset 0)
+     * @param inputlength length of the plaintext
+     * @param nonce encryption nonce
+     */
+    public void encryptInplace(byte[] io, int inputlength, byte[] nonce) {
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        if (io.length < inputlength + BOXOVERHEAD)
+            throw new Error("Invalid I/O length");
+
+        curve25519xsalsa20poly1305.crypto_box_afternm_nopad(io, 0, io, BOXOVERHEAD, inputlength, nonce, this.precomputed);
+    }
+
+    /**
+     * Buffer version of {@link #encrypt(byte[], byte[])} for input that is not on the heap (e.g. a memory-mapped
+     * file). Encrypts the remaining bytes of the input and writes the message authentication code followed by the
+     * ciphertext to the output, advancing both buffers' positions.
+     *
+     * @param input plaintext (position to limit)
+     * @param output receives the ciphertext; must have at least input.remaining() + BOXOVERHEAD bytes remaining
+     * @param nonce encryption nonce
+     */
+    public void encrypt(ByteBuffer input, ByteBuffer output, byte[] nonce) {
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        if (output.remaining() < input.remaining() + BOXOVERHEAD)
+            throw new Error("Invalid output length");
+
+        xsalsa20poly1305.crypto_secretbox_nopad(output, input, nonce, this.precomputed);
+    }
+
     public byte[] decrypt(byte[] input, byte[] nonce) {
         return decrypt(input, input.length, nonce);
     }
@@ -100,6 +140,27 @@ public class NaCl {
         return output;
     }
 
+    /**
+     * In-place version of {@link #decrypt(byte[], byte[])} that stores the output in the same byte array
+     * as the input. Note that the decrypted output is shorter than the input, so the last
+     * {@link #BOXOVERHEAD} bytes of the box should be ignored in the decrypted output.
+     *
+     * @param io ciphertext on input (starting at offset 0), plaintext on output (starting at offset 0)
+     * @param inputlength length of the ciphertext
+     * @param nonce encryption nonce
+     * @return decryption successful true/false
+     */
+    public boolean decryptInplace(byte[] io, int inputlength, byte[] nonce) {
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        if (inputlength < BOXOVERHEAD || io.length < inputlength)
+            return false;
+
+        return curve25519xsalsa20poly1305.crypto_box_open_afternm_nopad(io, 0, io, 0, inputlength, nonce,
+                this.precomputed) == 0;
+    }
+
     public static void genkeypair(byte[] publickey, byte[] privatekey) {
         genkeypair(publickey, privatekey, null);
     }
@@ -166,6 +227,28 @@ public class NaCl {
         xsalsa20poly1305.crypto_secretbox_nopad(io, 0, io, BOXOVERHEAD, io.length - BOXOVERHEAD, nonce, key);
     }
 
+    /**
+     * Buffer version of {@link #symmetricEncryptData(byte[], byte[], byte[])}, see
+     * {@link #encrypt(ByteBuffer, ByteBuffer, byte[])}.
+     *
+     * @param input plaintext (position to limit)
+     * @param output receives the ciphertext; must have at least input.remaining() + BOXOVERHEAD bytes remaining
+     * @param key encryption key
+     * @param nonce encryption nonce
+     */
+    public static void symmetricEncryptData(ByteBuffer input, ByteBuffer output, byte[] key, byte[] nonce) {
+        if (key.length != SYMMKEYBYTES)
+            throw new Error("Invalid symmetric key length");
+
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        if (output.remaining() < input.remaining() + BOXOVERHEAD)
+            throw new Error("Invalid output length");
+
+        xsalsa20poly1305.crypto_secretbox_nopad(output, input, nonce, key);
+    }
+
     public static byte[] symmetricDecryptData(byte[] input, byte[] key, byte[] nonce) {
         if (key.length != SYMMKEYBYTES)
             throw new Error("Invalid symmetric key length");
@@ -180,6 +263,30 @@ public class NaCl {
         return output;
     }
 
+    /**
+     * Buffer version of {@link #symmetricDecryptData(byte[], byte[], byte[])} for input that is not on the heap
+     * (e.g. a memory-mapped file). Reads the message authentication code followed by the ciphertext from the
+     * remaining bytes of the input and writes the plaintext to the output only if the data is authentic.
+     *
+     * @param input ciphertext (position to limit)
+     * @param output receives the plaintext; must have at least input.remaining() - BOXOVERHEAD bytes remaining
+     * @param key encryption key
+     * @param nonce encryption nonce
+     * @return decryption successful true/false
+     */
+    public static boolean symmetricDecryptData(ByteBuffer input, ByteBuffer output, byte[] key, byte[] nonce) {
+        if (key.length != SYMMKEYBYTES)
+            throw new Error("Invalid symmetric key length");
+
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        if (input.remaining() < BOXOVERHEAD || output.remaining() < input.remaining() - BOXOVERHEAD)
+            throw new Error("Invalid I/O length");
+
+        return xsalsa20poly1305.crypto_secretbox_open_nopad(output, input, nonce, key) == 0;
+    }
+
     /**
      * In-place version of {@link #symmetricDecryptData(byte[], byte[], byte[])} that stores the output in
      * the same byte array as the input. Note that the decrypted output is shorter than the input, so the
@@ -230,12 +337,15 @@ public class NaCl {
         return data;
     }
 
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
     public static String asHex(byte[] buf) {
-        try (Formatter formatter = new Formatter()) {
-            for (byte b : buf)
-                formatter.format("%02x", b);
-            return formatter.toString();
+        char[] chars = new char[2 * buf.length];
+        for (int i = 0; i < buf.length; i++) {
+            chars[2 * i] = HEX_CHARS[(buf[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_CHARS[buf[i] & 0x0F];
         }
+        return new String(chars);
     }
 
     public static String asHex(int[] buf) {
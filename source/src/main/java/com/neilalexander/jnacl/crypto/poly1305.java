@@ -119,6 +119,96 @@ public class poly1305
 		squeeze(h);
 	}
 
+	/**
+	 * Incremental variant of crypto_onetimeauth for messages that are not available
+	 * in a single array.
+	 */
+	public static final class State
+	{
+		private final int[] r = new int[17];
+		private final int[] h = new int[17];
+		private final int[] c = new int[17];
+		private final byte[] s = new byte[16];
+		private final byte[] pending = new byte[16];
+		private int pendinglen;
+
+		public State(byte[] k, int koffset)
+		{
+			for (int j = 0; j < 16; ++j)
+				r[j] = k[koffset + j] & 0xFF;
+
+			r[3] &= 15;
+			r[4] &= 252;
+			r[7] &= 15;
+			r[8] &= 252;
+			r[11] &= 15;
+			r[12] &= 252;
+			r[15] &= 15;
+
+			System.arraycopy(k, koffset + 16, s, 0, 16);
+		}
+
+		public void update(byte[] inv, int invoffset, int inlen)
+		{
+			if (pendinglen > 0)
+			{
+				int n = Math.min(16 - pendinglen, inlen);
+				System.arraycopy(inv, invoffset, pending, pendinglen, n);
+				pendinglen += n;
+				invoffset += n;
+				inlen -= n;
+
+				if (pendinglen < 16)
+					return;
+
+				block(pending, 0, 16);
+				pendinglen = 0;
+			}
+
+			while (inlen >= 16)
+			{
+				block(inv, invoffset, 16);
+				invoffset += 16;
+				inlen -= 16;
+			}
+
+			System.arraycopy(inv, invoffset, pending, 0, inlen);
+			pendinglen = inlen;
+		}
+
+		public void finish(byte[] outv, int outvoffset)
+		{
+			if (pendinglen > 0)
+				block(pending, 0, pendinglen);
+
+			freeze(h);
+
+			for (int j = 0; j < 16; ++j)
+				c[j] = s[j] & 0xFF;
+
+			c[16] = 0;
+			add(h, c);
+
+			for (int j = 0; j < 16; ++j)
+				outv[j + outvoffset] = (byte)h[j];
+		}
+
+		private void block(byte[] inv, int invoffset, int len)
+		{
+			int j;
+
+			for (j = 0; j < 17; ++j)
+				c[j] = 0;
+
+			for (j = 0; j < len; ++j)
+				c[j] = inv[invoffset + j]&0xff;
+
+			c[j] = 1;
+			add(h, c);
+			mulmod(h, r);
+		}
+	}
+
 	public static int crypto_onetimeauth(byte[] outv, int outvoffset, byte[] inv, int invoffset, long inlen, byte[] k)
 	{
 		int j;
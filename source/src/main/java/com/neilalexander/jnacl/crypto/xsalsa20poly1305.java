@@ -27,6 +27,8 @@
 
 package com.neilalexander.jnacl.crypto;
 
+import java.nio.ByteBuffer;
+
 public class xsalsa20poly1305
 {
 	final int crypto_secretbox_KEYBYTES = 32;
@@ -60,6 +62,115 @@ public class xsalsa20poly1305
         return 0;
     }
 
+    static public int crypto_secretbox_nopad(ByteBuffer c, ByteBuffer m, byte[] n, byte[] k)
+    {
+        /* variant of crypto_secretbox_nopad that reads the remaining bytes of m and writes the
+         * authenticator followed by the ciphertext to c, using a small working buffer */
+        byte[] chunk = new byte[16384];
+        byte[] tag = new byte[16];
+
+        Keystream stream = new Keystream(n, k);
+        poly1305.State state = new poly1305.State(stream.block, 0);
+        stream.blockoffset = 32;
+
+        int tagposition = c.position();
+        c.position(tagposition + 16);
+
+        while (m.hasRemaining())
+        {
+            int len = Math.min(chunk.length, m.remaining());
+            m.get(chunk, 0, len);
+            stream.xor(chunk, len);
+            state.update(chunk, 0, len);
+            c.put(chunk, 0, len);
+        }
+
+        state.finish(tag, 0);
+        for (int i = 0; i < 16; ++i)
+            c.put(tagposition + i, tag[i]);
+
+        return 0;
+    }
+
+    static public int crypto_secretbox_open_nopad(ByteBuffer m, ByteBuffer c, byte[] n, byte[] k)
+    {
+        /* variant of crypto_secretbox_open_nopad that reads the authenticator followed by the
+         * ciphertext from the remaining bytes of c and writes the plaintext to m, using a small
+         * working buffer; c is read twice, so nothing is written to m unless it is authentic */
+        if (c.remaining() < 16)
+            return -1;
+
+        byte[] chunk = new byte[16384];
+        byte[] tag = new byte[16];
+        byte[] expected = new byte[16];
+        c.get(tag);
+
+        Keystream stream = new Keystream(n, k);
+        poly1305.State state = new poly1305.State(stream.block, 0);
+        ByteBuffer ciphertext = c.duplicate();
+        while (ciphertext.hasRemaining())
+        {
+            int len = Math.min(chunk.length, ciphertext.remaining());
+            ciphertext.get(chunk, 0, len);
+            state.update(chunk, 0, len);
+        }
+        state.finish(expected, 0);
+        if (verify_16.crypto_verify(expected, 0, tag) != 0)
+            return -1;
+
+        stream.blockoffset = 32;
+        while (c.hasRemaining())
+        {
+            int len = Math.min(chunk.length, c.remaining());
+            c.get(chunk, 0, len);
+            stream.xor(chunk, len);
+            m.put(chunk, 0, len);
+        }
+
+        return 0;
+    }
+
+    /* XSalsa20 keystream generated block by block; the first 32 bytes of the first block are
+     * the authenticator key */
+    private static final class Keystream
+    {
+        final byte[] subkey = new byte[32];
+        final byte[] inv = new byte[16];
+        final byte[] block = new byte[64];
+        int blockoffset;
+
+        Keystream(byte[] n, byte[] k)
+        {
+            hsalsa20.crypto_core(this.subkey, n, k, xsalsa20.sigma);
+
+            for (int i = 0; i < 8; ++i)
+                this.inv[i] = n[16 + i];
+
+            salsa20.crypto_core(this.block, this.inv, this.subkey, xsalsa20.sigma);
+        }
+
+        void xor(byte[] data, int len)
+        {
+            for (int i = 0; i < len; ++i)
+            {
+                if (this.blockoffset == 64)
+                {
+                    int u = 1;
+                    for (int j = 8; j < 16; ++j)
+                    {
+                        u += this.inv[j]&0xff;
+                        this.inv[j] = (byte) u;
+                        u >>>= 8;
+                    }
+
+                    salsa20.crypto_core(this.block, this.inv, this.subkey, xsalsa20.sigma);
+                    this.blockoffset = 0;
+                }
+                data[i] ^= this.block[this.blockoffset++];
+            }
+        }
+    }
+
 	static public int crypto_secretbox_open(byte[] m, byte[] c, long clen, byte[] n, byte[] k)
 	{
 		if (clen < 32)
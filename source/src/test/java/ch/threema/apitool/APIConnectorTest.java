@@ -0,0 +1,384 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.results.SendResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class APIConnectorTest {
+	private HttpServer server;
+	private APIConnector connector;
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.start();
+		this.connector = new APIConnector("*TESTTST", "sec ret", "http://127.0.0.1:" + this.server.getAddress().getPort() + "/",
+				new PublicKeyStore() {
+					@Override
+					protected byte[] fetchPublicKey(String threemaId) {
+						return null;
+					}
+
+					@Override
+					protected void save(String threemaId, byte[] publicKey) {
+					}
+				});
+	}
+
+	@After
+	public void tearDown() {
+		this.server.stop(0);
+	}
+
+	private static OutgoingMessage message(String to) {
+		return new OutgoingMessage(to, new byte[] {1, 2, 3}, new byte[] {(byte) 0xff, 0x00});
+	}
+
+	private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(data);
+		}
+	}
+
+	@Test
+	public void testBulkSend() throws Exception {
+		this.server.createContext("/send_e2e_bulk", exchange -> {
+			this.requests.add(exchange.getRequestURI().getRawQuery() + " "
+					+ IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			respond(exchange, 200, this.requests.size() == 1
+					? "[{\"messageId\":\"0000000000000001\"},{\"errorCode\":400}]"
+					: "[{\"messageId\":\"0000000000000003\"}]");
+		});
+
+		this.connector.setBulkBatchSize(2);
+		List<OutgoingMessage> messages = new ArrayList<>();
+		messages.add(message("ECHOECHO"));
+		messages.add(message("INVALID1"));
+		messages.add(message("ECHOECH2"));
+		this.server.createContext("/send_e2e", exchange -> {
+			this.requests.add(IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			respond(exchange, 200, "0000000000000003\n");
+		});
+
+		List<SendResult> results = this.connector.sendE2EMessages(messages);
+
+		Assert.assertEquals(3, results.size());
+		Assert.assertEquals("0000000000000001", results.get(0).getMessageId());
+		Assert.assertFalse(results.get(1).isSuccess());
+		Assert.assertEquals(400, results.get(1).getResponseCode());
+		Assert.assertEquals("ECHOECH2", results.get(2).getTo());
+		Assert.assertEquals("0000000000000003", results.get(2).getMessageId());
+
+		Assert.assertEquals("from=*TESTTST&secret=sec+ret [{\"to\":\"ECHOECHO\",\"nonce\":\"AQID\",\"box\":\"/wA=\"},"
+				+ "{\"to\":\"INVALID1\",\"nonce\":\"AQID\",\"box\":\"/wA=\"}]", this.requests.get(0));
+		/* a single remaining message goes to the regular endpoint */
+		Assert.assertEquals("from=*TESTTST&secret=sec+ret&to=ECHOECH2&nonce=010203&box=ff00", this.requests.get(1));
+	}
+
+	@Test
+	public void testBulkSendUnreadableResponse() throws Exception {
+		this.server.createContext("/send_e2e_bulk",
+				exchange -> respond(exchange, 200, "[{\"messageId\":\"0000000000000001\"},{}]"));
+
+		List<SendResult> results = this.connector.sendE2EMessages(
+				Arrays.asList(message("ECHOECHO"), message("ECHOECH2")));
+
+		Assert.assertTrue(results.get(0).isSuccess());
+		Assert.assertEquals(SendResult.OUTCOME_UNKNOWN, results.get(1).getResponseCode());
+
+		this.server.removeContext("/send_e2e_bulk");
+		this.server.createContext("/send_e2e_bulk", exchange -> respond(exchange, 200, "<html>"));
+
+		results = this.connector.sendE2EMessages(Arrays.asList(message("ECHOECHO"), message("ECHOECH2")));
+		Assert.assertEquals(SendResult.OUTCOME_UNKNOWN, results.get(0).getResponseCode());
+		Assert.assertEquals(SendResult.OUTCOME_UNKNOWN, results.get(1).getResponseCode());
+	}
+
+	@Test
+	public void testFallbackWithoutBulkEndpoint() throws Exception {
+		this.server.createContext("/send_e2e", exchange -> {
+			String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+			this.requests.add(exchange.getRequestURI().getPath());
+			if (body.contains("to=INVALID1")) {
+				respond(exchange, 400, "");
+			} else {
+				respond(exchange, 200, "000000000000000" + this.requests.size());
+			}
+		});
+		this.server.createContext("/send_e2e_bulk", exchange -> {
+			this.requests.add(exchange.getRequestURI().getPath());
+			respond(exchange, 404, "");
+		});
+
+		List<SendResult> results = this.connector.sendE2EMessages(
+				Arrays.asList(message("ECHOECHO"), message("INVALID1"), message("ECHOECH2")));
+
+		Assert.assertEquals("0000000000000002", results.get(0).getMessageId());
+		Assert.assertEquals(400, results.get(1).getResponseCode());
+		Assert.assertTrue(results.get(2).isSuccess());
+
+		/* bulk support is not probed again */
+		this.connector.sendE2EMessages(Arrays.asList(message("ECHOECHO"), message("ECHOECH2")));
+		Assert.assertEquals(1, Collections.frequency(this.requests, "/send_e2e_bulk"));
+	}
+
+	/**
+	 * Serve a blob, cutting off the first response after 400 bytes.
+	 */
+	private void serveBlob(byte[] blob, boolean supportRanges) {
+		this.server.createContext("/blobs/0102", exchange -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			this.requests.add(String.valueOf(range));
+			int offset = 0;
+			if (supportRanges && range != null) {
+				offset = Integer.parseInt(range.substring(6, range.length() - 1));
+				exchange.getResponseHeaders().add("Content-Range",
+						"bytes " + offset + "-" + (blob.length - 1) + "/" + blob.length);
+				exchange.sendResponseHeaders(206, blob.length - offset);
+			} else {
+				exchange.sendResponseHeaders(200, blob.length);
+			}
+			int length = this.requests.size() == 1 ? 400 : blob.length - offset;
+			/* closing a truncated response fails, which makes the server drop the connection */
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(blob, offset, length);
+			}
+		});
+	}
+
+	@Test
+	public void testResumeDownload() throws Exception {
+		byte[] blob = new byte[1000];
+		new Random(1).nextBytes(blob);
+		serveBlob(blob, true);
+		this.connector.setDownloadRetryPolicy(2, 10);
+
+		List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+		File target = new File(Files.createTempDirectory("download").toFile(), "blob");
+		this.connector.downloadFile(new byte[] {1, 2}, target, progress::add);
+
+		Assert.assertEquals(blob, Files.readAllBytes(target.toPath()));
+		Assert.assertFalse(new File(target.getPath() + ".part").exists());
+		Assert.assertEquals(Arrays.asList("null", "bytes=400-"), this.requests);
+		Assert.assertEquals(100, (int) progress.get(progress.size() - 1));
+	}
+
+	@Test
+	public void testPartialDownloadRemovedWhenBlobIsGone() throws Exception {
+		this.server.createContext("/blobs/0102", exchange -> respond(exchange, 404, ""));
+
+		File target = new File(Files.createTempDirectory("download").toFile(), "blob");
+		File partFile = new File(target.getPath() + ".part");
+		Files.write(partFile.toPath(), new byte[400]);
+		try {
+			this.connector.downloadFile(new byte[] {1, 2}, target, null);
+			Assert.fail("expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			/* expected */
+		}
+		Assert.assertFalse(partFile.exists());
+		Assert.assertFalse(target.exists());
+	}
+
+	@Test
+	public void testDownloadWithoutRangeSupport() throws Exception {
+		byte[] blob = new byte[1000];
+		new Random(2).nextBytes(blob);
+		serveBlob(blob, false);
+		this.connector.setDownloadRetryPolicy(2, 10);
+
+		File target = new File(Files.createTempDirectory("download").toFile(), "blob");
+		this.connector.downloadFile(new byte[] {1, 2}, target, null);
+
+		/* the second attempt starts over and must not append to the partial data */
+		Assert.assertEquals(blob, Files.readAllBytes(target.toPath()));
+		Assert.assertEquals(Arrays.asList("null", "bytes=400-"), this.requests);
+	}
+
+	@Test
+	public void testParallelDownload() throws Exception {
+		byte[] blob = new byte[1000];
+		new Random(3).nextBytes(blob);
+		this.server.createContext("/blobs/0102", exchange -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			this.requests.add(range);
+			if (range == null) {
+				exchange.sendResponseHeaders(200, blob.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(blob);
+				}
+				return;
+			}
+			int dash = range.indexOf('-');
+			int first = Integer.parseInt(range.substring(6, dash));
+			int last = dash == range.length() - 1 ? blob.length - 1 : Integer.parseInt(range.substring(dash + 1));
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + blob.length);
+			exchange.sendResponseHeaders(206, last - first + 1);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(blob, first, last - first + 1);
+			}
+		});
+		this.connector.setParallelDownload(4, 300);
+
+		List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+		File target = new File(Files.createTempDirectory("download").toFile(), "blob");
+		this.connector.downloadFile(new byte[] {1, 2}, target, progress::add);
+
+		Assert.assertEquals(blob, Files.readAllBytes(target.toPath()));
+		/* 1000 bytes with at least 300 bytes per range gives three ranges */
+		Assert.assertEquals(4, this.requests.size());
+		Assert.assertEquals("bytes=0-0", this.requests.get(0));
+		Assert.assertTrue(this.requests.containsAll(Arrays.asList("bytes=0-333", "bytes=334-667", "bytes=668-999")));
+		Assert.assertEquals(100, (int) progress.get(progress.size() - 1));
+
+		/* small blobs still use a single request */
+		this.requests.clear();
+		this.connector.setParallelDownload(4, 600);
+		this.connector.downloadFile(new byte[] {1, 2}, target, null);
+		Assert.assertEquals(Arrays.asList("bytes=0-0", null), this.requests);
+	}
+
+	@Test
+	public void testParallelDownloadStopsOnFailure() throws Exception {
+		final byte[] blob = new byte[1000];
+		final CountDownLatch finished = new CountDownLatch(1);
+		HttpServer slowServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		slowServer.setExecutor(executor);
+		slowServer.createContext("/blobs/", exchange -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if (range.equals("bytes=668-999")) {
+				respond(exchange, 404, "");
+				return;
+			}
+			int dash = range.indexOf('-');
+			int first = Integer.parseInt(range.substring(6, dash));
+			int last = Integer.parseInt(range.substring(dash + 1));
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + blob.length);
+			exchange.sendResponseHeaders(206, last - first + 1);
+			OutputStream os = exchange.getResponseBody();
+			if (first == last) {
+				os.write(blob, first, 1);
+				os.close();
+				return;
+			}
+			/* stall after the first bytes */
+			os.write(blob, first, 10);
+			os.flush();
+			try {
+				finished.await(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.close();
+		});
+		slowServer.start();
+
+		try {
+			APIConnector connector = new APIConnector("*TESTTST", "sec ret",
+					"http://127.0.0.1:" + slowServer.getAddress().getPort() + "/", null);
+			connector.setParallelDownload(4, 300);
+			File target = new File(Files.createTempDirectory("download").toFile(), "blob");
+
+			long start = System.nanoTime();
+			try {
+				connector.downloadFile(new byte[] {1, 2}, target, null);
+				Assert.fail("expected FileNotFoundException");
+			} catch (FileNotFoundException e) {
+				/* expected */
+			}
+			/* the stalled ranges were not waited for */
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+			Assert.assertFalse(new File(target.getPath() + ".parts").exists());
+		} finally {
+			finished.countDown();
+			slowServer.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRetryAfterThrottled() throws Exception {
+		this.server.createContext("/credits", exchange -> {
+			this.requests.add(exchange.getRequestURI().getPath());
+			if (this.requests.size() == 1) {
+				exchange.getResponseHeaders().add("Retry-After", "0");
+				respond(exchange, 429, "");
+			} else {
+				respond(exchange, 200, "42");
+			}
+		});
+
+		Assert.assertEquals(42, (int) this.connector.lookupCredits());
+		Assert.assertEquals(2, this.requests.size());
+		/* the rejection halved the concurrency limit */
+		Assert.assertEquals(32, this.connector.getConcurrencyLimit("credits"));
+		Assert.assertEquals(64, this.connector.getConcurrencyLimit("pubkeys"));
+	}
+
+	@Test
+	public void testThrottledWithoutRetries() throws Exception {
+		this.server.createContext("/credits", exchange -> {
+			this.requests.add(exchange.getRequestURI().getPath());
+			exchange.getResponseHeaders().add("Retry-After", "0");
+			respond(exchange, 503, "");
+		});
+		this.connector.setThrottleRetries(0);
+
+		try {
+			this.connector.lookupCredits();
+			Assert.fail("expected IOException");
+		} catch (IOException e) {
+			/* expected */
+		}
+		Assert.assertEquals(1, this.requests.size());
+	}
+}
@@ -24,10 +24,19 @@
 
 package ch.threema.apitool;
 
+import java.nio.BufferOverflowException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
 import com.neilalexander.jnacl.NaCl;
 
+import ch.threema.apitool.exceptions.DecryptionFailedException;
+import ch.threema.apitool.messages.ImageMessage;
+import ch.threema.apitool.messages.MessageView;
 import ch.threema.apitool.messages.TextMessage;
 import ch.threema.apitool.messages.ThreemaMessage;
 import ch.threema.apitool.results.EncryptResult;
@@ -72,6 +81,30 @@ public class CryptToolTest {
         Assert.assertEquals(((TextMessage) message).getText(), "Dies ist eine Testnachricht. äöü");
     }
 
+    @Test
+    public void testDecryptMessageView() throws Exception {
+        String nonce = "0a1ec5b67b4d61a1ef91f55e8ce0471fee96ea5d8596dfd0";
+        String box = "45181c7aed95a1c100b1b559116c61b43ce15d04014a805288b7d14bf3a993393264fe554794ce7d6007233e8ef5a0f1ccdd704f34e7c7b77c72c239182caf1d061d6fff6ffbbfe8d3b8f3475c2fe352e563aa60290c666b2e627761e32155e62f048b52ef2f39c13ac229f393c67811749467396ecd09f42d32a4eb419117d0451056ac18fac957c52b0cca67568e2d97e5a3fd829a77f914a1ad403c5909fd510a313033422ea5db71eaf43d483238612a54cb1ecfe55259b1de5579e67c6505df7d674d34a737edf721ea69d15b567bc2195ec67e172f3cb8d6842ca88c29138cc33e9351dbc1e4973a82e1cf428c1c763bb8f3eb57770f914a";
+
+        Key privateKey = Key.decodeKey(Common.otherPrivateKey);
+        Key publicKey = Key.decodeKey(Common.myPublicKey);
+
+        MessageView view = CryptTool.decryptMessageView(DataUtils.hexStringToByteArray(box), privateKey.key,
+                publicKey.key, DataUtils.hexStringToByteArray(nonce));
+
+        Assert.assertEquals(TextMessage.TYPE_CODE, view.getTypeCode());
+        Assert.assertEquals("Dies ist eine Testnachricht. äöü", view.getText());
+        Assert.assertTrue(view.toMessage() instanceof TextMessage);
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testDecryptMessageViewWrongKey() throws Exception {
+        byte[] box = new byte[64];
+        Key privateKey = Key.decodeKey(Common.otherPrivateKey);
+        Key publicKey = Key.decodeKey(Common.myPublicKey);
+        CryptTool.decryptMessageView(box, privateKey.key, publicKey.key, CryptTool.randomNonce());
+    }
+
     @Test
     public void testEncrypt() throws Exception {
         String text = "Dies ist eine Testnachricht. äöü";
@@ -87,6 +120,58 @@ public class CryptToolTest {
         Assert.assertFalse(Common.isEmpty(res.getResult()));
     }
 
+    @Test
+    public void testEncryptMessageIntoBuffer() throws Exception {
+        String text = "Dies ist eine Testnachricht. äöü \uD83D\uDE00";
+
+        Key privateKey = Key.decodeKey(Common.myPrivateKey);
+        Key publicKey = Key.decodeKey(Common.otherPublicKey);
+        Key otherPrivateKey = Key.decodeKey(Common.otherPrivateKey);
+        Key myPublicKey = Key.decodeKey(Common.myPublicKey);
+
+        byte[] buffer = new byte[CryptTool.MAX_BOX_LENGTH];
+        for (int i = 0; i < 2; i++) {
+            byte[] nonce = CryptTool.randomNonce();
+            int boxLength = CryptTool.encryptMessage(new TextMessage(text), privateKey.key, publicKey.key, nonce, buffer);
+
+            ThreemaMessage message = CryptTool.decryptMessage(Arrays.copyOf(buffer, boxLength), otherPrivateKey.key,
+                    myPublicKey.key, nonce);
+            Assert.assertTrue(message instanceof TextMessage);
+            Assert.assertEquals(text, ((TextMessage) message).getText());
+        }
+
+        byte[] blobId = new byte[ThreemaMessage.BLOB_ID_LEN];
+        blobId[3] = 42;
+        byte[] nonce = CryptTool.randomNonce();
+        int boxLength = CryptTool.encryptMessage(new ImageMessage(blobId, 1234, CryptTool.randomNonce()),
+                privateKey.key, publicKey.key, nonce, buffer);
+        ThreemaMessage message = CryptTool.decryptMessage(Arrays.copyOf(buffer, boxLength), otherPrivateKey.key,
+                myPublicKey.key, nonce);
+        Assert.assertTrue(message instanceof ImageMessage);
+        Assert.assertEquals(blobId, ((ImageMessage) message).getBlobId());
+        Assert.assertEquals(1234, ((ImageMessage) message).getSize());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testEncryptMessageBufferTooSmall() throws Exception {
+        Key privateKey = Key.decodeKey(Common.myPrivateKey);
+        Key publicKey = Key.decodeKey(Common.otherPublicKey);
+
+        CryptTool.encryptMessage(new TextMessage("too long"), privateKey.key, publicKey.key,
+                CryptTool.randomNonce(), new byte[NaCl.BOXOVERHEAD + 4]);
+    }
+
+    @Test
+    public void testUtf8Encoding() throws Exception {
+        String text = "a\u00e4\u20ac\uD83D\uDE00\uD800x";
+        byte[] expected = text.getBytes("UTF-8");
+        Assert.assertEquals(expected.length, DataUtils.utf8Length(text));
+
+        byte[] buffer = new byte[expected.length + 2];
+        Assert.assertEquals(expected.length, DataUtils.encodeUtf8(text, buffer, 2));
+        Assert.assertEquals(expected, Arrays.copyOfRange(buffer, 2, buffer.length));
+    }
+
     @Test
     public void testDerivePublicKey() throws Exception {
         Key privateKey = Key.decodeKey(Common.myPrivateKey);
@@ -95,4 +180,63 @@ public class CryptToolTest {
         Assert.assertNotNull("derived public key", derivedPublicKey);
         Assert.assertEquals(derivedPublicKey, publicKey.key);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEncryptMappedFile() throws Exception {
+        Key privateKey = Key.decodeKey(Common.myPrivateKey);
+        Key publicKey = Key.decodeKey(Common.otherPublicKey);
+        Path input = Files.createTempFile("plain", ".bin");
+        Path output = Files.createTempFile("encrypted", ".bin");
+        Random random = new Random(1);
+
+        // sizes around the MAC block (16), keystream block (64) and working buffer (16384) boundaries
+        for (int size : new int[] {0, 1, 15, 16, 31, 32, 33, 64, 100, 16383, 16384, 16385, 50000}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            Files.write(input, data);
+
+            EncryptResult fileResult = CryptTool.encryptFileData(input, output);
+            byte[] encrypted = Files.readAllBytes(output);
+            Assert.assertEquals(size + NaCl.BOXOVERHEAD, fileResult.getSize());
+            Assert.assertNull(fileResult.getResult());
+            Assert.assertEquals(data, CryptTool.decryptFileData(encrypted, fileResult.getSecret()));
+
+            // the array version skips the authenticator for empty input, so compare by decrypting
+            EncryptResult result = CryptTool.encrypt(input, output, privateKey.key, publicKey.key);
+            Assert.assertEquals(data, new NaCl(privateKey.key, publicKey.key).decrypt(Files.readAllBytes(output),
+                    result.getNonce()));
+        }
+
+        Files.delete(input);
+        Files.delete(output);
+    }
+
+    @Test
+    public void testDecryptMappedFile() throws Exception {
+        Path plain = Files.createTempFile("plain", ".bin");
+        Path input = Files.createTempFile("encrypted", ".bin");
+        Path output = Files.createTempFile("decrypted", ".bin");
+        Random random = new Random(2);
+
+        EncryptResult result = null;
+        for (int size : new int[] {0, 1, 63, 64, 65, 16384, 16385, 50000}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            Files.write(plain, data);
+            result = CryptTool.encryptFileData(plain, input);
+
+            Assert.assertTrue(CryptTool.decryptFileData(input, output, result.getSecret()));
+            Assert.assertEquals(data, Files.readAllBytes(output));
+        }
+
+        // a tampered file is rejected and no output is left behind
+        byte[] encrypted = Files.readAllBytes(input);
+        encrypted[encrypted.length - 1] ^= 1;
+        Files.write(input, encrypted);
+        Assert.assertFalse(CryptTool.decryptFileData(input, output, result.getSecret()));
+        Assert.assertFalse(Files.exists(output));
+
+        Files.delete(plain);
+        Files.delete(input);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class DataUtilsTest {
+	private static final byte[] DATA = {0x00, 0x1f, (byte) 0xa0, (byte) 0xff, 0x7e};
+
+	@Test
+	public void testEncodeHex() {
+		Assert.assertEquals("001fa0ff7e", DataUtils.byteArrayToHexString(DATA));
+		Assert.assertEquals("x1fa0", DataUtils.appendHex(new StringBuilder("x"), DATA, 1, 2).toString());
+		Assert.assertEquals("x00000000000001ff", DataUtils.appendHex(new StringBuilder("x"), 0x1ffL).toString());
+
+		byte[] out = new byte[12];
+		Assert.assertEquals(10, DataUtils.encodeHex(DATA, 0, DATA.length, out, 1));
+		Assert.assertEquals("001fa0ff7e", new String(out, 1, 10, StandardCharsets.US_ASCII));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(4);
+		DataUtils.encodeHex(DATA, 3, 2, direct);
+		Assert.assertEquals(4, direct.position());
+		Assert.assertEquals((byte) 'f', direct.get(0));
+		Assert.assertEquals((byte) 'e', direct.get(3));
+	}
+
+	@Test
+	public void testDecodeHex() {
+		Assert.assertEquals(DATA, DataUtils.decodeHex("--001FA0ff7e", 2, 12));
+		Assert.assertEquals(DATA, DataUtils.decodeHexLenient("00 1f:A0\nff 7e 1", 0, 16));
+		Assert.assertEquals(DATA, DataUtils.hexStringToByteArray(" 001fa0ff7e\n"));
+
+		byte[] out = new byte[5];
+		Assert.assertEquals(5, DataUtils.decodeHex("001fa0ff7e".getBytes(StandardCharsets.US_ASCII), 0, 10, out, 0));
+		Assert.assertEquals(DATA, out);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeHexStrictRejectsInvalid() {
+		DataUtils.decodeHex("001f a0", 0, 7);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class LongHashSetTest {
+
+	@Test
+	public void testAddContainsRemove() {
+		LongHashSet set = new LongHashSet();
+		Assert.assertTrue(set.add(0));
+		Assert.assertFalse(set.add(0));
+		Assert.assertTrue(set.add(-1));
+		Assert.assertTrue(set.contains(0));
+		Assert.assertTrue(set.contains(-1));
+		Assert.assertFalse(set.contains(1));
+		Assert.assertEquals(2, set.size());
+
+		Assert.assertTrue(set.remove(0));
+		Assert.assertFalse(set.remove(0));
+		Assert.assertFalse(set.contains(0));
+		Assert.assertEquals(1, set.size());
+	}
+
+	@Test
+	public void testAgainstHashSet() {
+		Random random = new Random(42);
+		LongHashSet set = new LongHashSet();
+		Set<Long> reference = new HashSet<>();
+
+		for (int i = 0; i < 100000; i++) {
+			/* small value range to force collisions and removals of existing values */
+			long value = random.nextInt(5000) - 2500;
+			if (random.nextBoolean()) {
+				Assert.assertEquals(reference.add(value), set.add(value));
+			} else {
+				Assert.assertEquals(reference.remove(value), set.remove(value));
+			}
+		}
+
+		Assert.assertEquals(reference.size(), set.size());
+		for (long v = -2500; v < 2500; v++) {
+			Assert.assertEquals(reference.contains(v), set.contains(v));
+		}
+		Assert.assertEquals(reference.size(), set.toArray().length);
+	}
+}
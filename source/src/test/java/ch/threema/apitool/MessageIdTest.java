@@ -0,0 +1,53 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+public class MessageIdTest {
+	@Test
+	public void testLongRoundTrip() {
+		byte[] bytes = {(byte) 0x81, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef};
+		MessageId id = new MessageId(bytes);
+
+		Assert.assertEquals(0x8123456789abcdefL, id.toLong());
+		Assert.assertEquals(bytes, MessageId.fromLong(id.toLong()).getMessageId());
+		Assert.assertEquals(id, MessageId.fromLong(0x8123456789abcdefL));
+	}
+
+	@Test
+	public void testHex() {
+		Assert.assertEquals("8123456789abcdef", MessageId.toHexString(0x8123456789abcdefL));
+		Assert.assertEquals("000000000000002a", MessageId.fromLong(42).toString());
+		Assert.assertEquals("x000000000000002a", MessageId.appendHex(42, new StringBuilder("x")).toString());
+		Assert.assertEquals(0x8123456789abcdefL, MessageId.parseHex("8123456789ABCDEF"));
+		Assert.assertEquals(MessageId.fromLong(-1), MessageId.fromHex("ffffffffffffffff"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadHex() {
+		MessageId.parseHex("8123456789abcdeg");
+	}
+}
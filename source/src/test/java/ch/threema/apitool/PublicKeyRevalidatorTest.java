@@ -0,0 +1,147 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PublicKeyRevalidatorTest {
+
+	private static class MapStore extends PublicKeyStore {
+		@Override
+		protected byte[] fetchPublicKey(String threemaId) {
+			return null;
+		}
+
+		@Override
+		protected void save(String threemaId, byte[] publicKey) {
+		}
+	}
+
+	private static class FakeConnector extends APIConnector {
+		final Map<String, byte[]> serverKeys = new HashMap<>();
+
+		FakeConnector(PublicKeyStore store) {
+			super("*TESTTST", "secret", store);
+		}
+
+		@Override
+		public byte[] fetchPublicKey(String id) throws IOException {
+			if (id.equals("FAILFAIL")) {
+				throw new IOException("lookup failed");
+			}
+			return this.serverKeys.get(id);
+		}
+	}
+
+	@Test
+	public void testDetectsChangedKey() throws Exception {
+		byte[] oldKey = DataUtils.hexStringToByteArray(Common.myPublicKeyExtract);
+		byte[] newKey = Key.decodeKey(Common.otherPublicKey).key;
+
+		MapStore store = new MapStore();
+		store.setPublicKey("ECHOECHO", oldKey);
+		FakeConnector connector = new FakeConnector(store);
+		connector.serverKeys.put("ECHOECHO", oldKey);
+
+		List<byte[]> changes = new ArrayList<>();
+		PublicKeyRevalidator revalidator = new PublicKeyRevalidator(connector,
+				(id, oldFingerprint, newFingerprint, newPublicKey) -> changes.add(newFingerprint));
+
+		Assert.assertTrue(revalidator.revalidate("ECHOECHO"));
+		Assert.assertTrue(changes.isEmpty());
+
+		connector.serverKeys.put("ECHOECHO", newKey);
+		Assert.assertFalse(revalidator.revalidate("ECHOECHO"));
+		Assert.assertEquals(1, changes.size());
+		Assert.assertEquals(CryptTool.publicKeyFingerprint(newKey), changes.get(0));
+
+		/* pinned key is kept by default */
+		Assert.assertEquals(oldKey, store.getPublicKey("ECHOECHO"));
+
+		/* the same change is reported only once, a further change again */
+		Assert.assertFalse(revalidator.revalidate("ECHOECHO"));
+		Assert.assertEquals(1, changes.size());
+		connector.serverKeys.remove("ECHOECHO");
+		Assert.assertFalse(revalidator.revalidate("ECHOECHO"));
+		Assert.assertEquals(2, changes.size());
+		Assert.assertNull(changes.get(1));
+	}
+
+	@Test
+	public void testUpdateStore() throws Exception {
+		byte[] oldKey = DataUtils.hexStringToByteArray(Common.myPublicKeyExtract);
+		byte[] newKey = Key.decodeKey(Common.otherPublicKey).key;
+
+		MapStore store = new MapStore();
+		store.setPublicKey("ECHOECHO", oldKey);
+		FakeConnector connector = new FakeConnector(store);
+		connector.serverKeys.put("ECHOECHO", newKey);
+
+		PublicKeyRevalidator revalidator = new PublicKeyRevalidator(connector, null);
+		revalidator.setUpdateStore(true);
+
+		Assert.assertFalse(revalidator.revalidate("ECHOECHO"));
+		Assert.assertEquals(newKey, store.getPublicKey("ECHOECHO"));
+		Assert.assertTrue(revalidator.revalidate("ECHOECHO"));
+	}
+
+	@Test
+	public void testReportsErrors() throws Exception {
+		MapStore store = new MapStore();
+		store.setPublicKey("FAILFAIL", Key.decodeKey(Common.otherPublicKey).key);
+		FakeConnector connector = new FakeConnector(store);
+
+		final LinkedBlockingQueue<String> errors = new LinkedBlockingQueue<>();
+		PublicKeyRevalidator revalidator = new PublicKeyRevalidator(connector,
+				new PublicKeyRevalidator.Listener() {
+					@Override
+					public void onPublicKeyChanged(String threemaId, byte[] oldFingerprint, byte[] newFingerprint,
+							byte[] newPublicKey) {
+						Assert.fail("no change expected");
+					}
+
+					@Override
+					public void onError(String threemaId, Exception e) {
+						errors.add(threemaId);
+					}
+				});
+		revalidator.start(10, TimeUnit.MILLISECONDS);
+		try {
+			Assert.assertEquals("FAILFAIL", errors.poll(5, TimeUnit.SECONDS));
+			/* the sweep goes on after a failure */
+			Assert.assertEquals("FAILFAIL", errors.poll(5, TimeUnit.SECONDS));
+		} finally {
+			revalidator.stop();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class PublicKeyStoreTest {
+
+	private static class RecordingStore extends PublicKeyStore {
+		final Map<String, byte[]> saved = new HashMap<>();
+		final List<Integer> batchSizes = new ArrayList<>();
+		volatile boolean failing;
+		final List<RuntimeException> errors = new ArrayList<>();
+
+		@Override
+		protected byte[] fetchPublicKey(String threemaId) {
+			return null;
+		}
+
+		@Override
+		protected synchronized void save(String threemaId, byte[] publicKey) {
+			this.saved.put(threemaId, publicKey);
+		}
+
+		@Override
+		protected synchronized void saveAll(Map<String, byte[]> publicKeys) {
+			this.batchSizes.add(publicKeys.size());
+			if (this.failing) {
+				throw new IllegalStateException("store unavailable");
+			}
+			super.saveAll(publicKeys);
+		}
+
+		@Override
+		protected synchronized void onSaveError(RuntimeException e) {
+			this.errors.add(e);
+		}
+	}
+
+	@Test
+	public void testSaveImmediately() {
+		RecordingStore store = new RecordingStore();
+		store.setPublicKey("ECHOECHO", new byte[] {1});
+
+		Assert.assertEquals(1, store.saved.size());
+		Assert.assertTrue(store.batchSizes.isEmpty());
+	}
+
+	@Test
+	public void testWriteBehindFlushOnShutdown() {
+		RecordingStore store = new RecordingStore();
+		store.enableWriteBehind(100, 1, TimeUnit.HOURS);
+
+		store.setPublicKey("ECHOECHO", new byte[] {1});
+		store.setPublicKey("ECHOECH2", new byte[] {2});
+
+		Assert.assertTrue("keys written before flush", store.saved.isEmpty());
+		Assert.assertEquals(new byte[] {2}, store.getPublicKey("ECHOECH2"));
+
+		store.shutdown();
+		Assert.assertEquals(2, store.saved.size());
+		Assert.assertEquals("[2]", store.batchSizes.toString());
+	}
+
+	@Test
+	public void testWriteBehindFlushOnBatchSize() throws Exception {
+		RecordingStore store = new RecordingStore();
+		store.enableWriteBehind(2, 1, TimeUnit.HOURS);
+
+		store.setPublicKey("ECHOECHO", new byte[] {1});
+		store.setPublicKey("ECHOECH2", new byte[] {2});
+
+		for (int i = 0; i < 100; i++) {
+			synchronized (store) {
+				if (store.saved.size() == 2) {
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+		synchronized (store) {
+			Assert.assertEquals(2, store.saved.size());
+		}
+		store.shutdown();
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() {
+		RecordingStore store = new RecordingStore();
+		store.enableWriteBehind(100, 1, TimeUnit.HOURS);
+		store.setPublicKey("ECHOECHO", new byte[] {1});
+
+		store.failing = true;
+		try {
+			store.flush();
+			Assert.fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		store.failing = false;
+		store.setPublicKey("ECHOECH2", new byte[] {2});
+		store.shutdown();
+		Assert.assertEquals(2, store.saved.size());
+		Assert.assertEquals("[1, 2]", store.batchSizes.toString());
+	}
+
+	@Test
+	public void testBackgroundFlushError() throws Exception {
+		RecordingStore store = new RecordingStore();
+		store.failing = true;
+		store.enableWriteBehind(1, 1, TimeUnit.HOURS);
+		store.setPublicKey("ECHOECHO", new byte[] {1});
+
+		for (int i = 0; i < 100; i++) {
+			synchronized (store) {
+				if (!store.errors.isEmpty()) {
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+		synchronized (store) {
+			Assert.assertEquals(1, store.errors.size());
+		}
+
+		store.failing = false;
+		store.shutdown();
+		Assert.assertEquals(1, store.saved.size());
+	}
+}
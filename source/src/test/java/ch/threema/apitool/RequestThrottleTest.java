@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RequestThrottleTest {
+	@Test
+	public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+		RequestThrottle throttle = new RequestThrottle();
+		throttle.setMaxConcurrency(8);
+
+		long start = System.nanoTime();
+		throttle.onFailure(start);
+		Assert.assertEquals(4, throttle.getConcurrencyLimit());
+		/* requests started before the decrease do not decrease the limit again */
+		throttle.onResponse(start, 500);
+		Assert.assertEquals(4, throttle.getConcurrencyLimit());
+		throttle.onResponse(System.nanoTime(), 502);
+		Assert.assertEquals(2, throttle.getConcurrencyLimit());
+
+		/* about one step per limit's worth of successful requests */
+		for (int i = 0; i < 3; i++) {
+			throttle.onResponse(System.nanoTime(), 200);
+		}
+		Assert.assertEquals(3, throttle.getConcurrencyLimit());
+		for (int i = 0; i < 100; i++) {
+			throttle.onResponse(System.nanoTime(), 200);
+		}
+		Assert.assertEquals(8, throttle.getConcurrencyLimit());
+	}
+
+	@Test
+	public void testRateLimit() throws Exception {
+		RequestThrottle throttle = new RequestThrottle();
+		throttle.setRateLimit(20, 2);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			throttle.acquire();
+			throttle.release();
+		}
+		/* two requests from the burst, then two more at 50 ms intervals */
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= 90);
+	}
+
+	@Test
+	public void testRetryAfterBlocksRequests() throws Exception {
+		RequestThrottle throttle = new RequestThrottle();
+		Assert.assertEquals(100, throttle.onThrottled(System.nanoTime(), 100));
+
+		long start = System.nanoTime();
+		throttle.acquire();
+		throttle.release();
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+
+		/* without Retry-After, the delay doubles */
+		Assert.assertEquals(2000, throttle.onThrottled(System.nanoTime(), -1));
+	}
+}
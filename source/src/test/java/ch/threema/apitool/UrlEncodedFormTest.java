@@ -0,0 +1,51 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+public class UrlEncodedFormTest {
+	@Test
+	public void testMatchesUrlEncoder() throws Exception {
+		String value = "a b&c=d+e*f.g_h-i/jé€😀~";
+		UrlEncodedForm form = new UrlEncodedForm(4).add("from", "*TEST123").add("text", value);
+
+		Assert.assertEquals("from=" + URLEncoder.encode("*TEST123", "UTF-8") + "&text=" + URLEncoder.encode(value, "UTF-8"),
+				form.toString());
+	}
+
+	@Test
+	public void testHexAndReuse() {
+		UrlEncodedForm form = new UrlEncodedForm(8);
+		form.add("to", "ECHOECHO").addHex("box", new byte[] {0x01, (byte) 0xab, (byte) 0xff}, 1, 2);
+		Assert.assertEquals("to=ECHOECHO&box=abff", form.toString());
+
+		form.reset().addHex("nonce", new byte[] {0x10}, 0, 1);
+		Assert.assertEquals("nonce=10", form.toString());
+		Assert.assertEquals(8, form.getLength());
+	}
+}
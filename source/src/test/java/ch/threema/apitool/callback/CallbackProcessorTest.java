@@ -0,0 +1,165 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.PublicKeyStore;
+import ch.threema.apitool.exceptions.InvalidCallbackException;
+import ch.threema.apitool.exceptions.InvalidMacException;
+import ch.threema.apitool.messages.TextMessage;
+import ch.threema.apitool.messages.ThreemaMessage;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CallbackProcessorTest {
+	private static final String SECRET = "testsecret";
+	private static final String NONCE = "0a1ec5b67b4d61a1ef91f55e8ce0471fee96ea5d8596dfd0";
+	private static final String BOX = "45181c7aed95a1c100b1b559116c61b43ce15d04014a805288b7d14bf3a993393264fe554794ce7d6007233e8ef5a0f1ccdd704f34e7c7b77c72c239182caf1d061d6fff6ffbbfe8d3b8f3475c2fe352e563aa60290c666b2e627761e32155e62f048b52ef2f39c13ac229f393c67811749467396ecd09f42d32a4eb419117d0451056ac18fac957c52b0cca67568e2d97e5a3fd829a77f914a1ad403c5909fd510a313033422ea5db71eaf43d483238612a54cb1ecfe55259b1de5579e67c6505df7d674d34a737edf721ea69d15b567bc2195ec67e172f3cb8d6842ca88c29138cc33e9351dbc1e4973a82e1cf428c1c763bb8f3eb57770f914a";
+
+	static CallbackProcessor createProcessor(CallbackProcessor.Listener listener) throws Exception {
+		final byte[] senderPublicKey = Key.decodeKey(Common.myPublicKey).key;
+		APIConnector connector = new APIConnector("*TESTTST", SECRET, new PublicKeyStore() {
+			@Override
+			protected byte[] fetchPublicKey(String threemaId) {
+				return senderPublicKey;
+			}
+
+			@Override
+			protected void save(String threemaId, byte[] publicKey) {
+			}
+		});
+		return new CallbackProcessor(connector, SECRET, Key.decodeKey(Common.otherPrivateKey).key, listener);
+	}
+
+	static byte[] createBody(String messageId, String secret) throws Exception {
+		String from = "ECHOECHO";
+		String to = "*TESTTST";
+		String date = "1445846212";
+
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
+		byte[] macBytes = mac.doFinal((from + to + messageId + date + NONCE + BOX).getBytes(StandardCharsets.US_ASCII));
+
+		return ("from=" + from + "&to=%2ATESTTST&messageId=" + messageId + "&date=" + date
+				+ "&nonce=" + NONCE + "&box=" + BOX + "&mac=" + DataUtils.byteArrayToHexString(macBytes)
+				+ "&nickname=Test+User").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void testProcess() throws Exception {
+		final List<ThreemaMessage> messages = new ArrayList<>();
+		final List<IncomingCallback> callbacks = new ArrayList<>();
+		CallbackProcessor processor = createProcessor((callback, message) -> {
+			callbacks.add(callback);
+			messages.add(message);
+		});
+
+		byte[] body = createBody("0102030405060708", SECRET);
+		processor.process(body, body.length);
+
+		Assert.assertEquals(1, messages.size());
+		Assert.assertTrue(messages.get(0) instanceof TextMessage);
+		Assert.assertEquals("Dies ist eine Testnachricht. äöü", ((TextMessage) messages.get(0)).getText());
+
+		IncomingCallback callback = callbacks.get(0);
+		Assert.assertEquals("ECHOECHO", callback.getFrom());
+		Assert.assertEquals("*TESTTST", callback.getTo());
+		Assert.assertEquals("0102030405060708", callback.getMessageId());
+		Assert.assertEquals(1445846212L, callback.getDate());
+		Assert.assertEquals("Test User", callback.getNickname());
+	}
+
+	@Test
+	public void testDuplicateFilter() throws Exception {
+		final List<ThreemaMessage> messages = new ArrayList<>();
+		CallbackProcessor processor = createProcessor((callback, message) -> messages.add(message));
+		processor.setDuplicateFilter(new MessageIdFilter(1, TimeUnit.HOURS, 1000));
+
+		byte[] body = createBody("0102030405060708", SECRET);
+		processor.process(body, body.length);
+		processor.process(body, body.length);
+		Assert.assertEquals(1, messages.size());
+
+		body = createBody("0102030405060709", SECRET);
+		processor.process(body, body.length);
+		Assert.assertEquals(2, messages.size());
+	}
+
+	@Test
+	public void testFailedCallbackIsAcceptedAgain() throws Exception {
+		final List<ThreemaMessage> messages = new ArrayList<>();
+		final List<Exception> errors = new ArrayList<>();
+		CallbackProcessor processor = createProcessor(new CallbackProcessor.Listener() {
+			@Override
+			public void onMessageReceived(IncomingCallback callback, ThreemaMessage message) {
+				messages.add(message);
+				if (messages.size() == 1) {
+					throw new IllegalStateException("listener failed");
+				}
+			}
+
+			@Override
+			public void onError(IncomingCallback callback, Exception e) {
+				errors.add(e);
+			}
+		});
+		processor.setDuplicateFilter(new MessageIdFilter(1, TimeUnit.HOURS, 1000));
+
+		byte[] body = createBody("0102030405060708", SECRET);
+		try {
+			processor.process(body, body.length);
+			Assert.fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+		Assert.assertEquals(1, errors.size());
+
+		/* the retry by the gateway is not dropped as a duplicate */
+		processor.process(body, body.length);
+		Assert.assertEquals(2, messages.size());
+	}
+
+	@Test(expected = InvalidMacException.class)
+	public void testInvalidMac() throws Exception {
+		byte[] body = createBody("0102030405060708", "othersecret");
+		createProcessor((callback, message) -> Assert.fail()).parse(body, body.length);
+	}
+
+	@Test(expected = InvalidCallbackException.class)
+	public void testMissingField() throws Exception {
+		byte[] body = "from=ECHOECHO&to=*TESTTST".getBytes(StandardCharsets.US_ASCII);
+		createProcessor((callback, message) -> Assert.fail()).parse(body, body.length);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.callback;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.PublicKeyStore;
+import ch.threema.apitool.helpers.E2EHelper;
+import ch.threema.apitool.messages.TextMessage;
+import ch.threema.apitool.results.EncryptResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class DecryptDispatcherTest {
+
+	@Test
+	public void testPerSenderOrder() throws Exception {
+		final byte[] senderPrivateKey = Key.decodeKey(Common.myPrivateKey).key;
+		final byte[] senderPublicKey = Key.decodeKey(Common.myPublicKey).key;
+		final byte[] recipientPrivateKey = Key.decodeKey(Common.otherPrivateKey).key;
+		final byte[] recipientPublicKey = Key.decodeKey(Common.otherPublicKey).key;
+
+		APIConnector connector = new APIConnector("*TESTTST", "secret", new PublicKeyStore() {
+			@Override
+			protected byte[] fetchPublicKey(String threemaId) {
+				return senderPublicKey;
+			}
+
+			@Override
+			protected void save(String threemaId, byte[] publicKey) {
+			}
+		});
+
+		final Map<String, List<String>> received = new HashMap<>();
+		DecryptDispatcher dispatcher = new DecryptDispatcher(new E2EHelper(connector, recipientPrivateKey), null,
+				4, 1000, new DecryptDispatcher.Listener() {
+					@Override
+					public void onMessageReceived(IncomingCallback callback, E2EHelper.ReceiveMessageResult result) {
+						synchronized (received) {
+							received.computeIfAbsent(callback.getFrom(), k -> new ArrayList<>())
+									.add(((TextMessage) result.getMessage()).getText());
+						}
+					}
+
+					@Override
+					public void onError(IncomingCallback callback, Exception e) {
+						Assert.fail(e.toString());
+					}
+				});
+
+		String[] senders = {"SENDER01", "SENDER02", "SENDER03", "SENDER04", "SENDER05"};
+		for (int i = 0; i < 40; i++) {
+			for (String sender : senders) {
+				EncryptResult res = CryptTool.encryptTextMessage(Integer.toString(i), senderPrivateKey,
+						recipientPublicKey);
+				dispatcher.submit(new IncomingCallback(sender, "*TESTTST", "0000000000000000", 0, 0,
+						res.getNonce(), res.getResult(), null));
+			}
+		}
+
+		Assert.assertTrue(dispatcher.shutdown(30, TimeUnit.SECONDS));
+		Assert.assertEquals(200, dispatcher.getProcessedCount());
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+
+		for (String sender : senders) {
+			List<String> texts = received.get(sender);
+			Assert.assertEquals(40, texts.size());
+			for (int i = 0; i < 40; i++) {
+				Assert.assertEquals(Integer.toString(i), texts.get(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import ch.threema.apitool.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+public class BlobCacheTest {
+
+	@Test
+	public void testKey() throws Exception {
+		File a = File.createTempFile("blob", ".bin");
+		File b = File.createTempFile("blob", ".bin");
+		try {
+			Files.write(a.toPath(), new byte[] {1, 2, 3});
+			Files.write(b.toPath(), new byte[] {1, 2, 3});
+
+			Assert.assertEquals(BlobCache.key("file", null, a), BlobCache.key("file", null, b));
+			Assert.assertFalse(BlobCache.key("file", null, a).equals(BlobCache.key("image", null, a)));
+			Assert.assertFalse(BlobCache.key("file", null, a).equals(BlobCache.key("file", null, a, null)));
+			Assert.assertFalse(BlobCache.key("file", null, a).equals(BlobCache.key("file", new byte[] {4}, a)));
+
+			Files.write(b.toPath(), new byte[] {1, 2});
+			Assert.assertFalse(BlobCache.key("file", null, a).equals(BlobCache.key("file", null, b)));
+		} finally {
+			a.delete();
+			b.delete();
+		}
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		BlobCache cache = new BlobCache(50, TimeUnit.MILLISECONDS);
+		cache.put("a", new byte[] {1}, new byte[] {2}, null, 10);
+
+		BlobCache.Entry entry = cache.get("a");
+		Assert.assertEquals(new byte[] {1}, entry.getBlobId());
+		Assert.assertEquals(10, entry.getSize());
+
+		Thread.sleep(100);
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(0, cache.size());
+	}
+}
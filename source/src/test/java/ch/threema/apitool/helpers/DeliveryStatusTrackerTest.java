@@ -0,0 +1,69 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.messages.DeliveryReceipt;
+import ch.threema.apitool.messages.MessageView;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class DeliveryStatusTrackerTest {
+	@Test
+	public void testStatusTransitions() throws Exception {
+		DeliveryStatusTracker tracker = new DeliveryStatusTracker();
+		tracker.markSent("0000000000000001");
+		tracker.markSent(2);
+		tracker.markSent(3);
+		Assert.assertEquals(3, tracker.getUnacknowledgedCount());
+		Assert.assertNull(tracker.getStatus(1));
+
+		DeliveryReceipt receipt = new DeliveryReceipt(DeliveryReceipt.Type.RECEIVED,
+				Arrays.asList(MessageId.fromLong(1), MessageId.fromLong(2), MessageId.fromLong(99)));
+		tracker.update(receipt);
+		Assert.assertEquals(DeliveryReceipt.Type.RECEIVED, tracker.getStatus(2));
+		Assert.assertFalse(tracker.isTracked(99));
+
+		/* parse the receipt as it arrives, without creating MessageId objects */
+		byte[] data = new DeliveryReceipt(DeliveryReceipt.Type.READ, Arrays.asList(MessageId.fromLong(1))).getData();
+		byte[] message = new byte[data.length + 2];
+		message[0] = (byte) DeliveryReceipt.TYPE_CODE;
+		System.arraycopy(data, 0, message, 1, data.length);
+		message[message.length - 1] = 1;
+		tracker.update(MessageView.wrap(message, message.length));
+		Assert.assertEquals(DeliveryReceipt.Type.READ, tracker.getStatus(1));
+
+		/* lower statuses do not downgrade */
+		Assert.assertFalse(tracker.update(DeliveryReceipt.Type.RECEIVED, 1));
+		Assert.assertEquals(DeliveryReceipt.Type.READ, tracker.getStatus(1));
+
+		Assert.assertEquals(1, tracker.getUnacknowledgedCount());
+		Assert.assertEquals(3L, tracker.getUnacknowledged()[0]);
+		Assert.assertTrue(tracker.remove(1));
+		Assert.assertFalse(tracker.isTracked(1));
+	}
+}
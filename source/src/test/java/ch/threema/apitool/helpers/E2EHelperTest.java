@@ -0,0 +1,384 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.PublicKeyStore;
+import ch.threema.apitool.callback.IncomingCallback;
+import ch.threema.apitool.exceptions.NotAllowedException;
+import ch.threema.apitool.messages.FileMessage;
+import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.SendResult;
+import com.neilalexander.jnacl.NaCl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class E2EHelperTest {
+	private HttpServer server;
+	private E2EHelper e2eHelper;
+
+	@Before
+	public void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		/* uploads run concurrently */
+		this.server.setExecutor(Executors.newCachedThreadPool());
+		this.server.start();
+		APIConnector connector = new APIConnector("*TESTTST", "secret",
+				"http://127.0.0.1:" + this.server.getAddress().getPort() + "/", new PublicKeyStore() {
+					@Override
+					protected byte[] fetchPublicKey(String threemaId) {
+						return null;
+					}
+
+					@Override
+					protected void save(String threemaId, byte[] publicKey) {
+					}
+				});
+		this.e2eHelper = new E2EHelper(connector, Key.decodeKey(Common.myPrivateKey).key);
+	}
+
+	@After
+	public void tearDown() {
+		this.server.stop(0);
+	}
+
+	private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(data);
+		}
+	}
+
+	@Test
+	public void testFileFanOutUploadsOnce() throws Exception {
+		final AtomicInteger uploads = new AtomicInteger();
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+
+		this.server.createContext("/upload_blob", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, String.format("%032x", uploads.incrementAndGet()));
+		});
+		this.server.createContext("/pubkeys/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			boolean known = !path.endsWith("UNKNOWN1");
+			respond(exchange, known ? 200 : 404, !known ? "" : path.endsWith("BADKEY01") ? "abcd" : otherPublicKeyHex);
+		});
+		this.server.createContext("/capabilities/", exchange -> {
+			respond(exchange, 200, exchange.getRequestURI().getPath().endsWith("OLDCLNT1") ? "text,image" : "text,image,file");
+		});
+		this.server.createContext("/send_e2e_bulk", exchange -> {
+			String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+			Assert.assertTrue(body.contains("\"to\":\"ECHOECHO\"") && body.contains("\"to\":\"ECHOECH2\""));
+			respond(exchange, 200, "[{\"messageId\":\"0000000000000001\"},{\"messageId\":\"0000000000000002\"}]");
+		});
+
+		File file = File.createTempFile("fanout", ".txt");
+		File thumbnail = File.createTempFile("fanout", ".jpg");
+		try {
+			Files.write(file.toPath(), new byte[1000]);
+			Files.write(thumbnail.toPath(), new byte[100]);
+
+			List<SendResult> results = this.e2eHelper.sendFileMessage(
+					Arrays.asList("ECHOECHO", "UNKNOWN1", "OLDCLNT1", "BADKEY01", "ECHOECH2"), file, thumbnail, 4);
+
+			Assert.assertEquals(2, uploads.get());
+			Assert.assertEquals("0000000000000001", results.get(0).getMessageId());
+			Assert.assertEquals(404, results.get(1).getResponseCode());
+			Assert.assertEquals(403, results.get(2).getResponseCode());
+			Assert.assertEquals(400, results.get(3).getResponseCode());
+			Assert.assertEquals("0000000000000002", results.get(4).getMessageId());
+		} finally {
+			file.delete();
+			thumbnail.delete();
+		}
+	}
+
+	@Test
+	public void testSendFileMessageAsync() throws Exception {
+		final AtomicInteger uploads = new AtomicInteger();
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+
+		this.server.createContext("/upload_blob", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, String.format("%032x", uploads.incrementAndGet()));
+		});
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/capabilities/", exchange -> respond(exchange, 200, "text,image,file"));
+		this.server.createContext("/send_e2e", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, "00000000000000aa");
+		});
+
+		File file = File.createTempFile("async", ".txt");
+		File thumbnail = File.createTempFile("async", ".jpg");
+		try {
+			Files.write(file.toPath(), new byte[1000]);
+			Files.write(thumbnail.toPath(), new byte[100]);
+
+			Assert.assertEquals("00000000000000aa",
+					this.e2eHelper.sendFileMessageAsync("ECHOECHO", file, thumbnail).get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(2, uploads.get());
+		} finally {
+			file.delete();
+			thumbnail.delete();
+		}
+	}
+
+	@Test
+	public void testBlobCacheSkipsUpload() throws Exception {
+		final AtomicInteger uploads = new AtomicInteger();
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+
+		this.server.createContext("/upload_blob", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, String.format("%032x", uploads.incrementAndGet()));
+		});
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/capabilities/", exchange -> respond(exchange, 200, "text,image,file"));
+		this.server.createContext("/send_e2e", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, "00000000000000aa");
+		});
+
+		this.e2eHelper.setBlobCache(new BlobCache());
+		File file = File.createTempFile("cached", ".txt");
+		File thumbnail = File.createTempFile("cached", ".jpg");
+		try {
+			Files.write(file.toPath(), new byte[1000]);
+			Files.write(thumbnail.toPath(), new byte[100]);
+
+			this.e2eHelper.sendFileMessage("ECHOECHO", file, thumbnail);
+			this.e2eHelper.sendFileMessage("ECHOECH2", file, thumbnail);
+			Assert.assertEquals(2, uploads.get());
+
+			/* without the thumbnail it is another upload */
+			this.e2eHelper.sendFileMessage("ECHOECHO", file, null);
+			Assert.assertEquals(3, uploads.get());
+
+			this.e2eHelper.sendImageMessage("ECHOECHO", thumbnail.getPath());
+			this.e2eHelper.sendImageMessage("ECHOECHO", thumbnail.getPath());
+			Assert.assertEquals(4, uploads.get());
+		} finally {
+			file.delete();
+			thumbnail.delete();
+		}
+	}
+
+	@Test
+	public void testImageNotUploadedWithoutCapability() throws Exception {
+		final AtomicInteger uploads = new AtomicInteger();
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+
+		this.server.createContext("/upload_blob", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			respond(exchange, 200, String.format("%032x", uploads.incrementAndGet()));
+		});
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/capabilities/", exchange -> respond(exchange, 200, "text"));
+
+		File image = File.createTempFile("image", ".jpg");
+		try {
+			Files.write(image.toPath(), new byte[100]);
+			this.e2eHelper.sendImageMessage("ECHOECHO", image.getPath());
+			Assert.fail("image sent to a recipient without image capability");
+		} catch (NotAllowedException e) {
+			Assert.assertEquals(0, uploads.get());
+		} finally {
+			image.delete();
+		}
+	}
+
+	@Test
+	public void testReceiveMessages() throws Exception {
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+
+		/* attachment blobs, encrypted with one file key */
+		final byte[] fileContent = "file content".getBytes(StandardCharsets.UTF_8);
+		final byte[] thumbnailContent = "thumbnail".getBytes(StandardCharsets.UTF_8);
+		byte[] fileData = new byte[NaCl.BOXOVERHEAD + fileContent.length];
+		System.arraycopy(fileContent, 0, fileData, NaCl.BOXOVERHEAD, fileContent.length);
+		final EncryptResult file = CryptTool.encryptFileData(fileData);
+		byte[] thumbnailData = new byte[NaCl.BOXOVERHEAD + thumbnailContent.length];
+		System.arraycopy(thumbnailContent, 0, thumbnailData, NaCl.BOXOVERHEAD, thumbnailContent.length);
+		final EncryptResult thumbnail = CryptTool.encryptFileThumbnailData(thumbnailData, file.getSecret());
+
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/blobs/", exchange -> {
+			byte[] blob = exchange.getRequestURI().getPath().endsWith("01") ? file.getResult() : thumbnail.getResult();
+			exchange.sendResponseHeaders(200, blob.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(blob);
+			}
+		});
+
+		FileMessage fileMessage = new FileMessage(new byte[] {1}, file.getSecret(), "text/plain", "a.txt",
+				fileContent.length, new byte[] {2});
+		byte[] nonce = CryptTool.randomNonce();
+		byte[] box = new byte[CryptTool.MAX_BOX_LENGTH];
+		int boxLength = CryptTool.encryptMessage(fileMessage, Key.decodeKey(Common.otherPrivateKey).key,
+				Key.decodeKey(Common.myPublicKey).key, nonce, box);
+
+		Path outputFolder = Files.createTempDirectory("receive");
+		try {
+			List<E2EHelper.ReceiveMessageResult> results = this.e2eHelper.receiveMessages(Arrays.asList(
+					new IncomingCallback("OTHERID1", "*TESTTST", "0000000000000001", 1, 0, nonce,
+							Arrays.copyOf(box, boxLength), null),
+					new IncomingCallback("OTHERID1", "*TESTTST", "0000000000000002", 2, 0, nonce,
+							new byte[boxLength], null)), outputFolder, 2);
+
+			Assert.assertEquals(2, results.size());
+			Assert.assertEquals(2, results.get(0).getFiles().size());
+			Assert.assertEquals(fileContent, Files.readAllBytes(results.get(0).getFiles().get(0).toPath()));
+			Assert.assertEquals(thumbnailContent, Files.readAllBytes(results.get(0).getFiles().get(1).toPath()));
+
+			Assert.assertEquals("0000000000000002", results.get(1).getMessageId());
+			Assert.assertNull(results.get(1).getMessage());
+			Assert.assertEquals(1, results.get(1).getErrors().size());
+		} finally {
+			for (File f : outputFolder.toFile().listFiles()) {
+				f.delete();
+			}
+			Files.delete(outputFolder);
+		}
+	}
+
+	@Test
+	public void testThumbnailRemovedWhenFileDownloadFails() throws Exception {
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+		byte[] thumbnailData = new byte[NaCl.BOXOVERHEAD + 9];
+		final EncryptResult file = CryptTool.encryptFileData(new byte[NaCl.BOXOVERHEAD]);
+		final EncryptResult thumbnail = CryptTool.encryptFileThumbnailData(thumbnailData, file.getSecret());
+
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/blobs/", exchange -> {
+			if (exchange.getRequestURI().getPath().endsWith("01")) {
+				respond(exchange, 404, "");
+				return;
+			}
+			exchange.sendResponseHeaders(200, thumbnail.getResult().length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(thumbnail.getResult());
+			}
+		});
+
+		FileMessage fileMessage = new FileMessage(new byte[] {1}, file.getSecret(), "text/plain", "a.txt", 0,
+				new byte[] {2});
+		byte[] nonce = CryptTool.randomNonce();
+		byte[] box = new byte[CryptTool.MAX_BOX_LENGTH];
+		int boxLength = CryptTool.encryptMessage(fileMessage, Key.decodeKey(Common.otherPrivateKey).key,
+				Key.decodeKey(Common.myPublicKey).key, nonce, box);
+
+		Path outputFolder = Files.createTempDirectory("receive");
+		try {
+			try {
+				this.e2eHelper.receiveMessage("OTHERID1", "0000000000000001", Arrays.copyOf(box, boxLength), nonce,
+						outputFolder);
+				Assert.fail("expected FileNotFoundException");
+			} catch (FileNotFoundException e) {
+				/* expected */
+			}
+
+			/* the thumbnail may still be downloading in the background */
+			long deadline = System.currentTimeMillis() + 5000;
+			while (outputFolder.toFile().list().length > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(0, outputFolder.toFile().list().length);
+		} finally {
+			for (File f : outputFolder.toFile().listFiles()) {
+				f.delete();
+			}
+			Files.delete(outputFolder);
+		}
+	}
+
+	@Test
+	public void testFileRemovedWhenThumbnailDownloadFails() throws Exception {
+		final String otherPublicKeyHex = Common.otherPublicKey.substring(Common.otherPublicKey.indexOf(':') + 1);
+		final byte[] fileContent = "file content".getBytes(StandardCharsets.UTF_8);
+		byte[] fileData = new byte[NaCl.BOXOVERHEAD + fileContent.length];
+		System.arraycopy(fileContent, 0, fileData, NaCl.BOXOVERHEAD, fileContent.length);
+		final EncryptResult file = CryptTool.encryptFileData(fileData);
+
+		this.server.createContext("/pubkeys/", exchange -> respond(exchange, 200, otherPublicKeyHex));
+		this.server.createContext("/blobs/", exchange -> {
+			if (exchange.getRequestURI().getPath().endsWith("02")) {
+				respond(exchange, 404, "");
+				return;
+			}
+			exchange.sendResponseHeaders(200, file.getResult().length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(file.getResult());
+			}
+		});
+
+		FileMessage fileMessage = new FileMessage(new byte[] {1}, file.getSecret(), "text/plain", "a.txt",
+				fileContent.length, new byte[] {2});
+		byte[] nonce = CryptTool.randomNonce();
+		byte[] box = new byte[CryptTool.MAX_BOX_LENGTH];
+		int boxLength = CryptTool.encryptMessage(fileMessage, Key.decodeKey(Common.otherPrivateKey).key,
+				Key.decodeKey(Common.myPublicKey).key, nonce, box);
+
+		Path outputFolder = Files.createTempDirectory("receive");
+		try {
+			try {
+				this.e2eHelper.receiveMessage("OTHERID1", "0000000000000001", Arrays.copyOf(box, boxLength), nonce,
+						outputFolder);
+				Assert.fail("expected FileNotFoundException");
+			} catch (FileNotFoundException e) {
+				/* expected */
+			}
+			Assert.assertEquals(0, outputFolder.toFile().list().length);
+		} finally {
+			for (File f : outputFolder.toFile().listFiles()) {
+				f.delete();
+			}
+			Files.delete(outputFolder);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.OutgoingMessage;
+import ch.threema.apitool.PublicKeyStore;
+import ch.threema.apitool.results.SendResult;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OutboundQueueTest {
+	/**
+	 * Connector that answers every send itself; recipient "BUSYBUSY" fails temporarily on its
+	 * first attempt, "INVALID1" fails permanently, "UNKNOWN1" has an unknown outcome and
+	 * "CRASHING" makes the first send throw.
+	 */
+	private static class StubConnector extends APIConnector {
+		final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger messageIds = new AtomicInteger();
+		final AtomicInteger busyAttempts = new AtomicInteger();
+		final AtomicInteger crashAttempts = new AtomicInteger();
+		final AtomicInteger unknownAttempts = new AtomicInteger();
+
+		StubConnector() {
+			super("*TESTTST", "secret", "http://127.0.0.1:1/", new PublicKeyStore() {
+				@Override
+				protected byte[] fetchPublicKey(String threemaId) {
+					return null;
+				}
+
+				@Override
+				protected void save(String threemaId, byte[] publicKey) {
+				}
+			});
+		}
+
+		@Override
+		public List<SendResult> sendE2EMessages(List<OutgoingMessage> messages) {
+			List<SendResult> results = new ArrayList<>();
+			for (OutgoingMessage message : messages) {
+				String to = message.getTo();
+				if (to.equals("CRASHING") && this.crashAttempts.incrementAndGet() == 1) {
+					throw new IllegalStateException("unexpected response");
+				} else if (to.equals("INVALID1")) {
+					results.add(new SendResult(to, 400, null));
+				} else if (to.equals("UNKNOWN1")) {
+					this.unknownAttempts.incrementAndGet();
+					results.add(new SendResult(to, SendResult.OUTCOME_UNKNOWN, null));
+				} else if (to.equals("BUSYBUSY") && this.busyAttempts.incrementAndGet() == 1) {
+					results.add(new SendResult(to, 503, null));
+				} else {
+					this.sent.add(to);
+					results.add(new SendResult(to, 200, String.format("%016x", this.messageIds.incrementAndGet())));
+				}
+			}
+			return results;
+		}
+	}
+
+	private static OutgoingMessage message(String to) {
+		return new OutgoingMessage(to, new byte[24], new byte[] {1, 2, 3});
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+		StubConnector connector = new StubConnector();
+
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 2)) {
+			queue.setRetryDelay(10, TimeUnit.MILLISECONDS);
+			queue.start();
+
+			List<CompletableFuture<SendResult>> futures = queue.enqueue(
+					Arrays.asList(message("ECHOECHO"), message("BUSYBUSY"), message("INVALID1"), message("UNKNOWN1")));
+
+			Assert.assertTrue(futures.get(0).get(10, TimeUnit.SECONDS).isSuccess());
+			Assert.assertTrue(futures.get(1).get(10, TimeUnit.SECONDS).isSuccess());
+			Assert.assertEquals(2, connector.busyAttempts.get());
+			Assert.assertEquals(400, futures.get(2).get(10, TimeUnit.SECONDS).getResponseCode());
+			/* possibly delivered, so not sent again */
+			Assert.assertEquals(SendResult.OUTCOME_UNKNOWN, futures.get(3).get(10, TimeUnit.SECONDS).getResponseCode());
+			Assert.assertEquals(1, connector.unknownAttempts.get());
+			Assert.assertEquals(0, queue.getPendingCount());
+		}
+
+		/* nothing is replayed */
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 1)) {
+			Assert.assertEquals(0, queue.getPendingCount());
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+
+		/* not started, so the messages are only written to the journal */
+		try (OutboundQueue queue = new OutboundQueue(new StubConnector(), journal, 1)) {
+			queue.enqueue(message("ECHOECHO"));
+			queue.enqueue(message("ECHOECH2"));
+		}
+
+		StubConnector connector = new StubConnector();
+		final List<Long> results = Collections.synchronizedList(new ArrayList<>());
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 1) {
+			@Override
+			protected void onResult(long sequence, OutgoingMessage message, SendResult result) {
+				results.add(sequence);
+			}
+		}) {
+			Assert.assertEquals(2, queue.getPendingCount());
+			queue.start();
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (results.size() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(Arrays.asList(1L, 2L), results);
+			Assert.assertEquals(Arrays.asList("ECHOECHO", "ECHOECH2"), connector.sent);
+
+			/* sequence numbers continue after the replayed ones */
+			Assert.assertTrue(queue.enqueue(message("ECHOECHO")).get(10, TimeUnit.SECONDS).isSuccess());
+			Assert.assertEquals(3L, (long) results.get(2));
+		}
+	}
+
+	@Test
+	public void testEnqueueBeforeStart() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+		StubConnector connector = new StubConnector();
+
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 1)) {
+			CompletableFuture<SendResult> future = queue.enqueue(message("ECHOECHO"));
+			queue.start();
+			Assert.assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+
+			/* a second message ensures the worker has passed the first one */
+			Assert.assertTrue(queue.enqueue(message("ECHOECH2")).get(10, TimeUnit.SECONDS).isSuccess());
+			Assert.assertEquals(Arrays.asList("ECHOECHO", "ECHOECH2"), connector.sent);
+		}
+	}
+
+	@Test
+	public void testNoRetryAfterSendFailure() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+		StubConnector connector = new StubConnector();
+
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 1)) {
+			queue.setRetryDelay(10, TimeUnit.MILLISECONDS);
+			queue.start();
+
+			CompletableFuture<SendResult> future = queue.enqueue(message("CRASHING"));
+			Assert.assertEquals(SendResult.OUTCOME_UNKNOWN, future.get(10, TimeUnit.SECONDS).getResponseCode());
+			Assert.assertEquals(1, connector.crashAttempts.get());
+			Assert.assertEquals(0, queue.getPendingCount());
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+		StubConnector connector = new StubConnector();
+
+		/* far more messages than fit into the journal at once */
+		try (OutboundQueue queue = new OutboundQueue(connector, journal, 65536, 2, 50)) {
+			queue.start();
+			List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+			for (int i = 0; i < 3000; i++) {
+				futures.add(queue.enqueue(message("ECHOECHO")));
+			}
+			for (CompletableFuture<SendResult> future : futures) {
+				Assert.assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+			}
+		}
+		Assert.assertEquals(3000, connector.sent.size());
+		Assert.assertTrue(journal.length() <= 65536);
+	}
+
+	@Test
+	public void testCloseWaitsForSend() throws Exception {
+		File journal = new File(Files.createTempDirectory("outbound").toFile(), "journal");
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		StubConnector connector = new StubConnector() {
+			@Override
+			public List<SendResult> sendE2EMessages(List<OutgoingMessage> messages) {
+				sending.countDown();
+				/* like a request in progress, ignore interrupts */
+				boolean interrupted = false;
+				while (release.getCount() > 0) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				return super.sendE2EMessages(messages);
+			}
+		};
+
+		OutboundQueue queue = new OutboundQueue(connector, journal, 1);
+		queue.start();
+		CompletableFuture<SendResult> future = queue.enqueue(message("ECHOECHO"));
+		Assert.assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+		CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+			try {
+				queue.close();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+		Assert.assertFalse(closed.isDone());
+		try {
+			queue.enqueue(message("ECHOECH2"));
+			Assert.fail("enqueue after close");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		release.countDown();
+		closed.get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+
+		/* the result was recorded before the journal was closed */
+		try (OutboundQueue reopened = new OutboundQueue(connector, journal, 1)) {
+			Assert.assertEquals(0, reopened.getPendingCount());
+		}
+	}
+}
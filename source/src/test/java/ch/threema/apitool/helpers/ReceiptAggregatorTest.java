@@ -0,0 +1,118 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.helpers;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.MessageId;
+import ch.threema.apitool.messages.DeliveryReceipt;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ReceiptAggregatorTest {
+	private static class Sent {
+		final String threemaId;
+		final DeliveryReceipt.Type receiptType;
+		final List<MessageId> messageIds;
+
+		Sent(String threemaId, DeliveryReceipt.Type receiptType, List<MessageId> messageIds) {
+			this.threemaId = threemaId;
+			this.receiptType = receiptType;
+			this.messageIds = new ArrayList<>(messageIds);
+		}
+	}
+
+	private static class RecordingAggregator extends ReceiptAggregator {
+		final LinkedBlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+		RecordingAggregator(int maxMessageIds, long maxDelay, TimeUnit unit) {
+			super(null, maxMessageIds, maxDelay, unit);
+		}
+
+		@Override
+		protected void sendReceipt(String threemaId, DeliveryReceipt.Type receiptType, List<MessageId> messageIds) {
+			this.sent.add(new Sent(threemaId, receiptType, messageIds));
+		}
+	}
+
+	private static MessageId id(int n) {
+		return new MessageId(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) n});
+	}
+
+	@Test
+	public void testFlushOnSize() throws Exception {
+		RecordingAggregator aggregator = new RecordingAggregator(3, 1, TimeUnit.HOURS);
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(1));
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.READ, id(2));
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(3));
+		aggregator.add("OTHER123", DeliveryReceipt.Type.RECEIVED, id(4));
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(5));
+
+		Sent sent = aggregator.sent.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(sent);
+		Assert.assertEquals("ECHOECHO", sent.threemaId);
+		Assert.assertEquals(DeliveryReceipt.Type.RECEIVED, sent.receiptType);
+		Assert.assertEquals(3, sent.messageIds.size());
+		Assert.assertEquals(id(5).getMessageId(), sent.messageIds.get(2).getMessageId());
+		Assert.assertEquals(2, aggregator.getPendingCount());
+
+		aggregator.shutdown();
+		Assert.assertEquals(0, aggregator.getPendingCount());
+		Assert.assertEquals(2, aggregator.sent.size());
+	}
+
+	@Test
+	public void testFlushOnDelay() throws Exception {
+		RecordingAggregator aggregator = new RecordingAggregator(100, 50, TimeUnit.MILLISECONDS);
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(1));
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(2));
+
+		Sent sent = aggregator.sent.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(sent);
+		Assert.assertEquals(2, sent.messageIds.size());
+		Assert.assertEquals(0, aggregator.getPendingCount());
+		aggregator.shutdown();
+	}
+
+	@Test
+	public void testSendError() throws Exception {
+		final LinkedBlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+		/* without a helper every send fails */
+		ReceiptAggregator aggregator = new ReceiptAggregator(null, 1, 1, TimeUnit.HOURS) {
+			@Override
+			protected void onSendError(String threemaId, DeliveryReceipt.Type receiptType,
+					List<MessageId> messageIds, Exception e) {
+				errors.add(e);
+			}
+		};
+		aggregator.add("ECHOECHO", DeliveryReceipt.Type.RECEIVED, id(1));
+
+		Assert.assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+		aggregator.shutdown();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.MessageId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeliveryReceiptTest {
+	@Test
+	public void testEncode() throws Exception {
+		List<MessageId> ids = new ArrayList<>();
+		ids.add(new MessageId(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+		ids.add(new MessageId(new byte[] {9, 10, 11, 12, 13, 14, 15, 16}));
+
+		byte[] data = new DeliveryReceipt(DeliveryReceipt.Type.READ, ids).getData();
+		Assert.assertEquals(new byte[] {2, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, data);
+	}
+
+	@Test
+	public void testMaxMessageIdsFitBox() throws Exception {
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < DeliveryReceipt.MAX_MESSAGE_IDS; i++) {
+			ids.add(new MessageId(new byte[] {(byte) i, 0, 0, 0, 0, 0, 0, (byte) (i >> 8)}));
+		}
+		DeliveryReceipt receipt = new DeliveryReceipt(DeliveryReceipt.Type.RECEIVED, ids);
+
+		byte[] nonce = CryptTool.randomNonce();
+		byte[] box = new byte[CryptTool.MAX_BOX_LENGTH];
+		/* padding is random, so encrypt a few times to hit large paddings */
+		for (int i = 0; i < 50; i++) {
+			CryptTool.encryptMessage(receipt, Key.decodeKey(Common.myPrivateKey).key,
+					Key.decodeKey(Common.otherPublicKey).key, nonce, box);
+		}
+
+		int length = CryptTool.encryptMessage(receipt, Key.decodeKey(Common.myPrivateKey).key,
+				Key.decodeKey(Common.otherPublicKey).key, nonce, box);
+		byte[] result = Arrays.copyOf(box, length);
+		DeliveryReceipt decoded = (DeliveryReceipt) CryptTool.decryptMessage(result,
+				Key.decodeKey(Common.otherPrivateKey).key, Key.decodeKey(Common.myPublicKey).key, nonce);
+		Assert.assertEquals(DeliveryReceipt.Type.RECEIVED, decoded.getReceiptType());
+		Assert.assertEquals(ids.size(), decoded.getAckedMessageIds().size());
+		Assert.assertEquals(ids.get(300).getMessageId(), decoded.getAckedMessageIds().get(300).getMessageId());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.exceptions.BadMessageException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class FileMessageTest {
+	private static final byte[] BLOB_ID = {0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef,
+			0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77};
+	private static final byte[] KEY = new byte[32];
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		FileMessage message = new FileMessage(BLOB_ID, KEY, "image/png", "na\"me\\\né😀.png", 1234,
+				BLOB_ID, "caption", "{\"w\":640,\"h\":[480]}");
+
+		FileMessage decoded = FileMessage.CODEC.decode(message.getData(), 0, message.getData().length);
+		Assert.assertEquals(BLOB_ID, decoded.getBlobId());
+		Assert.assertEquals(BLOB_ID, decoded.getThumbnailBlobId());
+		Assert.assertEquals(KEY, decoded.getEncryptionKey());
+		Assert.assertEquals("image/png", decoded.getMimeType());
+		Assert.assertEquals(message.getFileName(), decoded.getFileName());
+		Assert.assertEquals(1234, decoded.getFileSize());
+		Assert.assertEquals("caption", decoded.getDescription());
+		Assert.assertEquals("{\"w\":640,\"h\":[480]}", decoded.getMetadata());
+	}
+
+	@Test
+	public void testWriteData() throws Exception {
+		FileMessage message = new FileMessage(BLOB_ID, KEY, "text/plain", "a.txt", 5, null);
+		byte[] buffer = new byte[512];
+		int length = message.writeData(buffer, 3);
+
+		String expected = "{\"b\":\"0123456789abcdef0011223344556677\",\"k\":\""
+				+ "0000000000000000000000000000000000000000000000000000000000000000"
+				+ "\",\"m\":\"text/plain\",\"n\":\"a.txt\",\"s\":5,\"i\":0}";
+		Assert.assertEquals(expected, new String(buffer, 3, length, StandardCharsets.UTF_8));
+		Assert.assertEquals(expected, new String(message.getData(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testParseForeignJson() throws Exception {
+		FileMessage message = FileMessage.fromString(" { \"i\" : 0, \"t\" : null, \"j\": {\"a\": [1, true, \"x\"]},"
+				+ " \"b\":\"0123456789ABCDEF0011223344556677\", \"s\": 42, \"m\": \"a\\/b\\u00e9\","
+				+ " \"k\": \"" + "00".repeat(32) + "\" } ");
+
+		Assert.assertEquals(BLOB_ID, message.getBlobId());
+		Assert.assertNull(message.getThumbnailBlobId());
+		Assert.assertEquals("a/bé", message.getMimeType());
+		Assert.assertEquals("unnamed", message.getFileName());
+		Assert.assertEquals(42, message.getFileSize());
+	}
+
+	@Test(expected = BadMessageException.class)
+	public void testMissingField() throws Exception {
+		FileMessage.fromString("{\"b\":\"00\",\"m\":\"text/plain\",\"s\":1}");
+	}
+
+	@Test
+	public void testInvalidMetadata() throws Exception {
+		for (String metadata : new String[] {"", "[1]", "42", "{\"w\":}", "{\"w\":1", "{\"w\":1} x"}) {
+			try {
+				new FileMessage(BLOB_ID, KEY, "text/plain", "a.txt", 5, null, null, metadata);
+				Assert.fail("accepted " + metadata);
+			} catch (IllegalArgumentException e) {
+				/* expected */
+			}
+		}
+
+		/* metadata that is not an object is ignored when received */
+		FileMessage message = FileMessage.fromString("{\"b\":\"00\",\"k\":\"" + "00".repeat(32)
+				+ "\",\"m\":\"text/plain\",\"s\":1,\"x\":[1]}");
+		Assert.assertNull(message.getMetadata());
+	}
+}
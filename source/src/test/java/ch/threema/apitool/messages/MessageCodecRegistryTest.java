@@ -0,0 +1,149 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.exceptions.BadMessageException;
+import ch.threema.apitool.results.EncryptResult;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class MessageCodecRegistryTest {
+	private static final int LOCATION_TYPE_CODE = 0x10;
+
+	@Test
+	public void testUnknownType() throws Exception {
+		MessageCodecRegistry registry = new MessageCodecRegistry();
+		ThreemaMessage message = registry.decode(LOCATION_TYPE_CODE, new byte[] {9, 1, 2, 3}, 1, 2);
+
+		Assert.assertTrue(message instanceof UnknownMessage);
+		Assert.assertEquals(LOCATION_TYPE_CODE, message.getTypeCode());
+		Assert.assertEquals(new byte[] {1, 2}, message.getData());
+	}
+
+	@Test
+	public void testDecryptUnknownType() throws Exception {
+		byte[] myPrivateKey = Key.decodeKey(Common.myPrivateKey).key;
+		byte[] otherPublicKey = Key.decodeKey(Common.otherPublicKey).key;
+
+		/* the default registry has no codec for location messages */
+		EncryptResult res = CryptTool.encrypt(new byte[] {LOCATION_TYPE_CODE, 'a', 'b', 1}, myPrivateKey, otherPublicKey);
+		ThreemaMessage message = CryptTool.decryptMessage(res.getResult(), Key.decodeKey(Common.otherPrivateKey).key,
+				Key.decodeKey(Common.myPublicKey).key, res.getNonce());
+
+		Assert.assertTrue(message instanceof UnknownMessage);
+		Assert.assertEquals(new byte[] {'a', 'b'}, message.getData());
+	}
+
+	@Test
+	public void testCustomCodec() throws Exception {
+		MessageCodecRegistry registry = new MessageCodecRegistry();
+		registry.register(UnknownMessage.class, new MessageCodec<UnknownMessage>() {
+			@Override
+			public int getTypeCode() {
+				return LOCATION_TYPE_CODE;
+			}
+
+			@Override
+			public UnknownMessage decode(byte[] data, int offset, int length) {
+				byte[] reversed = new byte[length];
+				for (int i = 0; i < length; i++) {
+					reversed[i] = data[offset + length - 1 - i];
+				}
+				return new UnknownMessage(LOCATION_TYPE_CODE, reversed);
+			}
+		});
+
+		Assert.assertNotNull(registry.getCodec(LOCATION_TYPE_CODE));
+		Assert.assertEquals(new byte[] {2, 1}, registry.decode(LOCATION_TYPE_CODE, new byte[] {1, 2}, 0, 2).getData());
+
+		byte[] buffer = new byte[4];
+		int len = registry.encode(new UnknownMessage(LOCATION_TYPE_CODE, new byte[] {5, 6}), buffer, 1);
+		Assert.assertEquals(2, len);
+		Assert.assertEquals(new byte[] {0, 5, 6, 0}, buffer);
+
+		registry.unregister(LOCATION_TYPE_CODE);
+		Assert.assertNull(registry.getCodec(LOCATION_TYPE_CODE));
+	}
+
+	@Test
+	public void testEncodeWrongClass() throws Exception {
+		MessageCodecRegistry registry = new MessageCodecRegistry();
+		registry.register(TextMessage.class, TextMessage.CODEC);
+
+		/* a message of another class claiming the text type code */
+		try {
+			registry.encode(new UnknownMessage(TextMessage.TYPE_CODE, new byte[] {1}), new byte[4], 0);
+			Assert.fail("message of the wrong class encoded");
+		} catch (BadMessageException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void testDefaultCodecs() throws Exception {
+		MessageCodecRegistry registry = MessageCodecRegistry.getDefault();
+		byte[] data = "hello".getBytes("UTF-8");
+		ThreemaMessage message = registry.decode(TextMessage.TYPE_CODE, data, 0, data.length);
+		Assert.assertEquals("hello", ((TextMessage) message).getText());
+
+		byte[] receipt = new byte[17];
+		receipt[0] = 1;
+		receipt[8] = 7;
+		receipt[16] = 9;
+		message = registry.decode(DeliveryReceipt.TYPE_CODE, receipt, 0, receipt.length);
+		Assert.assertEquals(DeliveryReceipt.Type.RECEIVED, ((DeliveryReceipt) message).getReceiptType());
+		Assert.assertEquals(2, ((DeliveryReceipt) message).getAckedMessageIds().size());
+		Assert.assertEquals(Arrays.copyOfRange(receipt, 9, 17),
+				((DeliveryReceipt) message).getAckedMessageIds().get(1).getMessageId());
+	}
+
+	@Test
+	public void testValidate() throws Exception {
+		MessageCodecRegistry registry = MessageCodecRegistry.getDefault();
+		registry.validate(TextMessage.TYPE_CODE, new byte[] {'a'}, 0, 1);
+		/* types without a codec are not checked */
+		registry.validate(LOCATION_TYPE_CODE, new byte[0], 0, 0);
+
+		try {
+			registry.validate(ImageMessage.TYPE_CODE, new byte[10], 0, 10);
+			Assert.fail("short image message accepted");
+		} catch (BadMessageException e) {
+			/* expected */
+		}
+
+		/* an empty text message with one byte of padding */
+		try {
+			MessageView.wrap(new byte[] {TextMessage.TYPE_CODE, 1}, 2);
+			Assert.fail("empty text message accepted");
+		} catch (BadMessageException e) {
+			/* expected */
+		}
+	}
+}